@@ -12,5 +12,33 @@ class AppConf @Inject()(configuration: Configuration) {
   def getFirebaseJwtToken = configuration.getString("application.firebase.jwt.token").get
   def getWebComponentClientId = configuration.getString("application.auth.google.component.web.clientid").get
   def getAndroidAppComponentClientId = configuration.getString("application.auth.google.component.androidapp.clientid").get
+  def getGmailQuotaUnitsPerSecond = configuration.getInt("application.gmail.quota.units.per.second").fold(250)(identity)
+  def getGmailQuotaBurstUnits = configuration.getInt("application.gmail.quota.burst.units").fold(250)(identity)
+  def getFirebaseWriteChunkPaths = configuration.getInt("application.firebase.write.chunk.paths").fold(1000)(identity)
+  def getFirebaseWriteChunkBytes = configuration.getInt("application.firebase.write.chunk.bytes").fold(256 * 1024)(identity)
+  def getFirebaseWriteParallelism = configuration.getInt("application.firebase.write.parallelism").fold(4)(identity)
+  def getWarmUpConcurrency = configuration.getInt("application.warmup.concurrency").fold(4)(identity)
+  def getWarmUpJitterMilliSeconds = configuration.getInt("application.warmup.jitter.milliseconds").fold(2000)(identity)
+  def getMessageCacheSize = configuration.getLong("application.gmail.message.cache.size").fold(10000L)(identity)
+  def getMessageCacheFile = configuration.getString("application.gmail.message.cache.file")
+  def getPublicUrl = configuration.getString("application.public.url")
+  def getAttachmentTokenTtlSeconds = configuration.getInt("application.attachments.token.ttl.seconds").fold(24 * 3600)(identity)
+  def getThumbnailsDirectory = configuration.getString("application.thumbnails.directory").getOrElse(new java.io.File(System.getProperty("java.io.tmpdir"), "connectus-thumbnails").getPath)
+  def getThumbnailsMaxBytes = configuration.getLong("application.thumbnails.max.bytes").fold(256L * 1024 * 1024)(identity)
+  def getThumbnailsMaxPixels = configuration.getLong("application.thumbnails.max.pixels").fold(25L * 1000 * 1000)(identity)
+  def getThumbnailsDecoderThreads = configuration.getInt("application.thumbnails.decoder.threads").fold(2)(identity)
+  def getThumbnailsDecoderQueueSize = configuration.getInt("application.thumbnails.decoder.queue.size").fold(100)(identity)
+  def getThumbnailsFailuresCacheSize = configuration.getLong("application.thumbnails.failures.cache.size").fold(10000L)(identity)
+  def getNotificationDebounceWindowMilliSeconds = configuration.getInt("application.gmail.notification.debounce.window.milliseconds").fold(1000)(identity)
+  def getNotificationDebounceMaxDelayMilliSeconds = configuration.getInt("application.gmail.notification.debounce.max.delay.milliseconds").fold(5000)(identity)
+  def getJobSlowSeconds = configuration.getInt("application.jobs.slow.seconds").fold(30)(identity)
+  def getJobTimeoutSeconds = configuration.getInt("application.jobs.timeout.seconds").fold(3600)(identity)
+  def getJobAbandonSeconds = configuration.getInt("application.jobs.abandon.seconds").fold(3600)(identity)
+  def getJobSharedMaxConcurrent = configuration.getInt("application.jobs.shared.max.concurrent").fold(4)(identity)
+  def getClusterEnabled = configuration.getBoolean("application.cluster.enabled").fold(false)(identity)
+  def getClusterShards = configuration.getInt("application.cluster.shards").fold(100)(identity)
+  def getClusterUsersCheckSeconds = configuration.getInt("application.cluster.users.check.seconds").fold(30)(identity)
+  def getClusterRemoteThrottlerIdleSeconds = configuration.getInt("application.cluster.remote.throttler.idle.seconds").fold(60)(identity)
+  def getMetricsToken = configuration.getString("application.metrics.token")
   def getMaintenanceMode = configuration.getBoolean("application.maintenance.mode").fold(false)(identity)
 }
@@ -6,13 +6,15 @@ import common._
 import conf.AppConf
 import model.{Notification, _}
 import play.api.Logger
+import play.api.http.HttpEntity
 import play.api.mvc._
+import services.AttachmentProxy.ByteRange
 import services._
 
 import scala.concurrent.ExecutionContext
 
 @Singleton
-class AppController @Inject()(implicit exec: ExecutionContext, appConf: AppConf, gmailHookClient: GmailHookClient) extends Controller {
+class AppController @Inject()(implicit exec: ExecutionContext, appConf: AppConf, gmailHookClient: GmailHookClient, attachmentProxy: AttachmentProxy, thumbnailCache: ThumbnailCache, appMetrics: Metrics) extends Controller {
 
   if (appConf.getMaintenanceMode) {
     // https://devcenter.heroku.com/articles/error-pages#customize-pages
@@ -45,6 +47,68 @@ class AppController @Inject()(implicit exec: ExecutionContext, appConf: AppConf,
     }
   }
 
+  /**
+   * Streams the decoded bytes of an attachment linked by AttachmentProxy. An attachment never changes, the entity tag only depends on
+   * its ids and a matching If-None-Match is answered without calling Gmail.
+   */
+  def attachment(email: String, messageId: String, attachmentId: String, accessToken: String, mimeType: String) = Action.async { request =>
+    if (!attachmentProxy.verify(email, messageId, attachmentId, mimeType, accessToken)) {
+      fs(Forbidden)
+    } else {
+      val entityTag = AttachmentProxy.entityTag(messageId, attachmentId)
+      val cacheHeaders = List(ETAG -> entityTag, CACHE_CONTROL -> "private, max-age=86400", ACCEPT_RANGES -> "bytes", "X-Content-Type-Options" -> "nosniff")
+      if (matches(request, entityTag)) {
+        fs(NotModified.withHeaders(cacheHeaders: _*))
+      } else {
+        attachmentProxy.getData(email, messageId, attachmentId).map {
+          case None => NotFound
+          case Some(data) =>
+            val length = AttachmentProxy.decodedLength(data)
+            def entity(range: ByteRange) = HttpEntity.Streamed(AttachmentProxy.decodedSource(data, range), Some(range.length), Some(mimeType))
+            AttachmentProxy.parseRange(request.headers.get(RANGE), length) match {
+              case None =>
+                Ok.sendEntity(entity(ByteRange(0, length - 1))).withHeaders(cacheHeaders: _*)
+              case Some(Some(range)) =>
+                Status(PARTIAL_CONTENT).sendEntity(entity(range)).withHeaders(CONTENT_RANGE -> s"bytes ${range.start}-${range.end}/$length" :: cacheHeaders: _*)
+              case Some(None) =>
+                Status(REQUESTED_RANGE_NOT_SATISFIABLE).withHeaders(CONTENT_RANGE -> s"bytes */$length")
+            }
+        }
+      }
+    }
+  }
+
+  /**
+   * Thumbnail of an image attachment, linked with the same token as the attachment itself.
+   */
+  def thumbnail(email: String, messageId: String, attachmentId: String, size: String, accessToken: String, mimeType: String) = Action.async { request =>
+    if (!attachmentProxy.verify(email, messageId, attachmentId, mimeType, accessToken)) {
+      fs(Forbidden)
+    } else {
+      val entityTag = AttachmentProxy.entityTag(messageId, s"$attachmentId/thumbnails/$size")
+      val cacheHeaders = List(ETAG -> entityTag, CACHE_CONTROL -> "private, max-age=86400", "X-Content-Type-Options" -> "nosniff")
+      if (matches(request, entityTag)) {
+        fs(NotModified.withHeaders(cacheHeaders: _*))
+      } else {
+        thumbnailCache.get(email, messageId, attachmentId, size).map {
+          case None => NotFound
+          case Some(thumbnail) => Ok(thumbnail).as(ThumbnailCache.MimeType).withHeaders(cacheHeaders: _*)
+        }
+      }
+    }
+  }
+
+  private def matches(request: RequestHeader, entityTag: String) =
+    request.headers.get(IF_NONE_MATCH).exists(_.split(',').map(_.trim).exists(tag => tag == entityTag || tag == "*"))
+
+  /**
+   * The metrics are labeled with the users, they are only served to a scraper presenting the configured token.
+   */
+  def metrics = Action { request =>
+    val authorized = appConf.getMetricsToken.exists(token => request.headers.get(AUTHORIZATION).contains(s"Bearer $token"))
+    if (authorized) Ok(appMetrics.scrape).as(Metrics.ContentType) else Forbidden
+  }
+
   def maintenance = Action {
     Ok(views.html.maintenance())
   }
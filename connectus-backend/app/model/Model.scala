@@ -2,18 +2,20 @@ package model
 
 import java.time.{LocalDateTime, ZonedDateTime}
 
-import common.Email
+import common.{Email, ThreadId}
 import services.LabelService
 
 case class GmailWatchReply(expirationDate: LocalDateTime, historyId: BigInt)
 case class GmailLabel(id: String, name: String)
 case class GmailThread(id: String, snippet: String, historyId: BigInt)
+case class GmailHistory(historyId: BigInt, threadIds: Set[ThreadId])
 case class GmailMessage(id: String, date: Option[ZonedDateTime], from: Option[InternetAddress], to: Option[InternetAddress], subject: Option[String], content: Option[String], historyId: BigInt, labels: List[GmailLabel], attachments: List[GmailAttachment], complete: Boolean)
 case class GmailAttachment(partId: String, mimeType: String, filename: String, bodySize: Int, bodyAttachmentId: String, headers: Map[String, String])
 case class GmailAttachmentData(attachmentId: String, data: Array[Byte], size: Int)
 case class InternetAddress(address: String, personal: Option[String])
 case class ThreadBundle(thread: GmailThread, messages: List[GmailMessage]) {
   def lastUntrashedMessage = messages.reverse.find(message => !message.labels.exists(_.id == LabelService.TrashLabelName))
+  def isInInbox = messages.exists(_.labels.exists(_.id == LabelService.InboxLabelName))
   def contactEmail(email: Email): List[String] = messages
     .filter(message => message.from.fold(false)(_.address != email) && message.to.fold(false)(_.address == email))
     .map(_.from.get.address)
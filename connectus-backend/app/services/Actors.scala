@@ -3,6 +3,9 @@ package services
 import javax.inject.{Inject, Named, Singleton}
 
 import akka.actor.{Actor, ActorLogging, ActorRef, Props, _}
+import akka.cluster.sharding.{ClusterSharding, ClusterShardingSettings}
+import akka.cluster.singleton.{ClusterSingletonManager, ClusterSingletonManagerSettings}
+import akka.cluster.{Cluster, ClusterEvent}
 import akka.pattern.ask
 import akka.util.Timeout
 import com.google.inject.Provider
@@ -11,13 +14,13 @@ import common._
 import conf.AppConf
 import model.{AttachmentRequest, Contact, OutboxMessage, Resident}
 import play.api.Logger
-import play.api.inject.Injector
+import play.api.inject.{ApplicationLifecycle, Injector}
 import play.api.libs.concurrent.InjectedActorSupport
 import services.HistoryIdHolderActor.SetHistoryId
-import services.JobQueueActor.Job
+import services.JobQueueActor.{Job, SyncJob, SyncRequest}
 import services.Repository.AuthorizationCodes
 
-import scala.concurrent.{ExecutionContext, Future}
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.concurrent.duration._
 import scala.language.postfixOps
 import scala.reflect.ClassTag
@@ -37,8 +40,14 @@ class ActorsClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf,
     superSupervisorActor = superSupervisorActorProvider.get
   }
 
-  def scheduleOnUserJobQueue(email: Email, job: => Future[_], key: Option[String] = None): Future[Try[_]] = getJobQueueActor(email)
-    .flatMap(_ ? Job(() => job, key)).mapTo[Try[_]]
+  /**
+   * Jobs that change labels or messages must stay Exclusive, read-only jobs can be Shared so that they do not wait for a sync.
+   */
+  def scheduleOnUserJobQueue(email: Email, job: => Future[_], key: Option[String] = None, access: JobQueueActor.Access = JobQueueActor.Exclusive): Future[Try[_]] =
+    getJobQueueActor(email).flatMap(_ ? Job(() => job, key, access)).mapTo[Try[_]]
+
+  def scheduleSyncOnUserJobQueue(email: Email, request: SyncRequest, sync: SyncRequest => Future[_]): Future[Try[_]] = getJobQueueActor(email)
+    .flatMap(_ ? SyncJob(request, sync)).mapTo[Try[_]]
 
   def getGmailThrottlerActor(email: Email): Future[ActorRef] =
     (superSupervisorActor ? UserSupervisorActor.GetGmailThrottlerActor(email)).mapTo[ActorRef]
@@ -46,6 +55,9 @@ class ActorsClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf,
   def getJobQueueActor(email: Email): Future[ActorRef] =
     (superSupervisorActor ? UserSupervisorActor.GetJobQueueActor(email)).mapTo[ActorRef]
 
+  def scheduleNotifiedSync(email: Email, historyId: BigInt): Future[Try[_]] =
+    (superSupervisorActor ? NotificationDebouncerActor.Notify(email, historyId)).mapTo[Try[_]]
+
   def getHistoryId(email: Email): Future[Option[BigInt]] =
     (superSupervisorActor ? HistoryIdHolderActor.GetHistoryId(email)).mapTo[HistoryIdHolderActor.HistoryIdValue].map(_.historyId)
 
@@ -55,54 +67,171 @@ class ActorsClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf,
 
 object SuperSupervisorActor {
   final val actorName = "superSupervisorActor"
-  case class TradeRequest(authorizationCodes: AuthorizationCodes)
-  case class UserAdded(email: Email)
-  case class UserRemoved(email: Email)
+  case class UserAdded(email: Email) extends UserMessage
+  case class UserRemoved(email: Email) extends UserMessage
+  private case object StartUsers
 }
 
+/**
+ * Supervises the users of the node. Standalone, every user runs under this actor. In cluster mode the users are entities of the
+ * user shard region and run on the node owning their shard: each node listens for the users and regularly tells the region to
+ * start all of them, which restarts on their new node the users whose shard moved. The authorization codes are then traded by a
+ * cluster singleton so that a code is traded once.
+ */
 class SuperSupervisorActor @Inject()(implicit exec: ExecutionContext,
+                                     appConf: AppConf,
                                      userSupervisorActorFactory: UserSupervisorActor.Factory,
                                      repository: Repository,
                                      environmentHelper: EnvironmentHelper,
-                                     accountInitializer: AccountInitializer,
-                                     repositoryListeners: RepositoryListeners) extends Actor with ActorLogging with InjectedActorSupport {
+                                     repositoryListeners: RepositoryListeners,
+                                     lifecycle: ApplicationLifecycle,
+                                     injector: Injector) extends Actor with ActorLogging with InjectedActorSupport {
+
+  val warmUpActorRef = context.actorOf(identity(Props(injector.instanceOf[WarmUpActor])), WarmUpActor.actorName)
+
+  val userRegion: Option[ActorRef] =
+    if (appConf.getClusterEnabled) {
+      Some(ClusterSharding(context.system).start(
+        UserSharding.typeName,
+        Props(new UserEntityActor(self, warmUpActorRef, userSupervisorActorFactory)),
+        ClusterShardingSettings(context.system),
+        UserSharding.extractEntityId,
+        UserSharding.extractShardId(appConf.getClusterShards)))
+    } else {
+      None
+    }
+
+  val authorizationCodesProps = Props(injector.instanceOf[AuthorizationCodesActor])
+  if (userRegion.isDefined) {
+    context.actorOf(ClusterSingletonManager.props(authorizationCodesProps, PoisonPill, ClusterSingletonManagerSettings(context.system)), AuthorizationCodesActor.actorName)
+  } else {
+    context.actorOf(authorizationCodesProps, AuthorizationCodesActor.actorName)
+  }
+
+  var users = Set.empty[Email]
+  var localUsers = Map.empty[Email, ActorRef]
+  var remoteGmailThrottlerActors = Map.empty[Email, ActorRef]
 
   if (!environmentHelper.isInTest) {
     repository.connect.onComplete {
       case Success(_) => Logger.info("Successfully authenticated to the Firebase database with a JwtToken")
       case Failure(e) => Logger.error("Authentication with a JwtToken to the Firebase database failed", e)
     }
-    repositoryListeners.listenForAuthorizationCodes(
-      authorizationCodes => self ! SuperSupervisorActor.TradeRequest(authorizationCodes))
     repositoryListeners.listenForUsers(
       email => self ! SuperSupervisorActor.UserAdded(email), email => self ! SuperSupervisorActor.UserRemoved(email))
   }
 
-  override def receive: Receive = {
-    case SuperSupervisorActor.TradeRequest(authorizationCodes) =>
-      def notTradedYet = authorizationCodes.tradeCode.isEmpty
-      if (notTradedYet) {
-        accountInitializer.addUser(authorizationCodes).map(SuperSupervisorActor.UserAdded(_))
-      }
+  val startUsersTask = userRegion.map { _ =>
+    leaveOnStop(Cluster(context.system))
+    Cluster(context.system).subscribe(self, ClusterEvent.InitialStateAsEvents, classOf[ClusterEvent.MemberEvent])
+    val interval = appConf.getClusterUsersCheckSeconds.seconds
+    context.system.scheduler.schedule(interval, interval, self, SuperSupervisorActor.StartUsers)
+  }
+
+  override def receive: Receive = userRegion.fold(standalone)(clustered)
+
+  def standalone: Receive = {
     case SuperSupervisorActor.UserAdded(email) =>
-      injectedChild(userSupervisorActorFactory.apply(email), email)
+      val userSupervisorActorRef = injectedChild(userSupervisorActorFactory.apply(email), email)
+      warmUpActorRef ! WarmUpActor.WarmUp(email, userSupervisorActorRef)
+    case UserSupervisorActor.Restarted(email) =>
+      warmUpActorRef ! WarmUpActor.WarmUp(email, sender)
     case SuperSupervisorActor.UserRemoved(email) =>
+      warmUpActorRef ! WarmUpActor.Cancel(email)
       context.stop(context.child(email).get)
-    case msg@UserSupervisorActor.GetJobQueueActor(email) =>
-      context.child(email).get forward msg
+    case msg: UserMessage =>
+      context.child(msg.email).get forward msg
+  }
+
+  def clustered(userRegion: ActorRef): Receive = {
+    case msg@SuperSupervisorActor.UserAdded(email) =>
+      users += email
+      userRegion ! msg
+    case msg@SuperSupervisorActor.UserRemoved(email) =>
+      users -= email
+      userRegion ! msg
+    case SuperSupervisorActor.StartUsers | _: ClusterEvent.MemberEvent =>
+      users.foreach(userRegion ! SuperSupervisorActor.UserAdded(_))
+    case UserSharding.LocalUser(email, userSupervisorActorRef) =>
+      context.watch(userSupervisorActorRef)
+      localUsers += email -> userSupervisorActorRef
+    case Terminated(ref) =>
+      localUsers = localUsers.filterNot { case (_, userSupervisorActorRef) => userSupervisorActorRef == ref }
+      remoteGmailThrottlerActors = remoteGmailThrottlerActors.filterNot { case (_, throttlerRef) => throttlerRef == ref }
     case msg@UserSupervisorActor.GetGmailThrottlerActor(email) =>
-      context.child(email).get forward msg
-    case msg@HistoryIdHolderActor.GetHistoryId(email) =>
-      context.child(email).get forward msg
-    case msg@HistoryIdHolderActor.SetHistoryId(email, _) =>
-      context.child(email).get forward msg
+      localUsers.get(email).fold(remoteGmailThrottlerActor(email, userRegion) forward msg)(_ forward msg)
+    case msg: UserMessage =>
+      localUsers.get(msg.email).fold(userRegion forward msg)(_ forward msg)
+  }
+
+  /**
+   * Unreachable nodes are not downed automatically, a node shutting down leaves the cluster so that its shards move at once.
+   */
+  private def leaveOnStop(cluster: Cluster): Unit = {
+    val scheduler = context.system.scheduler
+    lifecycle.addStopHook { () =>
+      val removed = Promise[Unit]
+      cluster.registerOnMemberRemoved(removed.trySuccess(()))
+      cluster.leave(cluster.selfAddress)
+      Future.firstCompletedOf(List(removed.future, akka.pattern.after(10.seconds, scheduler)(fs(()))))
+    }
+  }
+
+  private def remoteGmailThrottlerActor(email: Email, userRegion: ActorRef): ActorRef =
+    remoteGmailThrottlerActors.getOrElse(email, {
+      val idleTimeout = appConf.getClusterRemoteThrottlerIdleSeconds.seconds
+      val throttlerRef = context.watch(context.actorOf(Props(new RemoteGmailThrottlerActor(email, userRegion, idleTimeout, injector.instanceOf[Metrics])))))
+      remoteGmailThrottlerActors += email -> throttlerRef
+      throttlerRef
+    })
+
+  override def postStop(): Unit = startUsersTask.foreach { task =>
+    task.cancel()
+    Cluster(context.system).unsubscribe(self)
+  }
+}
+
+object AuthorizationCodesActor {
+  final val actorName = "authorizationCodesActor"
+  case class TradeRequest(authorizationCodes: AuthorizationCodes)
+}
+
+/**
+ * Trades the authorization codes sent by the phones, a single instance runs in the cluster.
+ */
+class AuthorizationCodesActor @Inject()(implicit exec: ExecutionContext,
+                                        environmentHelper: EnvironmentHelper,
+                                        accountInitializer: AccountInitializer,
+                                        repositoryListeners: RepositoryListeners) extends Actor with ActorLogging {
+
+  val listener: Option[FirebaseCancellable] =
+    if (environmentHelper.isInTest) {
+      None
+    } else {
+      Some(repositoryListeners.listenForAuthorizationCodes(
+        authorizationCodes => self ! AuthorizationCodesActor.TradeRequest(authorizationCodes)))
+    }
+
+  override def receive: Receive = {
+    case AuthorizationCodesActor.TradeRequest(authorizationCodes) =>
+      def notTradedYet = authorizationCodes.tradeCode.isEmpty
+      if (notTradedYet) {
+        accountInitializer.addUser(authorizationCodes)
+      }
   }
+
+  override def postStop(): Unit = listener.foreach(_.cancel)
 }
 
 object UserSupervisorActor {
   final val actorName = "userSupervisorActor"
-  case class GetJobQueueActor(email: Email)
-  case class GetGmailThrottlerActor(email: Email)
+  case class GetJobQueueActor(email: Email) extends UserMessage
+  case class GetGmailThrottlerActor(email: Email) extends UserMessage
+  case object Start
+  /**
+   * Sent to its parent by a UserSupervisorActor restarted by supervision, it has to be warmed up again.
+   */
+  case class Restarted(email: Email)
   trait Factory {
     def apply(email: Email): Actor
   }
@@ -112,6 +241,7 @@ class UserSupervisorActor @Inject()(implicit exec: ExecutionContext,
                                     @Assisted email: Email,
                                     actorsClient: ActorsClient,
                                     messageService: MessageService,
+                                    googleAuthorization: GoogleAuthorization,
                                     repositoryListeners: RepositoryListeners,
                                     injector: Injector) extends Actor with ActorLogging {
 
@@ -123,43 +253,69 @@ class UserSupervisorActor @Inject()(implicit exec: ExecutionContext,
   val contactActorRef = createChildActor[ContactActor]
   val outboxActorRef = createChildActor[OutboxActor]
   val attachmentActorRef = createChildActor[AttachmentActor]
-
-  val residentListener = repositoryListeners.listenForResidents(email,
-    resident => residentActorRef ! ResidentActor.ResidentAdded(email, resident),
-    resident => residentActorRef ! ResidentActor.ResidentRemoved(email, resident))
-  val contactListener = repositoryListeners.listenForContacts(email,
-    contacts => contactActorRef ! ContactActor.AllContacts(email, contacts))
-  val outboxListener = repositoryListeners.listenForOutboxMessages(email,
-    outboxMessage => outboxActorRef ! OutboxActor.OutboxMessageAdded(email, outboxMessage))
-  val attachmentListener = repositoryListeners.listenForAttachmentRequests(email,
-    attachmentRequest => attachmentActorRef ! AttachmentActor.AttachmentRequestAdded(email, attachmentRequest))
-
-  gmailWatcherActorRef ! GmailWatcherActor.StartWatch(email)
-
-  actorsClient.scheduleOnUserJobQueue(email, messageService.tagInbox(email))
-    .onSuccess { case result => Logger.info(s"Result of tagging inbox after new user setup $result for $email") }
+  val notificationDebouncerActorRef = createChildActor[NotificationDebouncerActor]
+
+  var listeners = List.empty[FirebaseCancellable]
+
+  /**
+   * Listeners, the Gmail watch and the first sync are started once the WarmUpActor grants a slot, the slot is released when
+   * that sync completes.
+   */
+  private def start(warmUpActor: ActorRef) = {
+    listeners = List(
+      repositoryListeners.listenForResidents(email,
+        resident => residentActorRef ! ResidentActor.ResidentAdded(email, resident),
+        resident => residentActorRef ! ResidentActor.ResidentRemoved(email, resident)),
+      repositoryListeners.listenForContacts(email,
+        contacts => contactActorRef ! ContactActor.AllContacts(email, contacts)),
+      repositoryListeners.listenForOutboxMessages(email,
+        outboxMessage => outboxActorRef ! OutboxActor.OutboxMessageAdded(email, outboxMessage)),
+      repositoryListeners.listenForAttachmentRequests(email,
+        attachmentRequest => attachmentActorRef ! AttachmentActor.AttachmentRequestAdded(email, attachmentRequest)),
+      repositoryListeners.listenForRefreshToken(email,
+        refreshToken => googleAuthorization.onRefreshTokenChanged(email, refreshToken)))
+
+    gmailWatcherActorRef ! GmailWatcherActor.StartWatch(email)
+
+    actorsClient.scheduleSyncOnUserJobQueue(email, SyncRequest(), messageService.sync(email, _))
+      .andThen { case _ => warmUpActor ! WarmUpActor.WarmedUp(email) }
+      .onSuccess { case result => Logger.info(s"Result of resuming the inbox sync after new user setup $result for $email") }
+  }
 
   Logger.info(s"Added user $email")
 
   override def receive: Receive = {
+    case UserSupervisorActor.Start if listeners.isEmpty =>
+      start(sender)
     case UserSupervisorActor.GetJobQueueActor(_) =>
       sender ! jobQueueActorRef
     case UserSupervisorActor.GetGmailThrottlerActor(_) =>
       sender ! gmailThrottlerActorRef
+    case msg@GmailThrottlerActor.AcquirePermit(_, _) =>
+      gmailThrottlerActorRef forward msg
     case msg@HistoryIdHolderActor.GetHistoryId(_) =>
       historyIdHolderActorRef forward msg
     case msg@HistoryIdHolderActor.SetHistoryId(_, _) =>
       historyIdHolderActorRef forward msg
+    case msg@NotificationDebouncerActor.Notify(_, _) =>
+      notificationDebouncerActorRef forward msg
   }
 
   override def postStop(): Unit = {
-    residentListener.cancel
-    contactListener.cancel
-    outboxListener.cancel
-    attachmentListener.cancel
+    listeners.foreach(_.cancel)
+    googleAuthorization.invalidate(email)
     Logger.info(s"Removed user $email")
   }
 
+  /**
+   * The listeners and the Gmail watch of the failed instance were stopped with it, they are started again with a new slot.
+   */
+  override def postRestart(reason: Throwable): Unit = {
+    super.postRestart(reason)
+    log.warning(s"Restarted the actors of $email after ${reason.getMessage}, warming it up again")
+    context.parent ! UserSupervisorActor.Restarted(email)
+  }
+
   private def createChildActor[T <: Actor : ClassTag]: ActorRef =
     context.actorOf(identity(Props(injector.instanceOf[T])))
 }
@@ -197,7 +353,7 @@ class ContactActor @Inject()(implicit exec: ExecutionContext, messageService: Me
   override def receive: Receive = {
     case ContactActor.AllContacts(email, contacts) =>
       Logger.info(s"AllContacts msg received in contact actor for $email")
-      actorsClient.scheduleOnUserJobQueue(email, messageService.tagInbox(email), Some("contact"))
+      actorsClient.scheduleSyncOnUserJobQueue(email, SyncRequest(full = true), messageService.sync(email, _))
         .onSuccess { case result => Logger.info(s"Result of tagging inbox after contact modification $result for $email") }
   }
 }
@@ -220,18 +376,19 @@ object AttachmentActor {
   case class AttachmentRequestAdded(email: Email, attachmentRequest: AttachmentRequest)
 }
 
-class AttachmentActor @Inject()(implicit exec: ExecutionContext, messageService: MessageService) extends Actor with ActorLogging {
+class AttachmentActor @Inject()(implicit exec: ExecutionContext, messageService: MessageService, actorsClient: ActorsClient) extends Actor with ActorLogging {
   override def receive: Receive = {
     case AttachmentActor.AttachmentRequestAdded(email, attachmentRequest) =>
-      messageService.prepareRequest(email, attachmentRequest)
+      // only reads the message, the phone gets its links without waiting for a sync in progress
+      actorsClient.scheduleOnUserJobQueue(email, messageService.prepareRequest(email, attachmentRequest), access = JobQueueActor.Shared)
         .onSuccess { case result => Logger.info(s"Result of attachment request $result") }
   }
 }
 
 object HistoryIdHolderActor {
   final val actorName = "historyIdHolderActor"
-  case class GetHistoryId(email: Email)
-  case class SetHistoryId(email: Email, newHistoryId: Option[BigInt])
+  case class GetHistoryId(email: Email) extends UserMessage
+  case class SetHistoryId(email: Email, newHistoryId: Option[BigInt]) extends UserMessage
   case class HistoryIdValue(historyId: Option[BigInt])
 }
 
@@ -0,0 +1,123 @@
+package services
+
+import java.net.URLEncoder
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.Base64
+import javax.inject.{Inject, Singleton}
+
+import akka.NotUsed
+import akka.stream.scaladsl.Source
+import akka.util.ByteString
+import common._
+import conf.AppConf
+import model.GmailMessage
+import play.api.libs.crypto.CookieSigner
+import services.Repository.AttachmentLink
+
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.Try
+
+/**
+ * Serves the attachments through the backend so that the access token of the user is never handed to the phone. The links saved
+ * in Firebase point to the attachment endpoint and carry a signed token, valid for a limited time, in place of the access token.
+ */
+@Singleton
+class AttachmentProxy @Inject()(implicit exec: ExecutionContext, appConf: AppConf, cookieSigner: CookieSigner, gmailClient: GmailClient) {
+
+  /**
+   * None when no public url of the backend is configured, the attachments are then linked straight to Gmail.
+   */
+  def links(email: Email, message: GmailMessage, now: Long = System.currentTimeMillis): Option[List[AttachmentLink]] =
+    appConf.getPublicUrl.map { publicUrl =>
+      val expiration = now + appConf.getAttachmentTokenTtlSeconds * 1000L
+      message.attachments.map { attachment =>
+        // the phone appends the token and the mime type as query parameters
+        val url = publicUrl.stripSuffix("/") + List(email, message.id, attachment.bodyAttachmentId).map(URLEncoder.encode(_, "UTF-8")).mkString("/attachments/", "/", "")
+        val thumbnailUrl = Some(s"$url/thumbnails/${ThumbnailCache.ListSize}").filter(_ => ThumbnailCache.isImage(attachment.mimeType))
+        AttachmentLink(attachment.partId, url, token(email, message.id, attachment.bodyAttachmentId, attachment.mimeType, expiration), attachment.mimeType, thumbnailUrl)
+      }
+    }
+
+  def token(email: Email, messageId: MessageId, attachmentId: String, mimeType: String, expiration: Long): String =
+    s"$expiration-${cookieSigner.sign(s"$email/$messageId/$attachmentId/$mimeType/$expiration")}"
+
+  def verify(email: Email, messageId: MessageId, attachmentId: String, mimeType: String, token: String, now: Long = System.currentTimeMillis): Boolean =
+    token.split("-", 2) match {
+      case Array(expirationValue, _) =>
+        Try(expirationValue.toLong).toOption.exists { expiration =>
+          val expected = this.token(email, messageId, attachmentId, mimeType, expiration)
+          expiration > now && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))
+        }
+      case _ => false
+    }
+
+  /**
+   * The base64url encoded data of the attachment, None when the message or the attachment no longer exists.
+   */
+  def getData(email: Email, messageId: MessageId, attachmentId: String): Future[Option[String]] =
+    gmailClient.getAttachment(email, messageId, attachmentId)
+      .map(body => Option(body.getData))
+      .recover { case e if GmailClient.isNotFound(e) => None }
+}
+
+object AttachmentProxy {
+
+  // a multiple of 4 so that every chunk but the last one decodes to whole bytes
+  val ChunkChars = 64 * 1024
+
+  /**
+   * Byte range of the decoded data, end included.
+   */
+  case class ByteRange(start: Long, end: Long) {
+    def length = end - start + 1
+  }
+
+  def decodedLength(data: String): Long = {
+    val chars = data.length - data.reverseIterator.takeWhile(_ == '=').size
+    chars / 4 * 3L + (chars % 4 match {
+      case 2 => 1
+      case 3 => 2
+      case _ => 0
+    })
+  }
+
+  /**
+   * Single range of a Range header, following https://tools.ietf.org/html/rfc7233#section-2.1. None when the header is missing
+   * or can not be honored, Some(None) when the range is not satisfiable.
+   */
+  def parseRange(header: Option[String], length: Long): Option[Option[ByteRange]] = {
+    val SingleRange = """bytes=(\d*)-(\d*)""".r
+    header.map(_.trim).collect {
+      case SingleRange(start, end) if start.nonEmpty || end.nonEmpty =>
+        val range = if (start.isEmpty) {
+          ByteRange((length - end.toLong).max(0), length - 1)
+        } else {
+          ByteRange(start.toLong, if (end.isEmpty) length - 1 else end.toLong.min(length - 1))
+        }
+        Some(range).filter(range => range.start <= range.end && range.start < length)
+    }
+  }
+
+  /**
+   * Decodes the requested range of the data chunk by chunk while it is sent.
+   */
+  def decodedSource(data: String, range: ByteRange): Source[ByteString, NotUsed] = {
+    val firstChar = (range.start / 3 * 4).toInt
+    val lastChar = ((range.end / 3 + 1) * 4).min(data.length.toLong).toInt
+    val decoder = Base64.getUrlDecoder
+    Source.fromIterator(() => (firstChar until lastChar by ChunkChars).iterator).map { offset =>
+      val chunkEnd = (offset + ChunkChars).min(lastChar)
+      val bytes = ByteString(decoder.decode(data.substring(offset, chunkEnd)))
+      val first = if (offset == firstChar) (range.start % 3).toInt else 0
+      val decodedChunkStart = offset / 4 * 3L
+      val last = (range.end + 1 - decodedChunkStart).min(bytes.length).toInt
+      bytes.slice(first, last)
+    }
+  }
+
+  def entityTag(messageId: MessageId, attachmentId: String): String = {
+    val digest = MessageDigest.getInstance("SHA-1").digest(s"$messageId/$attachmentId".getBytes(StandardCharsets.UTF_8))
+    "\"" + digest.map("%02x".format(_)).mkString + "\""
+  }
+}
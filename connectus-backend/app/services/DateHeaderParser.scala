@@ -0,0 +1,152 @@
+package services
+
+import java.time.{Month, Year, ZoneOffset, ZonedDateTime}
+
+/**
+ * Parser of the Date header following the RFC 2822 date-time syntax and its obsolete forms: optional and full day names,
+ * folding whitespace and comments anywhere, two and three digit years, optional seconds, alphabetic and missing zones.
+ * Invalid dates are rejected without throwing, every message of a sync goes through it.
+ */
+object DateHeaderParser {
+
+  private val Months = Array("jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec")
+
+  private val ObsoleteZones = Map(
+    "UT" -> 0, "UTC" -> 0, "GMT" -> 0, "Z" -> 0,
+    "EST" -> -5, "EDT" -> -4,
+    "CST" -> -6, "CDT" -> -5,
+    "MST" -> -7, "MDT" -> -6,
+    "PST" -> -8, "PDT" -> -7)
+    .map { case (name, hours) => name -> ZoneOffset.ofHours(hours) }
+
+  private val MaxOffsetSeconds = 18 * 3600
+
+  def parse(date: String): Option[ZonedDateTime] = {
+    val cursor = new Cursor(date)
+    cursor.skipWhitespaceAndComments()
+    if (cursor.isLetter) {
+      cursor.word()
+      cursor.skipWhitespaceAndComments()
+    }
+    cursor.accept(',')
+    cursor.skipWhitespaceAndComments()
+
+    val day = cursor.number(2)
+    cursor.skipSeparators()
+    val month = monthOf(cursor.word())
+    cursor.skipSeparators()
+    val year = yearOf(cursor.number(4), cursor.lastDigits)
+    cursor.skipWhitespaceAndComments()
+
+    val hour = cursor.number(2)
+    val hasMinute = cursor.skipWhitespaceAndComments().accept(':')
+    val minute = cursor.skipWhitespaceAndComments().number(2)
+    val second = if (cursor.skipWhitespaceAndComments().accept(':')) cursor.skipWhitespaceAndComments().number(2) else 0
+    cursor.skipFraction()
+    val offset = zoneOf(cursor.skipWhitespaceAndComments())
+
+    val valid = day >= 1 && month >= 1 && year >= 0 && hasMinute && between(hour, 0, 23) && between(minute, 0, 59) && between(second, 0, 60) &&
+      day <= Month.of(month).length(Year.isLeap(year)) && offset.isDefined
+    if (valid) {
+      // a leap second is kept in the same minute
+      Some(ZonedDateTime.of(year, month, day, hour, minute, second.min(59), 0, offset.get))
+    } else {
+      None
+    }
+  }
+
+  private def between(value: Int, min: Int, max: Int) = value >= min && value <= max
+
+  private def monthOf(name: String): Int =
+    if (name.length < 3) -1 else Months.indexOf(name.substring(0, 3).toLowerCase) + 1
+
+  private def yearOf(year: Int, digits: Int): Int = digits match {
+    case 2 if year < 50 => 2000 + year
+    case 2 | 3 => 1900 + year
+    case 4 => year
+    case _ => -1
+  }
+
+  /**
+   * An absent or unknown zone stands for -0000 as defined by the RFC, i.e. an unknown local time taken as UTC.
+   */
+  private def zoneOf(cursor: Cursor): Option[ZoneOffset] =
+    if (cursor.accept('+')) {
+      cursor.offset(1)
+    } else if (cursor.accept('-')) {
+      cursor.offset(-1)
+    } else if (cursor.isLetter) {
+      Some(ObsoleteZones.getOrElse(cursor.word().toUpperCase, ZoneOffset.UTC))
+    } else {
+      Some(ZoneOffset.UTC)
+    }
+
+  private final class Cursor(s: String) {
+    private var i = 0
+    var lastDigits = 0
+
+    def isLetter = i < s.length && Character.isLetter(s.charAt(i))
+
+    def accept(c: Char): Boolean =
+      if (i < s.length && s.charAt(i) == c) {
+        i += 1
+        true
+      } else {
+        false
+      }
+
+    def word(): String = {
+      val start = i
+      while (isLetter) i += 1
+      s.substring(start, i)
+    }
+
+    /**
+     * Reads at most maxDigits digits, -1 when there is none.
+     */
+    def number(maxDigits: Int): Int = {
+      var value = 0
+      lastDigits = 0
+      while (lastDigits < maxDigits && i < s.length && Character.isDigit(s.charAt(i))) {
+        value = value * 10 + (s.charAt(i) - '0')
+        lastDigits += 1
+        i += 1
+      }
+      if (lastDigits == 0) -1 else value
+    }
+
+    def offset(sign: Int): Option[ZoneOffset] = {
+      val hours = number(2)
+      val hoursDigits = lastDigits
+      accept(':')
+      val minutes = number(2)
+      val seconds = sign * (hours * 3600 + minutes * 60)
+      if (hoursDigits == 2 && lastDigits == 2 && minutes < 60 && Math.abs(seconds) <= MaxOffsetSeconds) Some(ZoneOffset.ofTotalSeconds(seconds)) else None
+    }
+
+    def skipFraction(): Unit =
+      if (accept('.')) number(9)
+
+    def skipSeparators(): Unit = {
+      skipWhitespaceAndComments()
+      if (accept('-')) skipWhitespaceAndComments()
+    }
+
+    def skipWhitespaceAndComments(): Cursor = {
+      var depth = 0
+      var skipping = true
+      while (skipping && i < s.length) {
+        s.charAt(i) match {
+          case '(' => depth += 1
+          case ')' if depth > 0 => depth -= 1
+          case '\\' if depth > 0 => i += 1
+          case c if depth > 0 || Character.isWhitespace(c) =>
+          case _ => skipping = false
+        }
+        if (skipping) i += 1
+      }
+      this
+    }
+  }
+
+}
@@ -4,14 +4,102 @@ import javax.inject.{Inject, Singleton}
 
 import com.firebase.client.Firebase.{AuthResultHandler, CompletionListener}
 import com.firebase.client.{Firebase, _}
+import common._
+import play.api.Logger
 
-import scala.concurrent.Promise
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.collection.JavaConverters._
 
 trait FirebaseCancellable {
   def cancel: Unit
 }
 
+case class FirebaseWriteSettings(maxPaths: Int, maxBytes: Int, parallelism: Int)
+
+object FirebaseFutureWrappers {
+
+  /**
+   * Packs the groups into chunks of at most maxPaths paths and maxBytes bytes, a group is only split when it exceeds the limits on
+   * its own. The groups are pulled from the iterator as the chunks are consumed.
+   */
+  def chunk(groups: Iterator[Map[String, AnyRef]], maxPaths: Int, maxBytes: Int): Iterator[Map[String, AnyRef]] = {
+    val splitGroups = groups.flatMap(group => if (exceedsLimits(group, maxPaths, maxBytes)) split(group, maxPaths, maxBytes) else Iterator(group)).buffered
+    new Iterator[Map[String, AnyRef]] {
+      override def hasNext = splitGroups.hasNext
+      override def next() = {
+        var chunk = splitGroups.next()
+        var chunkBytes = size(chunk)
+        while (splitGroups.hasNext && chunk.size + splitGroups.head.size <= maxPaths && chunkBytes + size(splitGroups.head) <= maxBytes) {
+          val group = splitGroups.next()
+          chunk = chunk ++ group
+          chunkBytes += size(group)
+        }
+        chunk
+      }
+    }
+  }
+
+  def exceedsLimits(group: Map[String, AnyRef], maxPaths: Int, maxBytes: Int): Boolean = group.size > maxPaths || size(group) > maxBytes
+
+  private def split(group: Map[String, AnyRef], maxPaths: Int, maxBytes: Int): Iterator[Map[String, AnyRef]] =
+    chunk(group.iterator.map(Map(_)), maxPaths, maxBytes)
+
+  /**
+   * Writes the groups with one update per chunk, each group being written atomically unless it exceeds the chunk
+   * limits on its own. The paths of such a group selected by deferred are held back and only written once every other chunk
+   * succeeded, so that a path recording that the group was written, an index entry for instance, never lands without the rest
+   * of the group. At most parallelism chunks are in flight, the next groups are pulled from the iterator only when a chunk
+   * completes. Once a chunk is rejected no other chunk is started and the returned Future fails with its error.
+   */
+  def updateInChunks(groups: Iterator[Map[String, AnyRef]], settings: FirebaseWriteSettings, deferred: String => Boolean)(update: Map[String, AnyRef] => Future[Unit])(implicit exec: ExecutionContext): Future[Unit] = {
+    var deferredGroups = List.empty[Map[String, AnyRef]]
+    val immediateGroups = groups.map { group =>
+      if (exceedsLimits(group, settings.maxPaths, settings.maxBytes)) {
+        val (deferredPaths, immediatePaths) = group.partition { case (path, _) => deferred(path) }
+        if (deferredPaths.nonEmpty) deferredGroups = deferredPaths :: deferredGroups
+        immediatePaths
+      } else {
+        group
+      }
+    }.filter(_.nonEmpty)
+    for {
+      _ <- updateChunks(immediateGroups, settings)(update)
+      _ <- updateChunks(deferredGroups.reverseIterator, settings)(update)
+    } yield ()
+  }
+
+  private def updateChunks(groups: Iterator[Map[String, AnyRef]], settings: FirebaseWriteSettings)(update: Map[String, AnyRef] => Future[Unit])(implicit exec: ExecutionContext): Future[Unit] = {
+    val chunks = chunk(groups, settings.maxPaths, settings.maxBytes)
+    @volatile var failed = false
+
+    def nextChunk = chunks.synchronized {
+      if (!failed && chunks.hasNext) Some(chunks.next()) else None
+    }
+
+    def writeChunks(): Future[Unit] = nextChunk.fold(fs(())) { chunk =>
+      val start = System.nanoTime
+      update(chunk)
+        .andThen {
+          case scala.util.Success(_) =>
+            Logger.debug(s"Wrote a chunk of ${chunk.size} paths in ${(System.nanoTime - start) / 1000000} ms")
+          case scala.util.Failure(e) =>
+            failed = true
+            Logger.warn(s"Chunk of ${chunk.size} paths rejected after ${(System.nanoTime - start) / 1000000} ms", e)
+        }
+        .flatMap(_ => writeChunks())
+    }
+
+    Future.sequence(List.fill(settings.parallelism)(writeChunks())).map(_ => ())
+  }
+
+  private def size(values: Map[String, AnyRef]): Int = values.iterator.map { case (path, value) => size(path, value) }.sum
+
+  /**
+   * An estimate of the size of a path in the JSON payload sent to Firebase.
+   */
+  private def size(path: String, value: AnyRef): Int = path.length + Option(value).fold(4)(_.toString.length) + 6
+}
+
 @Singleton
 class FirebaseFutureWrappers @Inject()(environmentHelper: EnvironmentHelper) {
 
@@ -38,6 +126,12 @@ class FirebaseFutureWrappers @Inject()(environmentHelper: EnvironmentHelper) {
     promise.future
   }
 
+  /**
+   * Writes the groups with one updateChildren call per chunk, see FirebaseFutureWrappers.updateInChunks.
+   */
+  def updateChildrenInChunksFuture(url: String, groups: Iterator[Map[String, AnyRef]], settings: FirebaseWriteSettings, deferred: String => Boolean)(implicit exec: ExecutionContext): Future[Unit] =
+    FirebaseFutureWrappers.updateInChunks(groups, settings, deferred)(updateChildrenFuture(url, _))
+
   def setValueFuture(url: String, value: AnyRef) = {
     val promise = Promise[Unit]
     new Firebase(url).setValue(value, new CompletionListener {
@@ -0,0 +1,34 @@
+package services
+
+import java.io.IOException
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback
+import com.google.api.client.googleapis.json.GoogleJsonError
+import com.google.api.client.http.HttpHeaders
+import com.google.api.services.gmail.{Gmail, GmailRequest}
+
+import scala.collection.mutable
+import scala.util.{Failure, Success, Try}
+
+class GmailBatchException(val error: GoogleJsonError) extends IOException(error.getMessage)
+
+/**
+ * https://developers.google.com/gmail/api/guides/batch
+ */
+object GmailBatch {
+  // "larger batches are likely to trigger rate limiting"
+  val MaxSize = 50
+
+  def execute[T](gmail: Gmail, requests: List[GmailRequest[T]]): List[Try[T]] = {
+    val responses = mutable.Map[Int, Try[T]]()
+    val batch = gmail.batch()
+    requests.zipWithIndex.foreach { case (request, index) =>
+      request.queue(batch, new JsonBatchCallback[T] {
+        override def onSuccess(response: T, responseHeaders: HttpHeaders): Unit = responses(index) = Success(response)
+        override def onFailure(error: GoogleJsonError, responseHeaders: HttpHeaders): Unit = responses(index) = Failure(new GmailBatchException(error))
+      })
+    }
+    batch.execute()
+    requests.indices.map(index => responses.getOrElse(index, Failure(new IllegalStateException(s"No response received for request $index of the batch")))).toList
+  }
+}
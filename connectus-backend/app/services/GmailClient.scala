@@ -8,22 +8,49 @@ import javax.mail.internet.{InternetAddress, MimeMessage}
 
 import conf.AppConf
 import common._
+import com.google.api.client.googleapis.json.GoogleJsonResponseException
 import com.google.api.client.util.Base64
 import com.google.api.services.gmail.model._
-import com.google.api.services.gmail.{Gmail, GmailRequest}
+import com.google.api.services.gmail.Gmail
 
 import scala.collection.JavaConverters._
 import scala.concurrent._
 import scala.language.postfixOps
 
-@Singleton
-class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, googleAuthorization: GoogleAuthorization, gmailThrottlerClient: GmailThrottlerClient) {
+object GmailClient {
+  // https://developers.google.com/gmail/api/v1/reference/users/messages/batchModify
+  val BatchModifyMaxIds = 1000
+
+  // https://developers.google.com/gmail/api/v1/reference/users/threads/get, the format of the messages
+  object Format {
+    val Minimal = "minimal"
+    val Metadata = "metadata"
+    val Full = "full"
+  }
 
-  private def seq[R <: GmailRequest[T], T](requests: List[R], mapper: R => Future[T]): Future[List[T]] = {
-    val results = requests.map(mapper(_))
-    Future.sequence(results)
+  // https://developers.google.com/gmail/api/guides/performance#partial_response, the fields of the responses actually read
+  object Fields {
+    val ListThreads = "nextPageToken,threads(id,historyId,snippet)"
+    val ListMessages = "nextPageToken,messages(id)"
+    val ThreadMessageIds = "id,messages(id)"
+    val Thread = "id,historyId,snippet,messages(id,threadId,historyId,labelIds,snippet,payload)"
+    val Message = "id,threadId,historyId,labelIds,snippet,payload"
+    val MinimalThread = "id,historyId,snippet,messages(id,historyId,labelIds,snippet)"
+    val MessageHistoryId = "id,threadId,historyId"
+    val LastHistoryId = "historyId"
+    val ListHistory = "nextPageToken,historyId,history(id,messages/threadId,messagesAdded/message/threadId,messagesDeleted/message/threadId,labelsAdded/message/threadId,labelsRemoved/message/threadId)"
   }
 
+  def isNotFound(e: Throwable): Boolean = e match {
+    case e: GoogleJsonResponseException => e.getStatusCode == 404
+    case e: GmailBatchException => e.error.getCode == 404
+    case _ => false
+  }
+}
+
+@Singleton
+class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, googleAuthorization: GoogleAuthorization, gmailThrottlerClient: GmailThrottlerClient) {
+
   def watch(userId: String, labelIds: List[String]): Future[WatchResponse] = {
     for {
       gmail <- googleAuthorization.getService(userId)
@@ -62,30 +89,37 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
     gmailThrottlerClient.scheduleCreateLabel(userId, request)
   }
 
-  def addLabels(userId: String, query: String, labelIds: List[String]): Future[List[Thread]] =
+  def addLabelsToThreads(userId: String, threadIds: List[String], labelIds: List[String]): Future[Unit] =
     for {
       gmail <- googleAuthorization.getService(userId)
-      threads <- listThreads(userId, query)
-      messages <- addLabels(userId, gmail, threads, labelIds)
-    } yield messages
-
-  private def addLabels(userId: String, gmail: Gmail, threads: List[Thread], labelIds: List[String]): Future[List[Thread]] = {
-    val modifyThreadRequest = new ModifyThreadRequest().setAddLabelIds(labelIds.asJava)
-    val requests = threads.map(pm => gmail.users().threads().modify(userId, pm.getId, modifyThreadRequest))
-    seq[Gmail#Users#Threads#Modify, Thread](requests, gmailThrottlerClient.scheduleModifyThread(userId, _))
-  }
+      _ <- modifyThreads(userId, gmail, threadIds, labelIds, List())
+    } yield ()
 
-  def removeLabels(userId: String, query: String, labelIds: List[String]): Future[List[Thread]] =
+  def modifyMessages(userId: String, messageIds: List[String], addLabelIds: List[String], removeLabelIds: List[String]): Future[Unit] =
     for {
       gmail <- googleAuthorization.getService(userId)
-      threads <- listThreads(userId, query)
-      messages <- removeLabels(userId, gmail, threads, labelIds)
-    } yield messages
+      _ <- batchModifyMessages(userId, gmail, messageIds, addLabelIds, removeLabelIds)
+    } yield ()
+
+  /**
+   * Same outcome as a threads.modify per thread: the message ids of the threads are fetched in HTTP batches and then modified
+   * by messages.batchModify, up to 1000 messages at once.
+   */
+  private def modifyThreads(userId: String, gmail: Gmail, threadIds: List[String], addLabelIds: List[String], removeLabelIds: List[String]): Future[Unit] = {
+    val requests = threadIds.map(threadId => gmail.users.threads.get(userId, threadId).setFormat(GmailClient.Format.Minimal).setFields(GmailClient.Fields.ThreadMessageIds))
+    for {
+      threads <- gmailThrottlerClient.scheduleBatchGetThread(userId, gmail, requests)
+      messageIds = threads.flatMap(thread => Option(thread.getMessages).fold[List[Message]](List())(_.asScala.toList)).map(_.getId)
+      _ <- batchModifyMessages(userId, gmail, messageIds, addLabelIds, removeLabelIds)
+    } yield ()
+  }
 
-  private def removeLabels(userId: String, gmail: Gmail, threads: List[Thread], labelIds: List[String]): Future[List[Thread]] = {
-    val modifyThreadRequest = new ModifyThreadRequest().setRemoveLabelIds(labelIds.asJava)
-    val requests = threads.map(pm => gmail.users().threads().modify(userId, pm.getId, modifyThreadRequest))
-    seq[Gmail#Users#Threads#Modify, Thread](requests, gmailThrottlerClient.scheduleModifyThread(userId, _))
+  private def batchModifyMessages(userId: String, gmail: Gmail, messageIds: List[String], addLabelIds: List[String], removeLabelIds: List[String]): Future[Unit] = {
+    val requests = messageIds.grouped(GmailClient.BatchModifyMaxIds).toList.map { ids =>
+      val batchModifyRequest = new BatchModifyMessagesRequest().setIds(ids.asJava).setAddLabelIds(addLabelIds.asJava).setRemoveLabelIds(removeLabelIds.asJava)
+      gmail.users.messages.batchModify(userId, batchModifyRequest)
+    }
+    Future.sequence(requests.map(gmailThrottlerClient.scheduleBatchModifyMessages(userId, _))).map(_ => ())
   }
 
   def deleteLabel(userId: String, labelId: String): Future[Unit] =
@@ -102,12 +136,11 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
   def listThreads(userId: String, query: String): Future[List[Thread]] =
     for {
       gmail <- googleAuthorization.getService(userId)
-      request = gmail.users.threads.list(userId).setQ(query)
       threads <- listThreads(userId, gmail, query)
     } yield threads
 
   private def listThreads(userId: String, gmail: Gmail, query: String): Future[List[Thread]] = {
-    val request = gmail.users.threads.list(userId).setQ(query)
+    val request = gmail.users.threads.list(userId).setQ(query).setFields(GmailClient.Fields.ListThreads)
     foldListThreads(userId, request)
   }
 
@@ -118,15 +151,20 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
     })
 
   def listMessagesOfThread(userId: String, threadId: String): Future[List[Message]] =
+    getThread(userId, threadId).map(thread => Option(thread.getMessages).fold[List[Message]](List())(_.asScala.toList))
+
+  def getThread(userId: String, threadId: String, format: String = GmailClient.Format.Full): Future[Thread] =
     for {
       gmail <- googleAuthorization.getService(userId)
-      partialMessages <- listMessagesOfThread(userId, gmail, threadId)
-      messages <- getMessages(userId, gmail, partialMessages)
-    } yield messages
-
-  private def listMessagesOfThread(userId: String, gmail: Gmail, threadId: String): Future[List[Message]] = {
-    val request = gmail.users.threads.get(userId, threadId)
-    gmailThrottlerClient.scheduleGetThread(userId, request).map(_.getMessages.asScala.toList)
+      thread <- getThread(userId, gmail, threadId, format)
+    } yield thread
+
+  private def getThread(userId: String, gmail: Gmail, threadId: String, format: String): Future[Thread] = {
+    // threads.get returns every message of the thread in the requested format
+    val request = gmail.users.threads.get(userId, threadId).setFormat(format)
+    if (format == GmailClient.Format.Full) request.setFields(GmailClient.Fields.Thread)
+    if (format == GmailClient.Format.Minimal) request.setFields(GmailClient.Fields.MinimalThread)
+    gmailThrottlerClient.scheduleGetThread(userId, request)
   }
 
   def listMessages(userId: String, query: String): Future[List[Message]] =
@@ -136,25 +174,32 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
       messages <- getMessages(userId, gmail, partialMessages)
     } yield messages
 
+  def getMessages(userId: String, messageIds: List[String]): Future[List[Message]] =
+    for {
+      gmail <- googleAuthorization.getService(userId)
+      messages <- getMessages(userId, gmail, messageIds.map(new Message().setId(_)))
+    } yield messages
+
   private def getMessages(userId: String, gmail: Gmail, partialMessages: List[Message]): Future[List[Message]] = {
-    val messagesRequests = partialMessages.map(pm => gmail.users.messages.get(userId, pm.getId))
-    seq[Gmail#Users#Messages#Get, Message](messagesRequests, gmailThrottlerClient.scheduleGetMessage(userId, _))
+    val messagesRequests = partialMessages.map(pm => gmail.users.messages.get(userId, pm.getId).setFormat(GmailClient.Format.Full).setFields(GmailClient.Fields.Message))
+    gmailThrottlerClient.scheduleBatchGetMessage(userId, gmail, messagesRequests)
   }
 
-  def getMessage(userId: String, messageId: String): Future[Message] =
+  def getMessage(userId: String, messageId: String, format: String = GmailClient.Format.Full): Future[Message] =
     for {
       gmail <- googleAuthorization.getService(userId)
       partialMessage = new Message().setId(messageId)
-      messages <- getMessage(userId, gmail, partialMessage)
+      messages <- getMessage(userId, gmail, partialMessage, format)
     } yield messages
 
-  private def getMessage(userId: String, gmail: Gmail, partialMessage: Message): Future[Message] = {
-    val request = gmail.users.messages.get(userId, partialMessage.getId)
+  private def getMessage(userId: String, gmail: Gmail, partialMessage: Message, format: String): Future[Message] = {
+    val request = gmail.users.messages.get(userId, partialMessage.getId).setFormat(format)
+    if (format == GmailClient.Format.Minimal) request.setFields(GmailClient.Fields.MessageHistoryId)
     gmailThrottlerClient.scheduleGetMessage(userId, request)
   }
 
   private def listMessages(userId: String, gmail: Gmail, query: String): Future[List[Message]] = {
-    val request = gmail.users.messages.list(userId).setQ(query)
+    val request = gmail.users.messages.list(userId).setQ(query).setFields(GmailClient.Fields.ListMessages)
     foldListMessages(userId, request)
   }
 
@@ -168,7 +213,8 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
     for {
       gmail <- googleAuthorization.getService(userId)
       partialMessage <- reply(userId, gmail, threadId, toAddress, personal, subject, content)
-      message <- getMessage(userId, gmail, partialMessage)
+      // only the historyId of the sent message is read
+      message <- getMessage(userId, gmail, partialMessage, GmailClient.Format.Minimal)
     } yield message
 
   private def reply(userId: String, gmail: Gmail, threadId: String, toAddress: String, personal: String, subject: String, content: String): Future[Message] = {
@@ -205,7 +251,7 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
     } yield result
 
   private def lastHistory(userId: String, gmail: Gmail, startHistoryId: BigInt): Future[ListHistoryResponse] = {
-    val request = gmail.users.history().list(userId)
+    val request = gmail.users.history().list(userId).setFields(GmailClient.Fields.LastHistoryId)
     request.setStartHistoryId(startHistoryId.bigInteger)
     gmailThrottlerClient.scheduleListHistory(userId, request)
   }
@@ -217,7 +263,7 @@ class GmailClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, g
     } yield result
 
   private def listHistory(userId: String, gmail: Gmail, startHistoryId: BigInt): Future[List[History]] = {
-    val request = gmail.users.history().list(userId)
+    val request = gmail.users.history().list(userId).setFields(GmailClient.Fields.ListHistory)
     request.setStartHistoryId(startHistoryId.bigInteger)
     foldListHistory(userId, request)
   }
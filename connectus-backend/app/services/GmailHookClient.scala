@@ -11,12 +11,12 @@ import play.api.libs.json.Json
 import scala.concurrent.{ExecutionContext, Future}
 
 @Singleton
-class GmailHookClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, actorsClient: ActorsClient, messageService: MessageService) {
+class GmailHookClient @Inject()(implicit exec: ExecutionContext, appConf: AppConf, actorsClient: ActorsClient) {
 
   def scheduleTagInbox(notification: Notification) =
     parse(notification).flatMap(gmailNotificationMessage => {
       val email = gmailNotificationMessage.emailAddress
-      actorsClient.scheduleOnUserJobQueue(email, messageService.tagInbox(email, gmailNotificationMessage.historyId))
+      actorsClient.scheduleNotifiedSync(email, BigInt(gmailNotificationMessage.historyId))
     })
 
   private def parse(notification: Notification): Future[GmailNotificationMessage] = {
@@ -1,17 +1,23 @@
 package services
 
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.{Inject, Named, Singleton}
 
 import akka.actor.{Actor, ActorRef, Props, _}
-import akka.contrib.throttle.Throttler.{SetTarget, _}
-import akka.contrib.throttle.TimerBasedThrottler
 import akka.pattern.{ask, pipe}
 import com.google.api.services.gmail.{Gmail, GmailRequest}
-import common.Email
+import common._
+import conf.AppConf
 import services.GmailRequests.{GetMessageAttachmentRequestMsg, _}
+import services.GmailThrottlerActor.PendingRequest
+import services.support.TokenBucket
 
+import scala.collection.immutable.Queue
 import scala.concurrent._
+import scala.concurrent.duration.FiniteDuration
 import scala.language.postfixOps
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
 
 object GmailRequests {
   case class ListHistoryRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
@@ -23,6 +29,7 @@ object GmailRequests {
   case class GetMessageRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
   case class ListMessagesRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
   case class ModifyMessageRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
+  case class BatchModifyMessagesRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
   case class SendMessageRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
   case class GetThreadRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
   case class ListThreadsRequestMsg(request: () => Future[_], client: Option[ActorRef] = None)
@@ -31,126 +38,244 @@ object GmailRequests {
 }
 
 @Singleton
-class GmailThrottlerClient @Inject()(implicit exec: ExecutionContext, actorsClient: ActorsClient) {
+class GmailThrottlerClient @Inject()(implicit exec: ExecutionContext, actorsClient: ActorsClient, metrics: Metrics) {
   implicit val timeout = Timeouts.oneMinute
 
-  def schedule[T](email: Email, request: GmailRequest[T], msgBuilder: (() => Future[_], Option[ActorRef]) => Any): Future[Option[T]] = {
-    def execute[T](request: => GmailRequest[T]) = () => Future {concurrent.blocking {request.execute}}
-    actorsClient.getGmailThrottlerActor(email).flatMap { actorRef => (actorRef ? msgBuilder(execute(request), None)).mapTo[Option[T]] }
+  def schedule[T](email: Email, request: GmailRequest[T], method: String, msgBuilder: (() => Future[_], Option[ActorRef]) => Any): Future[Option[T]] =
+    scheduleExecution(email, () => Future {concurrent.blocking {request.execute}}, method, msgBuilder)
+
+  /**
+   * Records the duration and the outcome of the execution once released by the throttler, labelled with the name of the Gmail
+   * method.
+   */
+  def scheduleExecution[T](email: Email, execution: () => Future[T], method: String, msgBuilder: (() => Future[_], Option[ActorRef]) => Any): Future[Option[T]] =
+    throttle(email, method, msgBuilder) { () =>
+      val startedAt = System.nanoTime
+      metrics.gmailRequests.labels(email, method).inc()
+      val response = try execution() catch {case NonFatal(e) => ff(e)}
+      response.andThen { case result =>
+        metrics.gmailRequestDuration.labels(email, method).observe(Metrics.seconds(System.nanoTime - startedAt))
+        if (result.isFailure) metrics.gmailRequestErrors.labels(email, method).inc()
+      }
+    }
+
+  /**
+   * Runs the execution once the throttler releases it, recording the requests queued and the time they spent waiting.
+   */
+  private def throttle[T](email: Email, method: String, msgBuilder: (() => Future[_], Option[ActorRef]) => Any)(execution: () => Future[T]): Future[Option[T]] = {
+    val queued = metrics.gmailThrottlerQueued.labels(email)
+    val queuedAt = System.nanoTime
+    val dequeued = new AtomicBoolean(false)
+    def dequeue() = if (dequeued.compareAndSet(false, true)) queued.dec()
+    queued.inc()
+
+    val releasedExecution = () => {
+      dequeue()
+      metrics.gmailThrottlerWait.labels(email, method).observe(Metrics.seconds(System.nanoTime - queuedAt))
+      try execution() catch {case NonFatal(e) => ff(e)}
+    }
+    actorsClient.getGmailThrottlerActor(email)
+      .flatMap { actorRef => (actorRef ? msgBuilder(releasedExecution, None)).mapTo[Option[T]] }
+      .andThen { case _ => dequeue() }
   }
 
-  def scheduleListHistory(email: Email, request: Gmail#Users#History#List) = schedule(email, request, ListHistoryRequestMsg.apply).map(_.get)
-  def scheduleCreateLabel(email: Email, request: Gmail#Users#Labels#Create) = schedule(email, request, CreateLabelRequestMsg.apply).map(_.get)
-  def scheduleDeleteLabel(email: Email, request: Gmail#Users#Labels#Delete) = schedule(email, request, DeleteLabelRequestMsg.apply).map(_ => ())
-  def scheduleGetLabel(email: Email, request: Gmail#Users#Labels#Get) = schedule(email, request, GetLabelRequestMsg.apply).map(_.get)
-  def scheduleListLabels(email: Email, request: Gmail#Users#Labels#List) = schedule(email, request, ListLabelsRequestMsg.apply).map(_.get)
-  def scheduleGetMessageAttachment(email: Email, request: Gmail#Users#Messages#Attachments#Get) = schedule(email, request, GetMessageAttachmentRequestMsg.apply).map(_.get)
-  def scheduleGetMessage(email: Email, request: Gmail#Users#Messages#Get) = schedule(email, request, GetMessageRequestMsg.apply).map(_.get)
-  def scheduleListMessages(email: Email, request: Gmail#Users#Messages#List) = schedule(email, request, ListMessagesRequestMsg.apply).map(_.get)
-  def scheduleModifyMessage(email: Email, request: Gmail#Users#Messages#Modify) = schedule(email, request, ModifyMessageRequestMsg.apply).map(_.get)
-  def scheduleSendMessage(email: Email, request: Gmail#Users#Messages#Send) = schedule(email, request, SendMessageRequestMsg.apply).map(_.get)
-  def scheduleGetThread(email: Email, request: Gmail#Users#Threads#Get) = schedule(email, request, GetThreadRequestMsg.apply).map(_.get)
-  def scheduleListThreads(email: Email, request: Gmail#Users#Threads#List) = schedule(email, request, ListThreadsRequestMsg.apply).map(_.get)
-  def scheduleModifyThread(email: Email, request: Gmail#Users#Threads#Modify) = schedule(email, request, ModifyThreadRequestMsg.apply).map(_.get)
-  def scheduleWatch(email: Email, request: Gmail#Users#Watch) = schedule(email, request, WatchRequestMsg.apply).map(_.get)
+  /**
+   * Sends the requests in HTTP batches, one permit per request is first acquired from the throttler so that a batch is throttled
+   * exactly like the equivalent single requests. Every item is then recorded like a single request, with the duration of its
+   * batch and as an error when it failed or the whole batch did. The responses come in the order of the requests, without the
+   * items Gmail no longer holds: like a single request for a deleted message or thread, they are skipped by the callers. Any
+   * other failed item fails the whole call so that the job is retried.
+   */
+  def scheduleBatch[T](email: Email, gmail: Gmail, requests: List[GmailRequest[T]], method: String, msgBuilder: (() => Future[_], Option[ActorRef]) => Any): Future[List[T]] = {
+    def acquirePermits(count: Int) = Future.sequence(List.fill(count)(throttle(email, method, msgBuilder)(() => fs(()))))
+    def execute(batch: List[GmailRequest[T]]) = {
+      val startedAt = System.nanoTime
+      Future {concurrent.blocking {executeBatch(gmail, batch)}}
+        .andThen { case result =>
+          val duration = Metrics.seconds(System.nanoTime - startedAt)
+          val errors = result.map(_.count(_.isFailure)).getOrElse(batch.size)
+          metrics.gmailRequests.labels(email, method).inc(batch.size)
+          batch.foreach(_ => metrics.gmailRequestDuration.labels(email, method).observe(duration))
+          if (errors > 0) metrics.gmailRequestErrors.labels(email, method).inc(errors)
+        }
+    }
+    val responses = requests.grouped(GmailBatch.MaxSize).toList.map { batch =>
+      for {
+        _ <- acquirePermits(batch.size)
+        batchResponses <- execute(batch)
+      } yield batchResponses
+    }
+    Future.sequence(responses).map(_.flatten.flatMap {
+      case Success(response) => Some(response)
+      case Failure(e) if GmailClient.isNotFound(e) => None
+      case Failure(e) => throw e
+    })
+  }
+
+  protected def executeBatch[T](gmail: Gmail, batch: List[GmailRequest[T]]): List[Try[T]] = GmailBatch.execute(gmail, batch)
+
+  def scheduleListHistory(email: Email, request: Gmail#Users#History#List) = schedule(email, request, "ListHistory", ListHistoryRequestMsg.apply).map(_.get)
+  def scheduleCreateLabel(email: Email, request: Gmail#Users#Labels#Create) = schedule(email, request, "CreateLabel", CreateLabelRequestMsg.apply).map(_.get)
+  def scheduleDeleteLabel(email: Email, request: Gmail#Users#Labels#Delete) = schedule(email, request, "DeleteLabel", DeleteLabelRequestMsg.apply).map(_ => ())
+  def scheduleGetLabel(email: Email, request: Gmail#Users#Labels#Get) = schedule(email, request, "GetLabel", GetLabelRequestMsg.apply).map(_.get)
+  def scheduleListLabels(email: Email, request: Gmail#Users#Labels#List) = schedule(email, request, "ListLabels", ListLabelsRequestMsg.apply).map(_.get)
+  def scheduleGetMessageAttachment(email: Email, request: Gmail#Users#Messages#Attachments#Get) = schedule(email, request, "GetMessageAttachment", GetMessageAttachmentRequestMsg.apply).map(_.get)
+  def scheduleGetMessage(email: Email, request: Gmail#Users#Messages#Get) = schedule(email, request, "GetMessage", GetMessageRequestMsg.apply).map(_.get)
+  def scheduleListMessages(email: Email, request: Gmail#Users#Messages#List) = schedule(email, request, "ListMessages", ListMessagesRequestMsg.apply).map(_.get)
+  def scheduleModifyMessage(email: Email, request: Gmail#Users#Messages#Modify) = schedule(email, request, "ModifyMessage", ModifyMessageRequestMsg.apply).map(_.get)
+  def scheduleBatchModifyMessages(email: Email, request: Gmail#Users#Messages#BatchModify) = schedule(email, request, "BatchModifyMessages", BatchModifyMessagesRequestMsg.apply).map(_ => ())
+  def scheduleSendMessage(email: Email, request: Gmail#Users#Messages#Send) = schedule(email, request, "SendMessage", SendMessageRequestMsg.apply).map(_.get)
+  def scheduleGetThread(email: Email, request: Gmail#Users#Threads#Get) = schedule(email, request, "GetThread", GetThreadRequestMsg.apply).map(_.get)
+  def scheduleListThreads(email: Email, request: Gmail#Users#Threads#List) = schedule(email, request, "ListThreads", ListThreadsRequestMsg.apply).map(_.get)
+  def scheduleModifyThread(email: Email, request: Gmail#Users#Threads#Modify) = schedule(email, request, "ModifyThread", ModifyThreadRequestMsg.apply).map(_.get)
+  def scheduleWatch(email: Email, request: Gmail#Users#Watch) = schedule(email, request, "Watch", WatchRequestMsg.apply).map(_.get)
+  def scheduleBatchGetMessage(email: Email, gmail: Gmail, requests: List[Gmail#Users#Messages#Get]) = scheduleBatch(email, gmail, requests, "GetMessage", GetMessageRequestMsg.apply)
+  def scheduleBatchGetThread(email: Email, gmail: Gmail, requests: List[Gmail#Users#Threads#Get]) = scheduleBatch(email, gmail, requests, "GetThread", GetThreadRequestMsg.apply)
 }
 
-object ThrottlerUtils {
-  def createThrottler(context: ActorContext, props: Props, rate: Rate): ActorRef = {
-    val actor = context.actorOf(Props(new TimerBasedThrottler(rate)))
-    actor ! SetTarget(Some(context.actorOf(props)))
-    actor
-  }
+/**
+ * https://developers.google.com/gmail/api/v1/reference/quota
+ */
+object GmailQuota {
+  val ListHistory = 2
+  val CreateLabel = 5
+  val DeleteLabel = 5
+  val GetLabel = 1
+  val ListLabels = 1
+  val GetMessageAttachment = 5
+  val GetMessage = 5
+  val ListMessages = 5
+  val ModifyMessage = 5
+  val BatchModifyMessages = 50
+  val SendMessage = 100
+  val GetThread = 10
+  val ListThreads = 10
+  val ModifyThread = 10
+  val Watch = 100
 }
 
 object GmailThrottlerActor {
   final val actorName = "gmailThrottlerActor"
-}
+  case class PendingRequest(units: Int, request: () => Future[_], client: ActorRef)
+  case object Tick
+  /**
+   * Charges the units without running anything, the throttler answers with a Permit once they are available.
+   */
+  case class AcquirePermit(email: Email, units: Int) extends UserMessage
+  case object Permit
 
-class GmailThrottlerActor extends Actor with ActorLogging {
-  val dispatcher = ThrottlerUtils.createThrottler(context, Props(new DispatcherActor), 250 msgsPerSecond)
-  override def receive: Receive = {
-    case request@ListHistoryRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@CreateLabelRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@DeleteLabelRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@GetLabelRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@ListLabelsRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@GetMessageAttachmentRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@GetMessageRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@ListMessagesRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@ModifyMessageRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@SendMessageRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@GetThreadRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@ListThreadsRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@ModifyThreadRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
-    case request@WatchRequestMsg(_, _) => dispatcher ! request.copy(client = Some(sender))
+  /**
+   * The quota units charged for a request message and the request it holds.
+   */
+  object ThrottledRequest {
+    def unapply(msg: Any): Option[(Int, () => Future[_])] = msg match {
+      case ListHistoryRequestMsg(request, _) => Some((GmailQuota.ListHistory, request))
+      case CreateLabelRequestMsg(request, _) => Some((GmailQuota.CreateLabel, request))
+      case DeleteLabelRequestMsg(request, _) => Some((GmailQuota.DeleteLabel, request))
+      case GetLabelRequestMsg(request, _) => Some((GmailQuota.GetLabel, request))
+      case ListLabelsRequestMsg(request, _) => Some((GmailQuota.ListLabels, request))
+      case GetMessageAttachmentRequestMsg(request, _) => Some((GmailQuota.GetMessageAttachment, request))
+      case GetMessageRequestMsg(request, _) => Some((GmailQuota.GetMessage, request))
+      case ListMessagesRequestMsg(request, _) => Some((GmailQuota.ListMessages, request))
+      case ModifyMessageRequestMsg(request, _) => Some((GmailQuota.ModifyMessage, request))
+      case BatchModifyMessagesRequestMsg(request, _) => Some((GmailQuota.BatchModifyMessages, request))
+      case SendMessageRequestMsg(request, _) => Some((GmailQuota.SendMessage, request))
+      case GetThreadRequestMsg(request, _) => Some((GmailQuota.GetThread, request))
+      case ListThreadsRequestMsg(request, _) => Some((GmailQuota.ListThreads, request))
+      case ModifyThreadRequestMsg(request, _) => Some((GmailQuota.ModifyThread, request))
+      case WatchRequestMsg(request, _) => Some((GmailQuota.Watch, request))
+      case _ => None
+    }
   }
 }
 
-class DispatcherActor extends Actor with ActorLogging {
-  // https://developers.google.com/gmail/api/v1/reference/quota
-  val listHistoryActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 2 msgsPerSecond)
-  val createLabelActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val deleteLabelActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val getLabelActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 1 msgsPerSecond)
-  val listLabelsActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 1 msgsPerSecond)
-  val getMessageAttachmentActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val getMessageActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val listMessagesActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val sendMessageActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 100 msgsPerSecond)
-  val modifyMessageActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val getThreadActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 10 msgsPerSecond)
-  val listThreadsActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 10 msgsPerSecond)
-  val modifyThreadActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 5 msgsPerSecond)
-  val watchActor = ThrottlerUtils.createThrottler(context, Props(new SchedulerActor), 100 msgsPerSecond)
+/**
+ * Charges every request its quota units against a single per-user budget. Requests are served in arrival order, the budget
+ * saved while the user is idle is spent on the next burst. The user supervisor is named after the user, whose Gmail series are
+ * removed once the throttler stops.
+ */
+class GmailThrottlerActor @Inject()(appConf: AppConf, metrics: Metrics) extends Actor with ActorLogging {
+  implicit val executor = context.dispatcher
+
+  val user = context.parent.path.name
+  val bucket = new TokenBucket(appConf.getGmailQuotaUnitsPerSecond, appConf.getGmailQuotaBurstUnits)
+  var pendingQueue = Queue.empty[PendingRequest]
+  var tick: Option[Cancellable] = None
 
   override def receive: Receive = {
-    case request@ListHistoryRequestMsg(_, _) => listHistoryActor ! request
-    case request@CreateLabelRequestMsg(_, _) => createLabelActor ! request
-    case request@DeleteLabelRequestMsg(_, _) => deleteLabelActor ! request
-    case request@GetLabelRequestMsg(_, _) => getLabelActor ! request
-    case request@ListLabelsRequestMsg(_, _) => listLabelsActor ! request
-    case request@GetMessageAttachmentRequestMsg(_, _) => getMessageAttachmentActor ! request
-    case request@GetMessageRequestMsg(_, _) => getMessageActor ! request
-    case request@ListMessagesRequestMsg(_, _) => listMessagesActor ! request
-    case request@SendMessageRequestMsg(_, _) => sendMessageActor ! request
-    case request@ModifyMessageRequestMsg(_, _) => modifyMessageActor ! request
-    case request@GetThreadRequestMsg(_, _) => getThreadActor ! request
-    case request@ListThreadsRequestMsg(_, _) => listThreadsActor ! request
-    case request@ModifyThreadRequestMsg(_, _) => modifyMessageActor ! request
-    case request@WatchRequestMsg(_, _) => watchActor ! request
+    case GmailThrottlerActor.ThrottledRequest(units, request) => queue(units, request)
+    case GmailThrottlerActor.AcquirePermit(_, units) => queue(units, () => fs(GmailThrottlerActor.Permit))
+    case GmailThrottlerActor.Tick =>
+      tick = None
+      dequeue
   }
-}
 
-class SchedulerActor extends Actor with ActorLogging {
-  override def receive: Receive = {
-    case ListHistoryRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case CreateLabelRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case DeleteLabelRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case GetLabelRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case ListLabelsRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case GetMessageAttachmentRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case GetMessageRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case ListMessagesRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case SendMessageRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case ModifyMessageRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case GetThreadRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case ListThreadsRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case ModifyThreadRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
-    case WatchRequestMsg(request, Some(client)) => context.actorOf(Props(new RequestExecutor(request, client)))
+  private def queue(units: Int, request: () => Future[_]) = {
+    pendingQueue = pendingQueue :+ PendingRequest(units, request, sender)
+    dequeue
+  }
+
+  private def dequeue = {
+    while (pendingQueue.nonEmpty && bucket.tryAcquire(pendingQueue.head.units)) {
+      val (pendingRequest, rest) = pendingQueue.dequeue
+      pendingQueue = rest
+      execute(pendingRequest)
+    }
+    if (pendingQueue.nonEmpty && tick.isEmpty) {
+      val delay = bucket.timeUntilAvailable(pendingQueue.head.units)
+      tick = Some(context.system.scheduler.scheduleOnce(delay, self, GmailThrottlerActor.Tick))
+    }
+  }
+
+  /**
+   * The caller's ask is completed straight from the request's Future, no actor is created per request.
+   */
+  private def execute(pendingRequest: PendingRequest) = {
+    val response = try pendingRequest.request() catch {case NonFatal(e) => ff(e)}
+    pipe(response.map(Option(_))) to pendingRequest.client
+  }
+
+  override def postStop(): Unit = {
+    tick.fold(())(_.cancel)
+    metrics.removeGmailSeries(user)
   }
 }
 
-class RequestExecutor(request: () => Future[_], client: ActorRef) extends Actor with ActorLogging {
+/**
+ * Throttles the requests made on this node for a user running on another node, such as serving an attachment. A request holds a
+ * closure that can not cross nodes, so it first acquires its units from the throttler of the user on its node and then runs
+ * here, the user keeps a single quota. Stops once idle, the SuperSupervisorActor creates it again on the next request.
+ */
+class RemoteGmailThrottlerActor(email: Email, userRegion: ActorRef, idleTimeout: FiniteDuration, metrics: Metrics) extends Actor with ActorLogging {
   implicit val executor = context.dispatcher
-  pipe(request().map(Option(_))) to self
+  implicit val timeout = Timeouts.oneMinute
+
+  var running = 0
+
+  context.setReceiveTimeout(idleTimeout)
 
   override def receive: Receive = {
-    case Status.Failure(f) =>
-      client ! Status.Failure(f)
-      context.stop(self)
-    case response =>
-      client ! response
+    case UserSupervisorActor.GetGmailThrottlerActor(_) =>
+      sender ! self
+    case GmailThrottlerActor.ThrottledRequest(units, request) =>
+      running += 1
+      (userRegion ? GmailThrottlerActor.AcquirePermit(email, units))
+        .flatMap(_ => try request() catch {case NonFatal(e) => ff(e)})
+        .map(Option(_))
+        .andThen { case _ => self ! RemoteGmailThrottlerActor.Done }
+        .pipeTo(sender)
+    case RemoteGmailThrottlerActor.Done =>
+      running -= 1
+    case ReceiveTimeout if running == 0 =>
+      log.debug(s"Stopping the idle throttler of $email owned by another node")
       context.stop(self)
   }
+
+  override def postStop(): Unit = {
+    metrics.removeGmailSeries(email)
+  }
+}
+
+object RemoteGmailThrottlerActor {
+  private case object Done
 }
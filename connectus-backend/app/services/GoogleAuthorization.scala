@@ -1,10 +1,11 @@
 package services
 
 import java.io.StringReader
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.{Inject, Singleton}
 
 import conf.AppConf
-import com.google.api.client.auth.oauth2.Credential
+import com.google.api.client.auth.oauth2.{Credential, StoredCredential}
 import com.google.api.client.auth.openidconnect.IdTokenResponse
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow.Builder
 import com.google.api.client.googleapis.auth.oauth2.{GoogleAuthorizationCodeFlow, GoogleAuthorizationCodeTokenRequest, GoogleClientSecrets, GoogleTokenResponse}
@@ -15,14 +16,18 @@ import com.google.api.services.gmail.Gmail
 import com.google.api.services.gmail.GmailScopes._
 import com.google.common.collect.Lists._
 import common._
+import play.api.Logger
 
-import scala.concurrent.{ExecutionContext, Future}
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.{ExecutionContext, Future, Promise}
 
 object GoogleAuthorization {
   val ApplicationName = "Connectus"
   val Scopes = newArrayList(GMAIL_COMPOSE, GMAIL_MODIFY)
   val transport = new NetHttpTransport
   val factory = new JacksonFactory
+  val RefreshMarginInSeconds = 300
+  case class AuthorizedService(credential: Credential, gmail: Gmail, refreshing: AtomicBoolean = new AtomicBoolean)
 }
 
 @Singleton
@@ -49,12 +54,68 @@ class GoogleAuthorization @Inject()(implicit exec: ExecutionContext, appConf: Ap
     Future {concurrent.blocking {request.execute()}}
   }
 
+  private val services = TrieMap.empty[String, Future[GoogleAuthorization.AuthorizedService]]
+
+  /**
+   * The credential and the Gmail service are loaded once per user, the access token is refreshed in the background when it is
+   * about to expire so that the requests do not wait for it.
+   */
   def getService(accountId: String): Future[Gmail] =
-    Future {concurrent.blocking {Option(flow.loadCredential(accountId))}}
+    getAuthorizedService(accountId).map { service =>
+      refreshIfExpiring(accountId, service)
+      service.gmail
+    }
+
+  /**
+   * The credential is evicted from the data store as well, so that the next load reads the refresh token saved in the repository.
+   */
+  def invalidate(accountId: String): Unit = {
+    services.remove(accountId).foreach(_ => Logger.info(s"Invalidated the cached credential of $accountId"))
+    StoredCredential.getDefaultDataStore(dataStoreFactory) match {
+      case dataStore: RepositoryDataStore => dataStore.evict(accountId)
+      case _ =>
+    }
+  }
+
+  def onRefreshTokenChanged(accountId: String, refreshToken: String): Unit =
+    services.get(accountId).flatMap(_.value).flatMap(_.toOption).foreach { service =>
+      if (service.credential.getRefreshToken != refreshToken) invalidate(accountId)
+    }
+
+  private def getAuthorizedService(accountId: String): Future[GoogleAuthorization.AuthorizedService] =
+    services.get(accountId).getOrElse {
+      val promise = Promise[GoogleAuthorization.AuthorizedService]
+      services.putIfAbsent(accountId, promise.future).getOrElse {
+        // a failed load is evicted before its callers see the failure, so that their next call loads again
+        loadService(accountId).onComplete { result =>
+          if (result.isFailure) services.remove(accountId, promise.future)
+          promise.complete(result)
+        }
+        promise.future
+      }
+    }
+
+  private def loadService(accountId: String): Future[GoogleAuthorization.AuthorizedService] =
+    Future {concurrent.blocking {loadCredential(accountId)}}
       .flatMap(fromOption(_))
-      .map(gmail(_))
+      .map(credential => GoogleAuthorization.AuthorizedService(credential, gmail(credential)))
+
+  private def refreshIfExpiring(accountId: String, service: GoogleAuthorization.AuthorizedService): Unit = {
+    val expiring = Option(service.credential.getExpiresInSeconds).fold(true)(_ < GoogleAuthorization.RefreshMarginInSeconds)
+    if (expiring && service.refreshing.compareAndSet(false, true)) {
+      Future {concurrent.blocking {refresh(service.credential)}}
+        .andThen { case _ => service.refreshing.set(false) }
+        .onFailure { case e =>
+          Logger.warn(s"Refreshing the access token of $accountId failed", e)
+          invalidate(accountId)
+        }
+    }
+  }
+
+  protected def loadCredential(accountId: String): Option[Credential] = Option(flow.loadCredential(accountId))
+
+  protected def refresh(credential: Credential): Unit = credential.refreshToken()
 
   private def gmail(credential: Credential): Gmail =
     new Gmail.Builder(GoogleAuthorization.transport, GoogleAuthorization.factory, credential).setApplicationName(GoogleAuthorization.ApplicationName).build
 }
-
@@ -1,73 +1,196 @@
 package services
 
-import java.time.LocalDateTime
+import java.util.concurrent.TimeoutException
+import javax.inject.Inject
 
-import akka.actor.{Actor, ActorLogging, ActorRef, Props, Status}
-import akka.pattern.pipe
-import services.JobQueueActor.{Job, QueuedJob, SkippedJob}
+import akka.actor.{Actor, ActorLogging, ActorRef, Cancellable, Props}
+import conf.AppConf
+import services.JobQueueActor._
 import common._
 import scala.collection.immutable.Queue
 import scala.concurrent.Future
+import scala.concurrent.duration._
+import scala.util.{Failure, Try}
 
 object JobQueueActor {
   final val actorName = "jobQueueActor"
-  case class Job(payload: () => Future[_], key: Option[String] = None)
-  case class QueuedJob(client: ActorRef, job: Job)
+
+  /**
+   * Exclusive jobs change the mailbox and run one at a time, shared jobs only read it and run alongside any other job.
+   */
+  sealed trait Access
+  case object Exclusive extends Access
+  case object Shared extends Access
+
+  sealed trait QueueableJob {
+    def run(): Future[_]
+    def kind: String
+    def access: Access
+  }
+  case class Job(payload: () => Future[_], key: Option[String] = None, access: Access = Exclusive) extends QueueableJob {
+    def run() = payload()
+    def kind = if (access == Shared) "read" else "job"
+  }
+  /**
+   * A sync of the inbox, pending ones are merged into a single execution whose result is sent to every caller.
+   */
+  case class SyncJob(request: SyncRequest, payload: SyncRequest => Future[_]) extends QueueableJob {
+    def run() = payload(request)
+    def kind = "sync"
+    def access = Exclusive
+    def merge(other: SyncJob) = copy(request = request.merge(other.request))
+  }
+  case class SyncRequest(historyId: Option[BigInt] = None, full: Boolean = false) {
+    def merge(other: SyncRequest) = SyncRequest((historyId ++ other.historyId).reduceOption(_ max _), full || other.full)
+  }
+  case class QueuedJob(clients: List[ActorRef], job: QueueableJob, queuedAtNanos: Long = System.nanoTime)
   case object SkippedJob
+  case class Completed(jobId: Long, result: Try[Any], runNanos: Long)
+  private case class Slow(jobId: Long)
+  private case class DeadlineReached(jobId: Long)
+  private case class Abandon(jobId: Long)
+  private case class Running(queuedJob: QueuedJob, startedAtNanos: Long, executorActor: ActorRef, timers: List[Cancellable], late: Boolean = false)
 }
 
-class JobQueueActor extends Actor with ActorLogging {
+/**
+ * Runs the jobs of a user in two lanes. Exclusive jobs run one at a time, shared jobs run as soon as fewer than the maximum of
+ * them are running, without waiting for the exclusive job in progress. A job still running after the slow threshold is logged,
+ * once its deadline is reached its callers get a TimeoutException but the job keeps its place in the lane until it completes,
+ * since its Future can not be interrupted and may still be changing labels. Its late result is dropped. A job that has not
+ * completed long after its deadline is abandoned so that the lane moves on. The user supervisor is named after the user, its name
+ * labels the logs and metrics.
+ */
+class JobQueueActor @Inject()(appConf: AppConf, metrics: Metrics) extends Actor with ActorLogging {
+  implicit val executor = context.dispatcher
 
-  var pendingQueue = Queue.empty[QueuedJob]
-  override def receive: Receive = normal
+  val user = context.parent.path.name
+  val slowThreshold = appConf.getJobSlowSeconds.seconds
+  val deadline = appConf.getJobTimeoutSeconds.seconds
+  val abandonDelay = appConf.getJobAbandonSeconds.seconds
+  val maxShared = appConf.getJobSharedMaxConcurrent
 
-  def normal: Receive = {
-    case JobQueueActor.Job(job, _) =>
-      context.actorOf(Props(new FutureExecutor(job)))
-      context.become(executing(sender))
-  }
+  var exclusiveQueue = Queue.empty[QueuedJob]
+  var sharedQueue = Queue.empty[QueuedJob]
+  var running = Map.empty[Long, Running]
+  var jobId = 0L
 
-  def executing(client: ActorRef): Receive = {
-    case scheduledJob@Job(_, None) =>
+  override def receive: Receive = {
+    case scheduledJob: QueueableJob =>
       queue(scheduledJob)
-    case scheduledJob@Job(_, Some(key)) =>
-      if (pendingQueue.exists(_.job.key == Some(key))) {
-        queue(scheduledJob.copy(payload = () => fs(SkippedJob)))
+      dispatch()
+    case Completed(completedJobId, result, runNanos) if running.contains(completedJobId) =>
+      val completed = finish(completedJobId)
+      metrics.jobRunDuration.labels(completed.queuedJob.job.kind).observe(Metrics.seconds(runNanos))
+      if (completed.late) {
+        log.warning(s"Job ${completed.queuedJob.job.kind} of $user completed after its deadline in ${elapsed(completed)}, its result is dropped")
+      } else {
+        completed.queuedJob.clients.foreach(_ ! result)
+      }
+      dispatch()
+    case Slow(slowJobId) if running.contains(slowJobId) =>
+      val slow = running(slowJobId)
+      log.warning(s"Job ${slow.queuedJob.job.kind} of $user has been running for ${elapsed(slow)}, $depth jobs waiting")
+    case DeadlineReached(lateJobId) if running.contains(lateJobId) =>
+      val late = running(lateJobId)
+      log.error(s"Job ${late.queuedJob.job.kind} of $user timed out after ${elapsed(late)}, it keeps its lane until it completes, $depth jobs waiting")
+      metrics.jobsTimedOut.labels(user).inc()
+      late.queuedJob.clients.foreach(_ ! Failure(new TimeoutException(s"Job ${late.queuedJob.job.kind} timed out after $deadline")))
+      val abandonTimer = context.system.scheduler.scheduleOnce(abandonDelay, self, Abandon(lateJobId))
+      running += lateJobId -> late.copy(timers = abandonTimer :: late.timers, late = true)
+    case Abandon(abandonedJobId) if running.contains(abandonedJobId) =>
+      val abandoned = finish(abandonedJobId)
+      log.error(s"Job ${abandoned.queuedJob.job.kind} of $user abandoned after ${elapsed(abandoned)}, $depth jobs waiting")
+      context.stop(abandoned.executorActor)
+      dispatch()
+  }
+
+  private def queue(job: QueueableJob) = job match {
+    case scheduledJob@Job(_, Some(key), access) if lane(access).exists(_.job match {
+      case Job(_, jobKey, _) => jobKey == Some(key)
+      case _ => false
+    }) =>
+      metrics.jobsSkipped.labels(user).inc()
+      append(scheduledJob.copy(payload = () => fs(SkippedJob)))
+    case syncJob: SyncJob =>
+      val pendingSyncIndex = exclusiveQueue.indexWhere(_.job.isInstanceOf[SyncJob])
+      if (pendingSyncIndex < 0) {
+        append(syncJob)
       } else {
-        queue(scheduledJob)
+        val pendingSync = exclusiveQueue(pendingSyncIndex)
+        val mergedSync = pendingSync.job.asInstanceOf[SyncJob].merge(syncJob)
+        log.debug(s"Coalescing sync job into $mergedSync")
+        exclusiveQueue = exclusiveQueue.updated(pendingSyncIndex, pendingSync.copy(clients = pendingSync.clients :+ sender, job = mergedSync))
       }
-    case Status.Failure(cause) =>
-      client ! scala.util.Failure(cause)
-      resume(client)
-    case result =>
-      client ! scala.util.Success(result)
-      resume(client)
+    case scheduledJob =>
+      append(scheduledJob)
   }
 
-  private def queue(job: Job) =
-    pendingQueue = pendingQueue :+ QueuedJob(sender, job)
+  private def lane(access: Access) = if (access == Shared) sharedQueue else exclusiveQueue
 
-  private def resume(client: ActorRef) = {
-    pendingQueue.iterator.foreach(queuedJob => self.!(queuedJob.job)(queuedJob.client))
-    pendingQueue = Queue.empty[QueuedJob]
-    context.become(normal)
+  private def append(job: QueueableJob) = job.access match {
+    case Exclusive => exclusiveQueue = exclusiveQueue :+ QueuedJob(List(sender), job)
+    case Shared => sharedQueue = sharedQueue :+ QueuedJob(List(sender), job)
+  }
+
+  /**
+   * Starts the next exclusive job when none is running and as many shared jobs as the maximum allows.
+   */
+  private def dispatch() = {
+    if (!running.values.exists(_.queuedJob.job.access == Exclusive)) {
+      exclusiveQueue.dequeueOption.foreach { case (next, rest) =>
+        exclusiveQueue = rest
+        execute(next)
+      }
+    }
+    while (sharedQueue.nonEmpty && running.values.count(_.queuedJob.job.access == Shared) < maxShared) {
+      val (next, rest) = sharedQueue.dequeue
+      sharedQueue = rest
+      execute(next)
+    }
+    metrics.jobQueueDepth.labels(user).set(depth)
   }
-}
 
-class FutureExecutor(payload: () => Future[_]) extends Actor with ActorLogging {
-  def now = LocalDateTime.now()
+  private def execute(queuedJob: QueuedJob) = {
+    val startedAtNanos = System.nanoTime
+    metrics.jobQueueWait.labels(queuedJob.job.kind).observe(Metrics.seconds(startedAtNanos - queuedJob.queuedAtNanos))
+    jobId += 1
+    val id = jobId
+    val timers = List(
+      context.system.scheduler.scheduleOnce(slowThreshold, self, Slow(id)),
+      context.system.scheduler.scheduleOnce(deadline, self, DeadlineReached(id)))
+    val executorActor = context.actorOf(Props(new FutureExecutor(id, () => queuedJob.job.run())))
+    running += id -> Running(queuedJob, startedAtNanos, executorActor, timers)
+  }
+
+  private def finish(id: Long): Running = {
+    val finished = running(id)
+    finished.timers.foreach(_.cancel())
+    running -= id
+    finished
+  }
 
+  private def depth = exclusiveQueue.size + sharedQueue.size
+
+  private def elapsed(job: Running) = (System.nanoTime - job.startedAtNanos).nanos.toSeconds.seconds
+
+  override def postStop(): Unit = {
+    running.values.foreach(_.timers.foreach(_.cancel()))
+    metrics.removeJobSeries(user)
+  }
+}
+
+/**
+ * Reports the outcome of the job to the queue with the time it ran, the report of a job the queue gave up on is ignored.
+ */
+class FutureExecutor(jobId: Long, payload: () => Future[_]) extends Actor with ActorLogging {
   implicit val executor = context.dispatcher
-  val start = now
+  val start = System.nanoTime
 
-  pipe(payload()) to self
+  (try payload() catch {case scala.util.control.NonFatal(e) => ff(e)}).onComplete(result => self ! result)
 
   override def receive: Receive = {
-    case f@Status.Failure(_) =>
-      context.parent ! f
-      context.stop(self)
-    case result =>
-      context.parent ! result
+    case result: Try[_] =>
+      context.parent ! Completed(jobId, result, System.nanoTime - start)
       context.stop(self)
   }
 }
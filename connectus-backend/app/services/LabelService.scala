@@ -3,34 +3,36 @@ package services
 import javax.inject.{Inject, Singleton}
 
 import common._
-import model.{Contact, GmailLabel, Resident}
+import model.{Contact, GmailLabel, GmailMessage, Resident, ThreadBundle}
 
 import scala.concurrent.{ExecutionContext, Future}
 
 object LabelService {
   val InboxLabelName = "INBOX"
   val ConnectusLabelName = "connectus"
-  val AbsentLabelName = "query-returns-nothing"
   val TrashLabelName = "TRASH"
 
   def allMessages =
     s"label:$InboxLabelName"
 
-  def residentUntaggedMessages(contacts: List[Contact]) =
-    s"label:$InboxLabelName ${buildContactQuery(contacts)}"
-
-  private def buildContactQuery(contacts: List[Contact]) =
-    if (contacts.isEmpty) {
-      s"label:$AbsentLabelName"
-    } else {
-      contacts
-        .map(contact => "from:" + contact.email)
-        .mkString("(", " OR ", ")")
-    }
-
   def getSubLabelNamePrefix = LabelService.ConnectusLabelName + "/"
 
   def toLabelName(resident: Resident) = getSubLabelNamePrefix + resident.name
+
+  /**
+   * The labels of the residents indexed by the address of their contacts, built once from getResidentsAndContacts so that the
+   * labels of a thread are found from its senders without a Gmail search per resident.
+   */
+  case class ContactIndex(residents: Map[Resident, List[Contact]], residentLabels: Map[Resident, GmailLabel]) {
+    private val labelsByResidentId = residentLabels.map { case (resident, label) => (resident.id, label) }
+    private val labelsByContact: Map[String, List[GmailLabel]] = residents.values.flatten
+      .groupBy(_.email.toLowerCase)
+      .map { case (contactEmail, contacts) => (contactEmail, contacts.map(_.residentId).toList.distinct.flatMap(labelsByResidentId.get)) }
+    val residentLabelIds: Set[String] = residentLabels.values.map(_.id).toSet
+
+    def senderLabels(threadBundle: ThreadBundle): List[GmailLabel] =
+      threadBundle.messages.flatMap(_.from).map(_.address.toLowerCase).distinct.flatMap(labelsByContact.getOrElse(_, List())).distinct
+  }
 }
 
 @Singleton
@@ -102,9 +104,55 @@ class LabelService @Inject()(implicit exec: ExecutionContext, mailClient: MailCl
   private def listConnectusSubLabels(email: Email, allLabels: List[GmailLabel]): List[GmailLabel] =
     allLabels.filter(_.name.startsWith(LabelService.getSubLabelNamePrefix))
 
-  def untagAll(email: Email, allLabels: List[GmailLabel]) = {
-    val labels = listConnectusSubLabels(email, allLabels)
-    mailClient.removeLabels(email, LabelService.allMessages, labels)
+  /**
+   * Adds the resident labels, and the connectus label, to the threads containing a message sent by one of the resident's contacts.
+   * Threads already carrying those labels are left untouched. The returned bundles reflect the new labels.
+   */
+  def tagThreads(email: Email, threadBundles: List[ThreadBundle], residents: Map[Resident, List[Contact]], residentLabels: Map[Resident, GmailLabel], connectusLabel: GmailLabel): Future[List[ThreadBundle]] = {
+    val contactIndex = LabelService.ContactIndex(residents, residentLabels)
+
+    def missingLabels(threadBundle: ThreadBundle): List[GmailLabel] = {
+      val senderLabels = contactIndex.senderLabels(threadBundle)
+      val labels = if (senderLabels.isEmpty) List() else connectusLabel :: senderLabels
+      labels.filter(label => !threadBundle.messages.forall(_.labels.exists(_.id == label.id)))
+    }
+    def withLabels(threadBundle: ThreadBundle, labels: List[GmailLabel]): ThreadBundle =
+      threadBundle.copy(messages = threadBundle.messages.map(message =>
+        message.copy(labels = message.labels ++ labels.filter(label => !message.labels.exists(_.id == label.id)))))
+
+    val pending = threadBundles.map(threadBundle => (threadBundle, missingLabels(threadBundle)))
+    val all = pending.filter(_._2.nonEmpty).groupBy(_._2).map { case (labels, threads) =>
+      mailClient.addLabelsToThreads(email, threads.map(_._1.thread.id), labels)
+    }
+    Future.sequence(all).map(_ => pending.map { case (threadBundle, labels) => withLabels(threadBundle, labels) })
+  }
+
+  /**
+   * Sets the resident labels of every message of the threads from the senders of its thread, walking the threads once. Resident
+   * labels no longer matching a sender are removed and the connectus label is added along the resident ones. The messages sharing
+   * the same changes are modified together by batches. The returned bundles reflect the new labels.
+   */
+  def retagThreads(email: Email, threadBundles: List[ThreadBundle], residents: Map[Resident, List[Contact]], residentLabels: Map[Resident, GmailLabel], connectusLabel: GmailLabel): Future[List[ThreadBundle]] = {
+    val contactIndex = LabelService.ContactIndex(residents, residentLabels)
+
+    def retag(message: GmailMessage, senderLabels: List[GmailLabel]): (GmailMessage, List[GmailLabel], List[GmailLabel]) = {
+      val labels = if (senderLabels.isEmpty) List() else connectusLabel :: senderLabels
+      val labelIds = message.labels.map(_.id).toSet
+      val senderLabelIds = senderLabels.map(_.id).toSet
+      val added = labels.filterNot(label => labelIds(label.id))
+      val removed = message.labels.filter(label => contactIndex.residentLabelIds(label.id) && !senderLabelIds(label.id))
+      (message.copy(labels = message.labels.filterNot(removed.contains) ++ added), added, removed)
+    }
+
+    val retagged = threadBundles.map { threadBundle =>
+      val senderLabels = contactIndex.senderLabels(threadBundle)
+      (threadBundle, threadBundle.messages.map(retag(_, senderLabels)))
+    }
+    val changes = retagged.flatMap(_._2)
+      .collect { case (message, added, removed) if added.nonEmpty || removed.nonEmpty => (message.id, (added, removed)) }
+      .groupBy(_._2)
+      .map { case ((added, removed), messages) => mailClient.modifyMessages(email, messages.map(_._1), added, removed) }
+    Future.sequence(changes).map(_ => retagged.map { case (threadBundle, messages) => threadBundle.copy(messages = messages.map(_._1)) })
   }
 
   def deleteLabels(email: Email, labels: List[GmailLabel]) = {
@@ -1,20 +1,18 @@
 package services
 
-import java.nio.charset.Charset
 import java.time.{Instant, LocalDateTime, ZoneOffset, ZonedDateTime}
-import java.time.format.DateTimeParseException
 import javax.inject.{Inject, Singleton}
 
 import com.google.api.services.gmail.model._
 import common._
-import model.{GmailAttachment, GmailAttachmentData, GmailLabel, GmailMessage, GmailThread, GmailWatchReply, InternetAddress}
+import model.{GmailAttachment, GmailAttachmentData, GmailHistory, GmailLabel, GmailMessage, GmailThread, GmailWatchReply, InternetAddress, ThreadBundle}
 import play.api.Logger
 
 import scala.collection.JavaConverters._
 import scala.concurrent.{ExecutionContext, Future}
 
 @Singleton
-class MailClient @Inject()(implicit exec: ExecutionContext, gmailClient: GmailClient) {
+class MailClient @Inject()(implicit exec: ExecutionContext, gmailClient: GmailClient, messageCache: MessageCache) {
 
   def listLabels(email: Email): Future[List[GmailLabel]] = {
     Logger.info(s"Listing all labels for $email")
@@ -26,14 +24,15 @@ class MailClient @Inject()(implicit exec: ExecutionContext, gmailClient: GmailCl
     gmailClient.createLabel(email, labelName).map(label => LabelMapper(label))
   }
 
-  def addLabels(email: Email, query: String, labels: List[GmailLabel]): Future[Unit] = {
-    Logger.info(s"Adding label $labels to threads from query '$query' for $email")
-    if (labels.isEmpty) fs(()) else gmailClient.addLabels(email, query, labels.map(_.id)).map(_ => ())
+  def addLabelsToThreads(email: Email, threadIds: List[ThreadId], labels: List[GmailLabel]): Future[Unit] = {
+    Logger.info(s"Adding label $labels to threads $threadIds for $email")
+    if (labels.isEmpty || threadIds.isEmpty) fs(()) else gmailClient.addLabelsToThreads(email, threadIds, labels.map(_.id)).map(_ => ())
   }
 
-  def removeLabels(email: Email, query: String, labels: List[GmailLabel]): Future[Unit] = {
-    Logger.info(s"Removing label $labels to threads from query '$query' for $email")
-    if (labels.isEmpty) fs(()) else gmailClient.removeLabels(email, query, labels.map(_.id)).map(_ => ())
+  def modifyMessages(email: Email, messageIds: List[MessageId], addLabels: List[GmailLabel], removeLabels: List[GmailLabel]): Future[Unit] = {
+    Logger.info(s"Adding labels $addLabels and removing labels $removeLabels of ${messageIds.size} messages for $email")
+    if (messageIds.isEmpty || (addLabels.isEmpty && removeLabels.isEmpty)) fs(())
+    else gmailClient.modifyMessages(email, messageIds, addLabels.map(_.id), removeLabels.map(_.id))
   }
 
   def deleteLabel(email: Email, label: GmailLabel) = {
@@ -51,9 +50,72 @@ class MailClient @Inject()(implicit exec: ExecutionContext, gmailClient: GmailCl
     gmailClient.listMessagesOfThread(email, threadId).map(_.map(message => MessageMapper(message, allLabels)))
   }
 
+  /**
+   * A thread none of whose known messages is cached, such as a thread never saved, is fetched whole in the full format with a single
+   * request. Otherwise it is listed in the minimal format first, only its messages missing from the message cache are fetched in the
+   * full format.
+   */
+  def getThreadBundle(email: Email, threadId: ThreadId, allLabels: List[GmailLabel], knownMessageIds: List[MessageId]): Future[Option[ThreadBundle]] = {
+    Logger.info(s"Getting thread with id $threadId for $email")
+    val threadBundle =
+      if (knownMessageIds.exists(messageCache.get(email, _).isDefined)) getUpdatedThreadBundle(email, threadId, allLabels)
+      else getWholeThreadBundle(email, threadId, allLabels)
+    threadBundle.map(Some(_)).recover { case e if GmailClient.isNotFound(e) => None }
+  }
+
+  private def getWholeThreadBundle(email: Email, threadId: ThreadId, allLabels: List[GmailLabel]): Future[ThreadBundle] =
+    gmailClient.getThread(email, threadId, GmailClient.Format.Full).map { thread =>
+      val threadBundle = ThreadBundleMapper(thread, allLabels)
+      threadBundle.messages.foreach(messageCache.put(email, _))
+      Logger.debug(s"Thread $threadId had ${threadBundle.messages.size} fetched messages, ${messageCache.stats}")
+      threadBundle
+    }
+
+  private def getUpdatedThreadBundle(email: Email, threadId: ThreadId, allLabels: List[GmailLabel]): Future[ThreadBundle] =
+    gmailClient.getThread(email, threadId, GmailClient.Format.Minimal)
+      .flatMap { thread =>
+        val partialMessages = Option(thread.getMessages).fold[List[Message]](List())(_.asScala.toList)
+        val cachedMessages = partialMessages.flatMap(messageCache.get(email, _, allLabels)).map(message => message.id -> message).toMap
+        val missingMessageIds = partialMessages.map(_.getId).filterNot(cachedMessages.contains)
+        fetchMessages(email, missingMessageIds).map { messages =>
+          val parsedMessages = messages.map(message => MessageMapper(message, allLabels))
+          parsedMessages.foreach(messageCache.put(email, _))
+          Logger.debug(s"Thread $threadId had ${cachedMessages.size} cached and ${missingMessageIds.size} fetched messages, ${messageCache.stats}")
+          // messages added after the thread was listed are left to the next sync
+          val allMessages = cachedMessages ++ parsedMessages.map(message => message.id -> message)
+          ThreadBundleMapper(thread, partialMessages.flatMap(message => allMessages.get(message.getId)))
+        }
+      }
+
+  /**
+   * Rebuilds a thread unchanged since it was saved from the ids and labels of its messages in the snapshot and from the message
+   * cache, without any request to Gmail. None when one of its messages is no longer cached.
+   */
+  def getCachedThreadBundle(email: Email, thread: GmailThread, messageIds: List[MessageId], messagesLabels: Map[MessageId, List[GmailLabel]]): Option[ThreadBundle] = {
+    val cachedMessages = messageIds.flatMap(messageCache.get(email, _))
+    if (messageIds.isEmpty || cachedMessages.size < messageIds.size) {
+      None
+    } else {
+      Some(ThreadBundle(thread, cachedMessages.map(message => messagesLabels.get(message.id).fold(message)(labels => message.copy(labels = labels)))))
+    }
+  }
+
+  private def fetchMessages(email: Email, messageIds: List[MessageId]): Future[List[Message]] =
+    if (messageIds.isEmpty) fs(List()) else gmailClient.getMessages(email, messageIds)
+
+  /**
+   * Always in the full format: the GmailMessage is parsed from the payload and shared through the message cache, a lighter format
+   * would be cached without its content. GmailClient takes the format for the callers reading the raw messages.
+   */
   def getMessage(email: Email, messageId: String, allLabels: List[GmailLabel]): Future[GmailMessage] = {
     Logger.info(s"Getting message with id $messageId for $email")
-    gmailClient.getMessage(email, messageId).map(message => MessageMapper(message, allLabels))
+    messageCache.get(email, messageId).fold {
+      gmailClient.getMessage(email, messageId).map { message =>
+        val parsedMessage = MessageMapper(message, allLabels)
+        messageCache.put(email, parsedMessage)
+        parsedMessage
+      }
+    }(fs(_))
   }
 
   def watch(email: Email, labelIds: List[String]) = {
@@ -71,6 +133,11 @@ class MailClient @Inject()(implicit exec: ExecutionContext, gmailClient: GmailCl
     gmailClient.getLastHistory(email, startHistoryId).map(_.getHistoryId)
   }
 
+  def listHistory(email: Email, startHistoryId: BigInt): Future[GmailHistory] = {
+    Logger.info(s"Listing history with startHistoryId $startHistoryId for $email")
+    gmailClient.listHistory(email, startHistoryId).map(history => HistoryMapper(startHistoryId, history))
+  }
+
   def getAttachment(email: Email, messageId: String, attachmentId: String): Future[GmailAttachmentData] = {
     Logger.info(s"Getting attachment with messageId $messageId and attachmentId $attachmentId for $email")
     gmailClient.getAttachment(email, messageId, attachmentId).map(AttachmentMapper(_))
@@ -93,6 +160,38 @@ object ThreadMapper {
   def apply(thread: Thread): GmailThread = new GmailThread(thread.getId, thread.getSnippet, thread.getHistoryId)
 }
 
+object ThreadBundleMapper {
+  def apply(thread: Thread, allLabels: List[GmailLabel]): ThreadBundle = {
+    val messages = Option(thread.getMessages).fold[List[Message]](List())(_.asScala.toList)
+    apply(thread, messages.map(message => MessageMapper(message, allLabels)))
+  }
+
+  def apply(thread: Thread, messages: List[GmailMessage]): ThreadBundle = {
+    val partialMessages = Option(thread.getMessages).fold[List[Message]](List())(_.asScala.toList)
+    // the snippet is not always part of the threads.get response
+    val snippet = Option(thread.getSnippet).orElse(partialMessages.lastOption.flatMap(message => Option(message.getSnippet))).getOrElse("")
+    ThreadBundle(GmailThread(thread.getId, snippet, thread.getHistoryId), messages)
+  }
+}
+
+object HistoryMapper {
+  def apply(startHistoryId: BigInt, history: List[History]): GmailHistory = {
+    val historyId = (startHistoryId :: history.map(record => BigInt(record.getId))).max
+    val threadIds = history.flatMap(changedMessages(_)).map(_.getThreadId).toSet
+    GmailHistory(historyId, threadIds)
+  }
+
+  private def changedMessages(record: History): List[Message] = {
+    // every list of a history record is null when it carries no change of that type
+    def asList[T](list: java.util.List[T]): List[T] = Option(list).fold[List[T]](List())(_.asScala.toList)
+    asList(record.getMessages) ++
+      asList(record.getMessagesAdded).map(_.getMessage) ++
+      asList(record.getMessagesDeleted).map(_.getMessage) ++
+      asList(record.getLabelsAdded).map(_.getMessage) ++
+      asList(record.getLabelsRemoved).map(_.getMessage)
+  }
+}
+
 object MessageMapper {
 
   def apply(message: Message, allLabels: List[GmailLabel]): GmailMessage = {
@@ -101,40 +200,23 @@ object MessageMapper {
     val fromOpt = getHeader(headers, "From").map(parseHeader(_))
     val toOpt = getHeader(headers, "To").map(parseHeader(_))
     val subjectOpt = getHeader(headers, "Subject")
-    val contentOpt = getContentAsText(message) map (_.trim)
+    val contentOpt = MimePartWalker.content(message.getPayload) map (_.trim)
     val historyId = message.getHistoryId
-    val gmailLabels = message.getLabelIds.asScala.toList
-      .map(labelId => allLabels.find(_.id == labelId)).flatten
-      .map(label => GmailLabel(label.id, label.name))
+    val gmailLabels = toLabels(message.getLabelIds, allLabels)
     val attachments = getAttachments(message)
     val complete = dateOpt.isDefined && fromOpt.isDefined && subjectOpt.isDefined && contentOpt.isDefined
     GmailMessage(message.getId, dateOpt, fromOpt, toOpt, subjectOpt, contentOpt, historyId, gmailLabels, attachments, complete)
   }
 
+  def toLabels(labelIds: java.util.List[String], allLabels: List[GmailLabel]): List[GmailLabel] =
+    Option(labelIds).fold[List[String]](List())(_.asScala.toList)
+      .map(labelId => allLabels.find(_.id == labelId)).flatten
+      .map(label => GmailLabel(label.id, label.name))
+
   private def getHeader(headers: List[MessagePartHeader], headerNameIgnoreCase: String): Option[String] =
     headers.filter(h => h.getName.equalsIgnoreCase(headerNameIgnoreCase)).map(mph => mph.getValue).headOption
 
-  def parseDate(date: String): Option[ZonedDateTime] = {
-    def fixErrors(date: String) = date.replace(",  ", ", ")
-    def parseWith(date: String, patterns: List[String]): Option[ZonedDateTime] = {
-      patterns match {
-        case head :: tail =>
-          try {
-            val formatter = java.time.format.DateTimeFormatter.ofPattern(head)
-            Some(ZonedDateTime.parse(date, formatter))
-          } catch {
-            case e: DateTimeParseException => parseWith(date, tail)
-          }
-        case _ => None
-      }
-    }
-    parseWith(fixErrors(date),
-      List(//
-        "d MMM yyyy HH:mm:ss Z",
-        "d MMM yyyy HH:mm:ss Z '('zzz')'",
-        "EEE, d MMM yyyy HH:mm:ss Z",
-        "EEE, d MMM yyyy HH:mm:ss Z '('zzz')'"))
-  }
+  def parseDate(date: String): Option[ZonedDateTime] = DateHeaderParser.parse(date)
 
   def parseHeader(from: String) = {
     val regex = """(.*)<(.*)>""".r
@@ -144,55 +226,6 @@ object MessageMapper {
     }
   }
 
-  private def scanParts(parts: List[MessagePart], mimeType: String): Option[MessagePart] = {
-    def first(parts: List[MessagePart], mimeType: String): Option[MessagePart] =
-      parts.find(p => p.getMimeType == mimeType)
-
-    val childParts: List[MessagePart] = parts.foldLeft(List(): List[MessagePart])((acc, elt) => {
-      Option(elt.getParts) match {
-        case Some(childPart) => acc ++ childPart.asScala.toList
-        case None => acc
-      }
-    })
-
-    first(parts, mimeType) match {
-      case textPart@Some(_) => textPart
-      case None if childParts.nonEmpty => scanParts(childParts, mimeType)
-      case _ => None
-    }
-  }
-
-  private def getCharset(headers: List[MessagePartHeader], defaultCharset: String = "UTF-8"): Charset = {
-    def getCharset(charsetIgnoringCase: String): Option[Charset] = {
-      val availableCharsets: Map[String, Charset] = Charset.availableCharsets().asScala.toMap
-      availableCharsets
-        .find { case (name, c) => name.equalsIgnoreCase(charsetIgnoringCase) }
-        .map { case (name, c) => c }
-    }
-    getHeader(headers, "Content-Type")
-      .flatMap(getCharset(_))
-      .fold(Charset.forName(defaultCharset))(identity)
-  }
-
-  private def getText(headers: List[MessagePartHeader], bytes: Option[Array[Byte]]): Option[String] =
-    bytes.map(new Predef.String(_, getCharset(headers)))
-
-  private def getContentAsText(message: Message): Option[String] = {
-    message.getPayload.getMimeType match {
-      case "text/plain" =>
-        val headers = message.getPayload.getHeaders.asScala.toList
-        val bytes = Option(message.getPayload.getBody.decodeData)
-        getText(headers, bytes)
-      case mimeType if mimeType.startsWith("multipart/") =>
-        scanParts(parts(message), "text/plain") flatMap { part =>
-          val headers = part.getHeaders.asScala.toList
-          val bytes = Option(part.getBody.decodeData)
-          getText(headers, bytes)
-        }
-      case _ => None
-    }
-  }
-
   def getAttachments(message: Message): List[GmailAttachment] = {
     // only keep parts with an attachmentId defined
     parts(message).filter(p => Option(p.getBody.getAttachmentId).isDefined).map(part => {
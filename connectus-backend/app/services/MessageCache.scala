@@ -0,0 +1,95 @@
+package services
+
+import java.io._
+import javax.inject.{Inject, Singleton}
+
+import com.google.api.services.gmail.model.Message
+import com.google.common.cache.{Cache, CacheBuilder}
+import common._
+import conf.AppConf
+import model.{GmailLabel, GmailMessage}
+import play.api.Logger
+import play.api.inject.ApplicationLifecycle
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
+import scala.util.control.NonFatal
+
+/**
+ * Bounded LRU cache of the parsed messages, so that the messages of a changed thread which did not change themselves are neither
+ * downloaded nor parsed again. The content of a Gmail message never changes, only its labels do: an entry is always reused with
+ * the labels listed by Gmail, even when its historyId is the same, since it may have been cached by a caller without the labels.
+ */
+@Singleton
+class MessageCache @Inject()(appConf: AppConf, lifecycle: ApplicationLifecycle) {
+
+  private val cache: Cache[(Email, MessageId), GmailMessage] =
+    CacheBuilder.newBuilder()
+      .maximumSize(appConf.getMessageCacheSize)
+      .recordStats()
+      .build[(Email, MessageId), GmailMessage]()
+
+  private val file = appConf.getMessageCacheFile.map(new File(_))
+
+  file.foreach { file =>
+    load(file)
+    lifecycle.addStopHook(() => Future.successful(save(file)))
+  }
+
+  /**
+   * Returns the cached message up to date with a message listed in the minimal format, None when it has to be fetched.
+   */
+  def get(email: Email, partialMessage: Message, allLabels: List[GmailLabel]): Option[GmailMessage] =
+    Option(cache.getIfPresent((email, partialMessage.getId))).map { message =>
+      val updatedMessage = message.copy(historyId = BigInt(partialMessage.getHistoryId), labels = MessageMapper.toLabels(partialMessage.getLabelIds, allLabels))
+      if (updatedMessage != message) {
+        cache.put((email, message.id), updatedMessage)
+      }
+      updatedMessage
+    }
+
+  def get(email: Email, messageId: MessageId): Option[GmailMessage] = Option(cache.getIfPresent((email, messageId)))
+
+  def put(email: Email, message: GmailMessage): Unit = cache.put((email, message.id), message)
+
+  def invalidate(email: Email): Unit = cache.asMap.keySet.asScala.filter(_._1 == email).foreach(cache.invalidate)
+
+  def stats: MessageCache.Stats = {
+    val stats = cache.stats
+    MessageCache.Stats(stats.hitCount, stats.missCount, stats.hitRate, cache.size)
+  }
+
+  private def load(file: File): Unit =
+    if (file.exists) {
+      try {
+        val in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))
+        try {
+          in.readObject.asInstanceOf[Map[(Email, MessageId), GmailMessage]].foreach { case (key, message) => cache.put(key, message) }
+        } finally {
+          in.close()
+        }
+        Logger.info(s"Loaded ${cache.size} cached messages from $file")
+      } catch {
+        case NonFatal(e) => Logger.warn(s"Could not load the cached messages from $file", e)
+      }
+    }
+
+  private def save(file: File): Unit =
+    try {
+      val out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+      try {
+        out.writeObject(cache.asMap.asScala.toMap)
+      } finally {
+        out.close()
+      }
+      Logger.info(s"Saved ${cache.size} cached messages to $file, ${stats}")
+    } catch {
+      case NonFatal(e) => Logger.warn(s"Could not save the cached messages to $file", e)
+    }
+}
+
+object MessageCache {
+
+  case class Stats(hits: Long, misses: Long, hitRate: Double, size: Long)
+
+}
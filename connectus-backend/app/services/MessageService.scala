@@ -3,13 +3,48 @@ package services
 import javax.inject.{Inject, Singleton}
 
 import common._
-import model.{AttachmentRequest, GmailLabel, OutboxMessage, Resident, ThreadBundle}
+import model.{AttachmentRequest, GmailHistory, GmailLabel, GmailThread, OutboxMessage, ThreadBundle}
 import play.api.Logger
+import services.JobQueueActor.SyncRequest
+import services.MessageService.removeTrashedMessages
+import services.Repository.{MessagesSnapshot, SyncCursor}
 
 import scala.concurrent.{ExecutionContext, Future}
 
+object MessageService {
+  def removeTrashedMessages(threadBundles: List[ThreadBundle]): List[ThreadBundle] =
+    threadBundles.map(threadBundle => threadBundle.copy(messages = threadBundle.messages.filterNot(_.labels.exists(_.id == LabelService.TrashLabelName))))
+}
+
 @Singleton
-class MessageService @Inject()(implicit exec: ExecutionContext, mailClient: MailClient, labelService: LabelService, repository: Repository, historyIdService: HistoryIdService) {
+class MessageService @Inject()(implicit exec: ExecutionContext, mailClient: MailClient, labelService: LabelService, repository: Repository, historyIdService: HistoryIdService, attachmentProxy: AttachmentProxy) {
+
+  def sync(email: Email, request: SyncRequest): Future[Option[BigInt]] = request match {
+    case SyncRequest(historyId, true) => tagInbox(email, historyId)
+    case SyncRequest(Some(historyId), false) => tagInbox(email, historyId)
+    case SyncRequest(None, false) => resumeInbox(email)
+  }
+
+  /**
+   * Resumes from the sync cursor saved by a previous run, the inbox is fully tagged when there is none.
+   */
+  def resumeInbox(email: Email): Future[Option[BigInt]] =
+    historyIdService.getLocalHistoryId(email).flatMap {
+      case Some(localHistoryId) =>
+        mailClient.getLastHistoryId(email, localHistoryId)
+          .map(Some(_))
+          .recover { case e if GmailClient.isNotFound(e) => None }
+          .flatMap {
+            case Some(lastHistoryId) =>
+              tagInbox(email, lastHistoryId)
+            case None =>
+              Logger.info(s"History from the saved historyId $localHistoryId is no longer available, tagging the inbox for $email")
+              tagInbox(email)
+          }
+      case None =>
+        Logger.info(s"No sync cursor saved, tagging the inbox for $email")
+        tagInbox(email)
+    }
 
   def tagInbox(email: Email, receivedHistoryId: BigInt): Future[Option[BigInt]] = {
     Logger.info(s"Initiating tagInbox with receivedHistoryId=$receivedHistoryId for $email")
@@ -20,8 +55,8 @@ class MessageService @Inject()(implicit exec: ExecutionContext, mailClient: Mail
           Logger.info(s"Local historyId unknown, tagging the inbox for $email")
           tagInbox(email, Some(receivedHistoryId))
         case (Some(local), received) if local < received =>
-          Logger.info(s"Local historyId $local saved from previous calls is older than the received one $received, tagging the inbox for $email")
-          tagInbox(email, Some(receivedHistoryId))
+          Logger.info(s"Local historyId $local saved from previous calls is older than the received one $received, syncing the inbox from history for $email")
+          syncInbox(email, local, received)
         case (Some(local), received) =>
           Logger.info(s"Local historyId $local and received historyId $received indicate that tagging the inbox can be skipped for $email")
           fs((Some(local)))
@@ -29,51 +64,101 @@ class MessageService @Inject()(implicit exec: ExecutionContext, mailClient: Mail
     }
   }
 
+  /**
+   * Every thread of the inbox is retagged from the senders of its messages. A thread whose historyId matches the one saved by a
+   * previous run is rebuilt from the snapshot and the message cache, only the other ones are fetched from Gmail. The threads whose
+   * labels changed are fetched again once retagged, so that they are saved with the historyId following the changes and are not
+   * written again by the next run.
+   */
   def tagInbox(email: Email, receivedHistoryId: Option[BigInt] = None): Future[Option[BigInt]] = {
     Logger.info(s"Initiating tagInbox for $email")
 
-    def doLabelMessages(connectusLabel: GmailLabel, residentLabels: Map[Resident, GmailLabel]) =
-      repository.getResidentsAndContacts(email)
-        .flatMap { residents =>
-          val all: Iterable[Future[Unit]] = residents.map {
-            case (resident, contacts) =>
-              val contactsQuery = LabelService.residentUntaggedMessages(contacts)
-              for {
-                _ <- mailClient.addLabels(email, contactsQuery, List(residentLabels(resident)))
-                _ <- mailClient.addLabels(email, contactsQuery, List(connectusLabel))
-              } yield ()
-          }
-          Future.sequence(all)
-        }
+    def retaggedThreadIds(threadBundles: List[ThreadBundle], taggedThreadBundles: List[ThreadBundle]): Set[ThreadId] =
+      threadBundles.zip(taggedThreadBundles).collect { case (threadBundle, tagged) if threadBundle != tagged => threadBundle.thread.id }.toSet
 
-    def removeTrashedMessages(threadBundles: List[ThreadBundle]): List[ThreadBundle] =
-      threadBundles.map(threadBundle => threadBundle.copy(messages = threadBundle.messages.filter(!_.labels.contains(LabelService.TrashLabelName))))
+    def refresh(taggedThreadBundles: List[ThreadBundle], refreshedThreadBundles: List[ThreadBundle], retagged: Set[ThreadId]): List[ThreadBundle] =
+      taggedThreadBundles.filterNot(threadBundle => retagged.contains(threadBundle.thread.id)) ++ refreshedThreadBundles
 
     for {
       allLabels <- labelService.listAllLabels(email)
-      _ <- labelService.untagAll(email, allLabels)
       connectusLabel <- labelService.getOrCreateConnectusLabel(email, allLabels)
       residentsLabels <- labelService.syncResidentLabels(email, allLabels)
-      _ <- doLabelMessages(connectusLabel, residentsLabels)
-      threadBundles <- getThreadBundles(email, allLabels)
-      filteredThreadBundles = removeTrashedMessages(threadBundles)
+      residents <- repository.getResidentsAndContacts(email)
       messagesSnapshot <- repository.getMessagesSnapshot(email)
+      threads <- mailClient.listThreads(email, LabelService.allMessages)
+      threadBundles <- getThreadBundles(email, threads, messagesSnapshot, allLabels)
+      taggedThreadBundles <- labelService.retagThreads(email, threadBundles, residents, residentsLabels, connectusLabel)
+      retagged = retaggedThreadIds(threadBundles, taggedThreadBundles)
+      refreshedThreadBundles <- getThreadBundles(email, retagged, allLabels, threadBundles.map(threadBundle => threadBundle.thread.id -> threadBundle.messages.map(_.id)).toMap)
+      filteredThreadBundles = removeTrashedMessages(refresh(taggedThreadBundles, refreshedThreadBundles, retagged))
       _ <- repository.saveThreads(email, filteredThreadBundles, messagesSnapshot, residentsLabels)
       newHistoryId <- historyIdService.updateLocalHistory(email, receivedHistoryId)
     } yield newHistoryId
   }
 
-  private def getThreadBundles(email: Email, allLabels: List[GmailLabel]): Future[List[ThreadBundle]] = {
-    val query = LabelService.allMessages
-    mailClient.listThreads(email, query).flatMap { threads =>
-      val messages = threads.map(thread =>
-        mailClient
-          .listMessagesOfThread(email, thread.id, allLabels)
-          .map(ThreadBundle(thread, _)))
-      Future.sequence(messages)
+  /**
+   * Applies only the threads changed since localHistoryId, the inbox is fully tagged again when Gmail no longer holds that history.
+   */
+  def syncInbox(email: Email, localHistoryId: BigInt, receivedHistoryId: BigInt): Future[Option[BigInt]] = {
+    Logger.info(s"Initiating syncInbox from historyId $localHistoryId for $email")
+    mailClient.listHistory(email, localHistoryId)
+      .map(Some(_))
+      .recover { case e if GmailClient.isNotFound(e) => None }
+      .flatMap {
+        case Some(history) =>
+          for {
+            _ <- applyHistory(email, history)
+            newHistoryId <- historyIdService.setLocalHistoryId(email, history.historyId.max(receivedHistoryId))
+          } yield newHistoryId
+        case None =>
+          Logger.info(s"History from historyId $localHistoryId is no longer available, tagging the inbox for $email")
+          tagInbox(email, Some(receivedHistoryId))
+      }
+  }
+
+  private def applyHistory(email: Email, history: GmailHistory): Future[Unit] = {
+    Logger.info(s"Applying changes of ${history.threadIds.size} threads up to historyId ${history.historyId} for $email")
+    if (history.threadIds.isEmpty) {
+      fs(())
+    } else {
+      for {
+        allLabels <- labelService.listAllLabels(email)
+        connectusLabel <- labelService.getOrCreateConnectusLabel(email, allLabels)
+        residentsLabels <- labelService.syncResidentLabels(email, allLabels)
+        residents <- repository.getResidentsAndContacts(email)
+        messagesSnapshot <- repository.getMessagesSnapshot(email, history.threadIds)
+        threadBundles <- getThreadBundles(email, history.threadIds, allLabels, messagesSnapshot.allThreadIds)
+        taggedThreadBundles <- labelService.tagThreads(email, threadBundles.filter(_.isInInbox), residents, residentsLabels, connectusLabel)
+        deletedThreadIds = repository.findDeletedThreadIds(messagesSnapshot.allThreadIds, taggedThreadBundles)
+        _ <- repository.saveThreadChanges(email, removeTrashedMessages(taggedThreadBundles), deletedThreadIds, messagesSnapshot, residentsLabels)
+      } yield ()
     }
   }
 
+  /**
+   * The threads unchanged since the snapshot are rebuilt without any request when all their messages are cached, the other ones
+   * are fetched.
+   */
+  private def getThreadBundles(email: Email, threads: List[GmailThread], messagesSnapshot: MessagesSnapshot, allLabels: List[GmailLabel]): Future[List[ThreadBundle]] = {
+    val cachedThreadBundles = threads
+      .filter(thread => messagesSnapshot.threadsHistoryIds.get(thread.id).contains(thread.historyId))
+      .flatMap(thread => mailClient.getCachedThreadBundle(email, thread, messagesSnapshot.allThreadIds.getOrElse(thread.id, List()), messagesSnapshot.messagesLabels))
+    val cachedThreadIds = cachedThreadBundles.map(_.thread.id).toSet
+    Logger.info(s"Rebuilt ${cachedThreadIds.size} unchanged threads out of ${threads.size} from the message cache for $email")
+    getThreadBundles(email, threads.map(_.id).filterNot(cachedThreadIds).toSet, allLabels, messagesSnapshot.allThreadIds).map(cachedThreadBundles ++ _)
+  }
+
+  /**
+   * The threads are fetched in the full format, the messages already cached are not fetched again. The message ids known for
+   * each thread tell whether it is worth listing it first to find its cached messages.
+   */
+  private def getThreadBundles(email: Email, threadIds: Set[ThreadId], allLabels: List[GmailLabel], knownMessageIds: Map[ThreadId, List[MessageId]]): Future[List[ThreadBundle]] = {
+    Logger.info(s"Fetching ${threadIds.size} threads for $email")
+    // threads deleted since the history was listed are simply skipped
+    val threadBundles = threadIds.toList.map(threadId => mailClient.getThreadBundle(email, threadId, allLabels, knownMessageIds.getOrElse(threadId, List())))
+    Future.sequence(threadBundles).map(_.flatten)
+  }
+
   def reply(email: Email, outboxMessage: OutboxMessage): Future[Unit] =
     for {
       allLabels <- labelService.listAllLabels(email)
@@ -82,21 +167,40 @@ class MessageService @Inject()(implicit exec: ExecutionContext, mailClient: Mail
       _ <- tagInbox(email, message.getHistoryId)
     } yield ()
 
+  /**
+   * The message is parsed with the labels of the user, it is shared through the message cache with the syncs of its thread.
+   */
   def prepareRequest(email: Email, attachmentRequest: AttachmentRequest): Future[Unit] =
-    mailClient.getMessage(email, attachmentRequest.messageId, List())
-      .flatMap(freshMessage => repository.saveAttachmentResponse(email, freshMessage))
+    for {
+      allLabels <- labelService.listAllLabels(email)
+      freshMessage <- mailClient.getMessage(email, attachmentRequest.messageId, allLabels)
+      _ <- attachmentProxy.links(email, freshMessage).fold(repository.saveAttachmentResponse(email, freshMessage))(repository.saveAttachmentLinks(email, freshMessage.id, _))
+    } yield ()
 }
 
 @Singleton
-class HistoryIdService @Inject()(implicit exec: ExecutionContext, mailClient: MailClient, actorsClient: ActorsClient) {
+class HistoryIdService @Inject()(implicit exec: ExecutionContext, mailClient: MailClient, actorsClient: ActorsClient, repository: Repository) {
+
+  /**
+   * Falls back to the sync cursor saved in the repository when the historyId is not held in memory yet, e.g. after a restart.
+   */
+  def getLocalHistoryId(email: Email): Future[Option[BigInt]] =
+    actorsClient.getHistoryId(email).flatMap {
+      case None => repository.getSyncCursor(email).map(_.map(_.historyId))
+      case historyId => fs(historyId)
+    }
 
-  def getLocalHistoryId(email: Email): Future[Option[BigInt]] = actorsClient.getHistoryId(email)
+  def setLocalHistoryId(email: Email, historyId: BigInt): Future[Option[BigInt]] =
+    saveLocalHistoryId(email, Some(historyId))
 
   def updateLocalHistory(email: Email, previousHistoryId: Option[BigInt]) =
+    getLastRemoteHistoryId(email, previousHistoryId).flatMap(saveLocalHistoryId(email, _))
+
+  private def saveLocalHistoryId(email: Email, historyId: Option[BigInt]): Future[Option[BigInt]] =
     for {
-      newHistoryId <- getLastRemoteHistoryId(email, previousHistoryId)
-      _ <- actorsClient.setHistoryId(email, newHistoryId)
-    } yield newHistoryId
+      _ <- actorsClient.setHistoryId(email, historyId)
+      _ <- historyId.fold(fs(()))(historyId => repository.saveSyncCursor(email, SyncCursor(historyId, System.currentTimeMillis)))
+    } yield historyId
 
   private def getLastRemoteHistoryId(email: Email, previousHistoryId: Option[BigInt]): Future[Option[BigInt]] = {
     if (previousHistoryId.isDefined) {
@@ -0,0 +1,122 @@
+package services
+
+import java.io.StringWriter
+import javax.inject.Singleton
+
+import io.prometheus.client.exporter.common.TextFormat
+import io.prometheus.client.{CollectorRegistry, Counter, Gauge, Histogram, SimpleCollector}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Metrics of the Gmail API calls, of the job queues and of the push notifications, exposed in the Prometheus text format. Recording is a lookup of the labels followed by an
+ * atomic update, cheap enough to be always on.
+ */
+@Singleton
+class Metrics {
+
+  val registry = new CollectorRegistry
+
+  val gmailRequests = Counter.build()
+    .name("gmail_requests_total").help("Gmail API requests.")
+    .labelNames("user", "method").register(registry)
+
+  val gmailRequestErrors = Counter.build()
+    .name("gmail_request_errors_total").help("Gmail API requests which failed.")
+    .labelNames("user", "method").register(registry)
+
+  val gmailRequestDuration = Histogram.build()
+    .name("gmail_request_duration_seconds").help("Duration of the Gmail API requests once released by the throttler.")
+    .labelNames("user", "method")
+    .buckets(0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10)
+    .register(registry)
+
+  val gmailThrottlerWait = Histogram.build()
+    .name("gmail_throttler_wait_seconds").help("Time spent by the Gmail API requests waiting in the throttler queue of the user.")
+    .labelNames("user", "method")
+    .buckets(0.001, 0.01, 0.1, 0.5, 1, 2.5, 5, 10, 30, 60)
+    .register(registry)
+
+  val gmailThrottlerQueued = Gauge.build()
+    .name("gmail_throttler_queued_requests").help("Gmail API requests waiting in the throttler queue of the user.")
+    .labelNames("user").register(registry)
+
+  val jobQueueDepth = Gauge.build()
+    .name("job_queue_depth").help("Jobs waiting in the job queue of the user.")
+    .labelNames("user").register(registry)
+
+  val jobQueueWait = Histogram.build()
+    .name("job_queue_wait_seconds").help("Time spent by the jobs waiting in the job queue of their user.")
+    .labelNames("kind")
+    .buckets(0.01, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900)
+    .register(registry)
+
+  val jobRunDuration = Histogram.build()
+    .name("job_run_seconds").help("Duration of the jobs run by the job queues.")
+    .labelNames("kind")
+    .buckets(0.1, 0.5, 1, 5, 10, 30, 60, 300, 900)
+    .register(registry)
+
+  val jobsSkipped = Counter.build()
+    .name("jobs_skipped_total").help("Jobs skipped because an identical job was already waiting.")
+    .labelNames("user").register(registry)
+
+  val jobsTimedOut = Counter.build()
+    .name("jobs_timed_out_total").help("Jobs given up on after their deadline.")
+    .labelNames("user").register(registry)
+
+  val notificationsReceived = Counter.build()
+    .name("notifications_received_total").help("Gmail push notifications received.")
+    .labelNames("user").register(registry)
+
+  val notificationsAbsorbed = Counter.build()
+    .name("notifications_absorbed_total").help("Gmail push notifications merged into the sync of an earlier one.")
+    .labelNames("user").register(registry)
+
+  /**
+   * Removes the Gmail series of a user whose throttler stopped, they would otherwise be exported until the node restarts. The
+   * methods are read from the recorded series so that every one of them is removed.
+   */
+  def removeGmailSeries(user: String): Unit = {
+    gmailThrottlerQueued.remove(user)
+    List[SimpleCollector[_]](gmailRequests, gmailRequestErrors, gmailRequestDuration, gmailThrottlerWait).foreach { collector =>
+      val methods = for {
+        family <- collector.collect.asScala
+        sample <- family.samples.asScala
+        labels = sample.labelNames.asScala.zip(sample.labelValues.asScala).toMap
+        if labels.get("user").contains(user)
+        method <- labels.get("method")
+      } yield method
+      methods.distinct.foreach(collector.remove(user, _))
+    }
+  }
+
+  /**
+   * Removes the job series of a user whose job queue stopped.
+   */
+  def removeJobSeries(user: String): Unit = {
+    jobQueueDepth.remove(user)
+    jobsSkipped.remove(user)
+    jobsTimedOut.remove(user)
+  }
+
+  /**
+   * Removes the notification series of a user whose debouncer stopped.
+   */
+  def removeNotificationSeries(user: String): Unit = {
+    notificationsReceived.remove(user)
+    notificationsAbsorbed.remove(user)
+  }
+
+  def scrape: String = {
+    val writer = new StringWriter
+    TextFormat.write004(writer, registry.metricFamilySamples)
+    writer.toString
+  }
+}
+
+object Metrics {
+  val ContentType = TextFormat.CONTENT_TYPE_004
+
+  def seconds(nanos: Long): Double = nanos / 1e9
+}
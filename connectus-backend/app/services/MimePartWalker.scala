@@ -0,0 +1,137 @@
+package services
+
+import java.nio.charset.{Charset, CharsetDecoder, CodingErrorAction, StandardCharsets}
+import java.nio.{ByteBuffer, CharBuffer}
+
+import com.google.api.services.gmail.model.{MessagePart, MessagePartHeader}
+
+import scala.collection.JavaConverters._
+import scala.util.Try
+
+/**
+ * Extracts the text of a message from its parts. The parts are walked breadth first without building intermediate lists and the
+ * walk stops at the first text/plain part. Its base64url body is decoded straight into a buffer reused by the thread, and only the
+ * bytes needed for a preview of at most maxChars characters are decoded.
+ */
+object MimePartWalker {
+
+  val TextPlain = "text/plain"
+  val MaxPreviewChars = 100 * 1024
+
+  // a character never takes more than 4 bytes in the charsets found in emails
+  private val MaxBytesPerChar = 4
+
+  private val Base64Values: Array[Byte] = {
+    val values = Array.fill[Byte](128)(-1)
+    val alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+    alphabet.indices.foreach(i => values(alphabet.charAt(i)) = i.toByte)
+    // Gmail uses the url safe alphabet, the standard one is accepted as well
+    values('-') = 62
+    values('+') = 62
+    values('_') = 63
+    values('/') = 63
+    values
+  }
+
+  private val byteBuffers = new ThreadLocal[Array[Byte]] {
+    override def initialValue = new Array[Byte](8 * 1024)
+  }
+
+  private val charBuffers = new ThreadLocal[CharBuffer] {
+    override def initialValue = CharBuffer.allocate(8 * 1024)
+  }
+
+  def content(payload: MessagePart, maxChars: Int = MaxPreviewChars): Option[String] =
+    find(payload, TextPlain).flatMap(text(_, maxChars))
+
+  /**
+   * First part of the given mime type, the parts of a level are looked at before their children.
+   */
+  def find(root: MessagePart, mimeType: String): Option[MessagePart] = {
+    val queue = new java.util.ArrayDeque[MessagePart]()
+    queue.add(root)
+    var found: Option[MessagePart] = None
+    while (found.isEmpty && !queue.isEmpty) {
+      val part = queue.poll()
+      if (mimeType.equalsIgnoreCase(part.getMimeType)) {
+        found = Some(part)
+      } else if (part.getParts != null) {
+        queue.addAll(part.getParts)
+      }
+    }
+    found
+  }
+
+  def text(part: MessagePart, maxChars: Int = MaxPreviewChars): Option[String] =
+    for {
+      body <- Option(part.getBody)
+      data <- Option(body.getData)
+    } yield decode(data, charset(part.getHeaders), maxChars)
+
+  /**
+   * Charset parameter of the Content-Type header, UTF-8 when it is missing or unsupported.
+   */
+  def charset(headers: java.util.List[MessagePartHeader]): Charset = {
+    val contentType = Option(headers).flatMap(_.asScala.find(_.getName.equalsIgnoreCase("Content-Type"))).flatMap(header => Option(header.getValue))
+    contentType
+      .flatMap(_.split(';').map(_.trim).find(_.toLowerCase.startsWith("charset=")))
+      .map(_.substring("charset=".length).trim.stripPrefix("\"").stripSuffix("\""))
+      .flatMap(name => Try(Charset.forName(name)).toOption)
+      .getOrElse(StandardCharsets.UTF_8)
+  }
+
+  private def decode(data: String, charset: Charset, maxChars: Int): String = {
+    val maxBytes = maxChars.toLong * MaxBytesPerChar
+    val bytes = byteBuffer((data.length.toLong * 3 / 4).min(maxBytes).toInt)
+    val length = decodeBase64(data, bytes, maxBytes.min(bytes.length).toInt)
+    val complete = length < maxBytes
+
+    val chars = charBuffer(maxChars.min(length))
+    val decoder: CharsetDecoder = charset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    // an incomplete sequence at the end of a truncated body is left undecoded
+    decoder.decode(ByteBuffer.wrap(bytes, 0, length), chars, complete)
+    if (complete) decoder.flush(chars)
+    chars.flip()
+    chars.toString
+  }
+
+  /**
+   * Decodes at most maxBytes bytes of base64 data into bytes, characters out of the alphabet such as padding are skipped.
+   */
+  private def decodeBase64(data: String, bytes: Array[Byte], maxBytes: Int): Int = {
+    var length = 0
+    var accumulator = 0
+    var bits = 0
+    var i = 0
+    while (i < data.length && length < maxBytes) {
+      val c = data.charAt(i)
+      val value = if (c < 128) Base64Values(c) else -1
+      if (value >= 0) {
+        accumulator = ((accumulator << 6) | value) & 0xffff
+        bits += 6
+        if (bits >= 8) {
+          bits -= 8
+          bytes(length) = (accumulator >> bits).toByte
+          length += 1
+        }
+      }
+      i += 1
+    }
+    length
+  }
+
+  private def byteBuffer(size: Int): Array[Byte] = {
+    if (byteBuffers.get.length < size) byteBuffers.set(new Array[Byte](size))
+    byteBuffers.get
+  }
+
+  private def charBuffer(size: Int): CharBuffer = {
+    if (charBuffers.get.capacity < size) charBuffers.set(CharBuffer.allocate(size))
+    val buffer = charBuffers.get
+    buffer.clear()
+    buffer.limit(size)
+    buffer
+  }
+}
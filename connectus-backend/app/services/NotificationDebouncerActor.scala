@@ -0,0 +1,77 @@
+package services
+
+import javax.inject.Inject
+
+import akka.actor.{Actor, ActorLogging, ActorRef, Cancellable, Status}
+import common._
+import conf.AppConf
+import services.JobQueueActor.SyncRequest
+
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+import scala.util.{Failure, Success}
+
+object NotificationDebouncerActor {
+  final val actorName = "notificationDebouncerActor"
+  case class Notify(email: Email, historyId: BigInt) extends UserMessage
+  private case class Flush(generation: Long)
+  private case class Pending(email: Email, historyId: BigInt, clients: List[ActorRef], firstReceivedNanos: Long, timer: Cancellable)
+}
+
+/**
+ * Gmail often pushes several notifications for a user within a second. A notification opens a window during which the following
+ * ones are absorbed, only the highest historyId is kept. The window is extended by each notification up to the maximum delay
+ * after the first one, then a single sync is queued and its result is sent to every notifier. The notifications received and
+ * absorbed are counted per user, the user supervisor being named after the user.
+ */
+class NotificationDebouncerActor @Inject()(implicit exec: ExecutionContext, appConf: AppConf, actorsClient: ActorsClient, messageService: MessageService, metrics: Metrics)
+  extends Actor with ActorLogging {
+
+  import NotificationDebouncerActor._
+
+  val window = appConf.getNotificationDebounceWindowMilliSeconds.millis
+  val maxDelay = appConf.getNotificationDebounceMaxDelayMilliSeconds.millis
+  val user = context.parent.path.name
+  val received = metrics.notificationsReceived.labels(user)
+  val absorbed = metrics.notificationsAbsorbed.labels(user)
+
+  var pending: Option[Pending] = None
+  var generation = 0L
+
+  override def receive: Receive = {
+    case Notify(email, historyId) =>
+      received.inc()
+      val now = System.nanoTime
+      pending = Some(pending match {
+        case Some(current) =>
+          absorbed.inc()
+          current.timer.cancel()
+          val untilMaxDelay = (current.firstReceivedNanos + maxDelay.toNanos - now).nanos
+          current.copy(historyId = current.historyId.max(historyId), clients = sender :: current.clients, timer = scheduleFlush(window.min(untilMaxDelay)))
+        case None =>
+          Pending(email, historyId, List(sender), now, scheduleFlush(window))
+      })
+    case Flush(flushGeneration) if flushGeneration == generation =>
+      pending.foreach(flush)
+      pending = None
+  }
+
+  private def scheduleFlush(delay: FiniteDuration): Cancellable = {
+    generation += 1
+    context.system.scheduler.scheduleOnce(delay.max(Duration.Zero), self, Flush(generation))
+  }
+
+  private def flush(pending: Pending) = {
+    log.info(s"Syncing up to historyId ${pending.historyId} for ${pending.clients.size} notifications, ${absorbed.get.toLong} of ${received.get.toLong} notifications absorbed so far for ${pending.email}")
+    actorsClient.scheduleSyncOnUserJobQueue(pending.email, SyncRequest(Some(pending.historyId)), messageService.sync(pending.email, _))
+      .onComplete {
+        case Success(result) => pending.clients.foreach(_ ! result)
+        case Failure(e) => pending.clients.foreach(_ ! Status.Failure(e))
+      }
+  }
+
+  override def postStop(): Unit = {
+    pending.foreach(_.timer.cancel())
+    metrics.removeNotificationSeries(user)
+  }
+}
@@ -12,7 +12,7 @@ import model.{AttachmentRequest, Contact, GmailLabel, GmailMessage, InternetAddr
 import play.api.Logger
 import services.AccountInitializer.TradeSuccess
 import services.FirebaseConstants._
-import services.Repository.{AuthorizationCodes, MessagesSnapshot, UserCredential}
+import services.Repository.{AttachmentLink, AuthorizationCodes, MessagesSnapshot, ResidentIndex, SyncCursor, UserCredential}
 
 import scala.collection.JavaConverters._
 import scala.collection.immutable.TreeMap
@@ -28,6 +28,16 @@ object FirebaseConstants {
   val RefreshTokenPath = "refresh_token"
   val AccessTokenPath = "access_token"
   val ExpirationTimeMilliSecondsPath = "expiration_time_milli_seconds"
+  val SyncCursorsPath = "sync_cursors"
+  val LegacySyncCursorPath = "sync_cursor"
+  val HistoryIdPath = "history_id"
+  val LastSyncTimeMilliSecondsPath = "last_sync_time_milli_seconds"
+  val IndexPath = "index"
+  val IndexVersionPath = "indexVersion"
+  val IndexVersion = 1
+  val IndexMessagesPath = "messages"
+  val IndexLabelsPath = "labels"
+  val ThreadHistoryIdProperty = "historyId"
   val UsersPath = "users"
   val ResidentsPath = "residents"
   val ContactsPath = "contacts"
@@ -53,7 +63,27 @@ object Util {
 object Repository {
   case class AuthorizationCodes(authorizationCodeId: String, androidId: String, authorizationCode: String, tradeCode: Option[String])
   case class UserCredential(refreshToken: String, accessToken: String, expirationTimeInMilliSeconds: Long)
-  case class MessagesSnapshot(allThreadIds: Map[ThreadId, List[MessageId]] = Map(), messagesLabels: Map[MessageId, List[GmailLabel]] = Map())
+  case class SyncCursor(historyId: BigInt, lastSyncTimeInMilliSeconds: Long)
+  case class AttachmentLink(partId: String, url: String, accessToken: String, mimeType: String, thumbnailUrl: Option[String] = None)
+  /**
+   * When indexed is false, the snapshot was read from the threads because the index has not been fully built yet.
+   */
+  case class MessagesSnapshot(allThreadIds: Map[ThreadId, List[MessageId]] = Map(), messagesLabels: Map[MessageId, List[GmailLabel]] = Map(), threadsHistoryIds: Map[ThreadId, BigInt] = Map(), indexed: Boolean = true) {
+    def ++(other: MessagesSnapshot) =
+      MessagesSnapshot(allThreadIds ++ other.allThreadIds, messagesLabels ++ other.messagesLabels, threadsHistoryIds ++ other.threadsHistoryIds, indexed && other.indexed)
+  }
+  /**
+   * The residents indexed by the id and the name of their label, built once per save so that finding the resident of a message
+   * does not scan every resident.
+   */
+  case class ResidentIndex(residentLabels: Map[Resident, GmailLabel]) {
+    val residents = residentLabels.keys.toList
+    private val byLabelId = residents.flatMap(resident => resident.labelId.map(_ -> resident)).toMap
+    private val byLabelName = residentLabels.map { case (resident, label) => label.name -> resident }
+
+    def fromLabelIds(labels: List[GmailLabel]): Option[Resident] = labels.collectFirst { case label if byLabelId.contains(label.id) => byLabelId(label.id) }
+    def fromLabelNames(labels: List[GmailLabel]): Option[Resident] = labels.collectFirst { case label if byLabelName.contains(label.name) => byLabelName(label.name) }
+  }
 }
 
 @Singleton
@@ -72,14 +102,42 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
   def getCredentials(email: Email): Future[UserCredential] = {
     val encodedEmail = Util.encode(email)
     val url = s"${appConf.getFirebaseUrl}/$UsersPath/$encodedEmail"
+    firebaseFutureWrappers.getValueFuture(url).map(toUserCredential)
+  }
+
+  /**
+   * The users without a refresh token are left out.
+   */
+  def getAllCredentials: Future[Map[Email, UserCredential]] = {
+    val url = s"${appConf.getFirebaseUrl}/$UsersPath"
     firebaseFutureWrappers.getValueFuture(url).map { dataSnapshot =>
-      val refreshToken = dataSnapshot.child(RefreshTokenPath).getValue.asInstanceOf[String]
-      val accessToken = dataSnapshot.child(AccessTokenPath).getValue.asInstanceOf[String]
-      val expirationTimeInMilliSeconds = Long.unbox(dataSnapshot.child(ExpirationTimeMilliSecondsPath).getValue)
-      UserCredential(refreshToken, accessToken, expirationTimeInMilliSeconds)
+      toChildrenList(dataSnapshot)
+        .filter(_.child(RefreshTokenPath).exists)
+        .map(user => (Util.decode(user.getKey), toUserCredential(user)))
+        .toMap
     }
   }
 
+  /**
+   * Empties the node of the user so that its removal stops the user, the sync cursor saved under it by earlier versions included.
+   */
+  def deleteCredentials(email: Email): Future[Unit] = {
+    val encodedEmail = Util.encode(email)
+    val values: Map[String, AnyRef] = Map(
+      s"$UsersPath/$encodedEmail/$RefreshTokenPath" -> null,
+      s"$UsersPath/$encodedEmail/$AccessTokenPath" -> null,
+      s"$UsersPath/$encodedEmail/$ExpirationTimeMilliSecondsPath" -> null,
+      s"$UsersPath/$encodedEmail/$LegacySyncCursorPath" -> null)
+    firebaseFutureWrappers.updateChildrenFuture(appConf.getFirebaseUrl, values)
+  }
+
+  private def toUserCredential(dataSnapshot: DataSnapshot) = {
+    val refreshToken = dataSnapshot.child(RefreshTokenPath).getValue.asInstanceOf[String]
+    val accessToken = dataSnapshot.child(AccessTokenPath).getValue.asInstanceOf[String]
+    val expirationTimeInMilliSeconds = Long.unbox(dataSnapshot.child(ExpirationTimeMilliSecondsPath).getValue)
+    UserCredential(refreshToken, accessToken, expirationTimeInMilliSeconds)
+  }
+
   def initAccount(tradeSuccess: TradeSuccess) = {
     val email = tradeSuccess.googleTokenResponse.parseIdToken().getPayload.getEmail
     def expirationTimeInMilliSeconds(expiresInSecondsFromNow: Long) = System.currentTimeMillis + expiresInSecondsFromNow * 1000
@@ -99,6 +157,28 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
     firebaseFutureWrappers.updateChildrenFuture(appConf.getFirebaseUrl, values)
   }
 
+  /**
+   * The historyId is saved as a string since Gmail defines it as an unsigned 64-bit integer. The cursor is kept outside the node of
+   * the user, which must become empty once its credentials are deleted.
+   */
+  def saveSyncCursor(email: Email, syncCursor: SyncCursor): Future[Unit] = {
+    val syncCursorPath = s"$SyncCursorsPath/${Util.encode(email)}"
+    val values: Map[String, AnyRef] = Map(
+      s"$syncCursorPath/$HistoryIdPath" -> syncCursor.historyId.toString,
+      s"$syncCursorPath/$LastSyncTimeMilliSecondsPath" -> Long.box(syncCursor.lastSyncTimeInMilliSeconds))
+    firebaseFutureWrappers.updateChildrenFuture(appConf.getFirebaseUrl, values)
+  }
+
+  def getSyncCursor(email: Email): Future[Option[SyncCursor]] = {
+    val url = s"${appConf.getFirebaseUrl}/$SyncCursorsPath/${Util.encode(email)}"
+    firebaseFutureWrappers.getValueFuture(url).map { dataSnapshot =>
+      for {
+        historyId <- Option(dataSnapshot.child(HistoryIdPath).getValue.asInstanceOf[String])
+        lastSyncTimeInMilliSeconds <- Option(dataSnapshot.child(LastSyncTimeMilliSecondsPath).getValue)
+      } yield SyncCursor(BigInt(historyId), Long.unbox(lastSyncTimeInMilliSeconds))
+    }
+  }
+
   private def getCode(exception: Throwable) = {
     exception match {
       case tre: TokenResponseException if tre.getDetails.getError == "invalid_grant" => LoginCodeInvalidGrant
@@ -106,35 +186,87 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
     }
   }
 
+  /**
+   * Only the compact index of the threads is read, the threads themselves are read until a first full save has built the index.
+   */
   def getMessagesSnapshot(email: Email): Future[MessagesSnapshot] = {
-    def toChildrenList(snapshot: DataSnapshot) = snapshot.getChildren.iterator().asScala.toList
-    val encodedEmail = Util.encode(email)
-    val url = s"${appConf.getFirebaseUrl}/messages/$encodedEmail/admin/threads"
-    firebaseFutureWrappers.getValueFuture(url).map(snapshot => {
-      val messages = toChildrenList(snapshot)
-      val threadsPairs = messages.flatMap(thread => {
-        toChildrenList(thread).map(message => {
-          val threadId = thread.getKey
-          val messageId = message.getKey
-          (threadId, messageId)
-        })
+    def getValue(path: String) = firebaseFutureWrappers.getValueFuture(s"${appConf.getFirebaseUrl}/$path")
+    getValue(indexVersionPath(email)).flatMap { indexVersion =>
+      if (indexVersion.exists) {
+        getValue(indexPath(email)).map(index => toMessagesSnapshot(toChildrenList(index)))
+      } else {
+        Logger.info(s"Index not built yet, reading all the threads for $email")
+        getValue(s"${adminContainerPath(email)}/threads").map(threads => toLegacyMessagesSnapshot(toChildrenList(threads)))
+      }
+    }
+  }
+
+  def getMessagesSnapshot(email: Email, threadIds: Set[ThreadId]): Future[MessagesSnapshot] = {
+    def getValue(path: String) = firebaseFutureWrappers.getValueFuture(s"${appConf.getFirebaseUrl}/$path")
+    def getThreadSnapshot(threadId: ThreadId) =
+      getValue(s"${indexPath(email)}/$threadId").flatMap { threadIndex =>
+        if (threadIndex.exists) {
+          fs(toMessagesSnapshot(List(threadIndex)))
+        } else {
+          getValue(s"${adminContainerPath(email)}/threads/$threadId").map(thread => toLegacyMessagesSnapshot(List(thread).filter(_.exists)))
+        }
+      }
+    Future.sequence(threadIds.toList.map(getThreadSnapshot)).map(_.foldLeft(MessagesSnapshot())(_ ++ _))
+  }
+
+  private def toChildrenList(snapshot: DataSnapshot) = snapshot.getChildren.iterator().asScala.toList
+
+  private def toMessagesSnapshot(index: List[DataSnapshot]): MessagesSnapshot = {
+    val allThreadIds = index.map { thread =>
+      (thread.getKey, toChildrenList(thread.child(IndexMessagesPath)).map(_.getKey))
+    }.toMap
+    val labels = index.flatMap { thread =>
+      toChildrenList(thread.child(IndexMessagesPath)).map { message =>
+        (message.getKey, toLabels(message.child(IndexLabelsPath)))
+      }
+    }.toMap
+    val threadsHistoryIds = index.flatMap { thread =>
+      Option(thread.child(ThreadHistoryIdProperty).getValue.asInstanceOf[String]).map(historyId => (thread.getKey, BigInt(historyId)))
+    }.toMap
+    MessagesSnapshot(allThreadIds, labels, threadsHistoryIds)
+  }
+
+  private def toLegacyMessagesSnapshot(threads: List[DataSnapshot]): MessagesSnapshot = {
+    val threadsPairs = threads.flatMap(thread => {
+      toChildrenList(thread).map(message => {
+        val threadId = thread.getKey
+        val messageId = message.getKey
+        (threadId, messageId)
       })
-      val labelsPair = messages.flatMap(thread => {
-        toChildrenList(thread).map(message => {
-          val messageId = message.getKey
-          val labels = toChildrenList(message.child("labels")).map(label => GmailLabel(label.getKey, label.getValue.asInstanceOf[String]))
-          (messageId, labels)
-        })
+    })
+    val labelsPair = threads.flatMap(thread => {
+      toChildrenList(thread).map(message => {
+        val messageId = message.getKey
+        val labels = toLabels(message.child("labels"))
+        (messageId, labels)
       })
-      val threads = threadsPairs.groupBy(_._1).mapValues(_.map(_._2))
-      val labels = labelsPair.toMap
-      MessagesSnapshot(threads, labels)
     })
+    val allThreadIds = threadsPairs.groupBy(_._1).mapValues(_.map(_._2))
+    val labels = labelsPair.toMap
+    MessagesSnapshot(allThreadIds, labels, indexed = false)
   }
 
+  private def toLabels(labels: DataSnapshot) = toChildrenList(labels).map(label => GmailLabel(label.getKey, label.getValue.asInstanceOf[String]))
+
   def saveMessages(values: Map[String, AnyRef]): Future[Unit] =
     firebaseFutureWrappers.updateChildrenFuture(appConf.getFirebaseUrl, values)
 
+  /**
+   * Every group holds the paths of one thread so that its messages and its index entry are written together. When a group is too
+   * large to be written at once, its index entry is only written after its messages, otherwise the index could record a thread
+   * whose messages were never saved and the next sync would skip it.
+   */
+  def saveMessages(email: Email, groups: List[Map[String, AnyRef]]): Future[Unit] = {
+    val settings = FirebaseWriteSettings(appConf.getFirebaseWriteChunkPaths, appConf.getFirebaseWriteChunkBytes, appConf.getFirebaseWriteParallelism)
+    val threadsIndexPath = s"${indexPath(email)}/"
+    firebaseFutureWrappers.updateChildrenInChunksFuture(appConf.getFirebaseUrl, groups.iterator, settings, _.startsWith(threadsIndexPath))
+  }
+
   def addResidentLabelId(email: Email, residentId: String, labelId: String): Future[Unit] = {
     val url = s"${appConf.getFirebaseUrl}/$ResidentsPath/${Util.encode(email)}/$residentId/$ResidentLabelIdProperty"
     firebaseFutureWrappers.setValueFuture(url, labelId)
@@ -172,37 +304,79 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
     residents.zip(contacts).map(ee => merge(ee._1, ee._2))
   }
 
-  def saveThreads(email: Email, threadBundles: List[ThreadBundle], messagesSnapshot: MessagesSnapshot, residentLabels: Map[Resident, GmailLabel]) = {
-    val threadsDeletionValues = buildThreadsDeletionValues(email, threadBundles, messagesSnapshot.allThreadIds, residentLabels.keys.toList)
-    val allDeletedMessageIds = findDeletedMessageIds(messagesSnapshot.allThreadIds, threadBundles)
-    val values = threadBundles.flatMap { threadBundle =>
+  /**
+   * The threads of unchangedThreadIds are still in the mailbox but were not fetched since their historyId did not change, they
+   * are neither written nor deleted.
+   */
+  def saveThreads(email: Email, threadBundles: List[ThreadBundle], messagesSnapshot: MessagesSnapshot, residentLabels: Map[Resident, GmailLabel], unchangedThreadIds: Set[ThreadId] = Set()) = {
+    val deletedThreadIds = findDeletedThreadIds(messagesSnapshot.allThreadIds, threadBundles).filterNot(unchangedThreadIds)
+    for {
+      _ <- saveThreadChanges(email, threadBundles, deletedThreadIds, messagesSnapshot, residentLabels)
+      _ <- if (messagesSnapshot.indexed) fs(()) else saveIndexVersion(email)
+    } yield ()
+  }
+
+  /**
+   * Every thread was written along with its index entry, so the index can be read instead of the threads from now on.
+   */
+  private def saveIndexVersion(email: Email): Future[Unit] = {
+    Logger.info(s"Index built for $email")
+    firebaseFutureWrappers.setValueFuture(s"${appConf.getFirebaseUrl}/${indexVersionPath(email)}", Int.box(IndexVersion))
+  }
+
+  /**
+   * Unlike saveThreads, only the given threads are written, every other thread of the snapshot is left untouched. A thread whose
+   * Gmail historyId matches the one saved by a previous run has not changed and is skipped as well.
+   */
+  def saveThreadChanges(email: Email, threadBundles: List[ThreadBundle], deletedThreadIds: List[ThreadId], messagesSnapshot: MessagesSnapshot, residentLabels: Map[Resident, GmailLabel]) = {
+    val groups = buildThreadChangesValues(email, threadBundles, deletedThreadIds, messagesSnapshot, residentLabels)
+    if (groups.isEmpty) {
+      fs(())
+    } else {
+      if (Logger.isTraceEnabled) {
+        val printableValues = TreeMap(groups.flatten: _*).mkString("\n")
+        Logger.trace(s"Saving values: \n$printableValues")
+      }
+      saveMessages(email, groups)
+    }
+  }
+
+  /**
+   * The values written by saveThreadChanges, one group per thread. Every lookup goes through a map or a set so that building
+   * the values is linear in the number of messages.
+   */
+  def buildThreadChangesValues(email: Email, threadBundles: List[ThreadBundle], deletedThreadIds: List[ThreadId], messagesSnapshot: MessagesSnapshot, residentLabels: Map[Resident, GmailLabel]): List[Map[String, AnyRef]] = {
+    val residentIndex = ResidentIndex(residentLabels)
+    val changedThreadBundles = findChangedThreadBundles(messagesSnapshot.threadsHistoryIds, threadBundles)
+    val threadsDeletionValues = buildThreadsDeletionValues(email, deletedThreadIds, residentIndex.residents)
+    val allDeletedMessageIds = findDeletedMessageIds(messagesSnapshot.allThreadIds, changedThreadBundles)
+    val threadsValues = changedThreadBundles.map { threadBundle =>
       val deletedMessageIds = allDeletedMessageIds.get(threadBundle.thread.id).fold[List[MessageId]](List())(identity)
-      def adminThreadValues = buildThreadValues(email, adminContainerPath(email), threadBundle, residentLabels, deletedMessageIds, messagesSnapshot.messagesLabels)
+      def adminThreadValues = buildThreadValues(email, adminContainerPath(email), threadBundle, residentIndex, deletedMessageIds, messagesSnapshot.messagesLabels)
       def buildResidentThreadValues =
-        findResidentFromLabels(threadBundle.lastUntrashedMessage.get.labels, residentLabels).fold[Map[String, AnyRef]](Map())(resident => {
-          buildThreadValues(email, residentContainerPath(email, resident), threadBundle, residentLabels, deletedMessageIds, messagesSnapshot.messagesLabels)
+        residentIndex.fromLabelIds(threadBundle.lastUntrashedMessage.get.labels).fold[Map[String, AnyRef]](Map())(resident => {
+          buildThreadValues(email, residentContainerPath(email, resident), threadBundle, residentIndex, deletedMessageIds, messagesSnapshot.messagesLabels)
         })
-      threadsDeletionValues ++ adminThreadValues ++ buildResidentThreadValues
-    }.toMap
-    val printableValues = TreeMap(values.toSeq: _*).mkString("\n")
-    Logger.trace(s"Saving values: \n$printableValues")
-    saveMessages(values)
+      adminThreadValues ++ buildResidentThreadValues ++ buildIndexValues(email, threadBundle, deletedMessageIds, messagesSnapshot.messagesLabels)
+    }
+    Logger.debug(s"Writing ${changedThreadBundles.size} changed threads out of ${threadBundles.size} for $email")
+    (threadsDeletionValues :: threadsValues).filter(_.nonEmpty)
   }
 
   def adminContainerPath(email: Email) = s"messages/${Util.encode(email)}/admin"
 
   def residentContainerPath(email: Email, resident: Resident) = s"messages/${Util.encode(email)}/${resident.id}"
 
-  def findResidentFromLabels(labels: List[GmailLabel], residentLabels: Map[Resident, GmailLabel]): Option[Resident] =
-    labels.flatMap { gmailLabel =>
-      residentLabels.find { case (resident, label) => resident.labelId.fold(false)(labelId => gmailLabel.id == labelId) }
-    }.headOption.map { case (resident, label) => resident }
+  def indexPath(email: Email) = s"${adminContainerPath(email)}/$IndexPath"
+
+  def indexVersionPath(email: Email) = s"${adminContainerPath(email)}/$IndexVersionPath"
 
-  def buildThreadsDeletionValues(email: Email, threadBundles: List[ThreadBundle], adminThreadIds: Map[ThreadId, List[MessageId]], residents: List[Resident]) =
-    findDeletedThreadIds(adminThreadIds, threadBundles).flatMap { threadId =>
+  def buildThreadsDeletionValues(email: Email, deletedThreadIds: List[ThreadId], residents: List[Resident]) =
+    deletedThreadIds.flatMap { threadId =>
       val forAdmin = Map[String, AnyRef](
         s"${adminContainerPath(email)}/inbox/${threadId}" -> null,
-        s"${adminContainerPath(email)}/threads/${threadId}" -> null)
+        s"${adminContainerPath(email)}/threads/${threadId}" -> null,
+        s"${indexPath(email)}/${threadId}" -> null)
       val forResidents = residents.flatMap(resident =>
         Map(
           s"${residentContainerPath(email, resident)}/inbox/${threadId}" -> null,
@@ -210,51 +384,68 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
       forAdmin ++ forResidents
     }.toMap
 
-  def findDeletedThreadIds(adminThreadIds: Map[ThreadId, List[MessageId]], threadBundles: List[ThreadBundle]): List[ThreadId] =
-    adminThreadIds.filter { case (threadId, messageIds) => !threadBundles.map(_.thread.id).contains(threadId) }.keys.toList
+  def findDeletedThreadIds(adminThreadIds: Map[ThreadId, List[MessageId]], threadBundles: List[ThreadBundle]): List[ThreadId] = {
+    val threadIds = threadBundles.map(_.thread.id).toSet
+    adminThreadIds.keys.filterNot(threadIds).toList
+  }
+
+  def findChangedThreadBundles(threadsHistoryIds: Map[ThreadId, BigInt], threadBundles: List[ThreadBundle]): List[ThreadBundle] =
+    threadBundles.filter(threadBundle => !threadsHistoryIds.get(threadBundle.thread.id).contains(threadBundle.thread.historyId))
 
+  /**
+   * Only the threads of the bundles are looked up in the snapshot, each against the set of its message ids.
+   */
   def findDeletedMessageIds(adminThreadIds: Map[ThreadId, List[MessageId]], threadBundles: List[ThreadBundle]): Map[ThreadId, List[MessageId]] =
-    adminThreadIds.flatten { case (threadId, messageIds) =>
-      threadBundles.find(_.thread.id == threadId).find(_.thread.id == threadId).map(threadSummary => {
-        val messages = threadSummary.messages
-        val messageDeleted = messageIds.filter(!messages.map(_.id).contains(_))
-        (threadId, messageDeleted)
-      })
+    threadBundles.flatMap { threadBundle =>
+      adminThreadIds.get(threadBundle.thread.id).map { messageIds =>
+        val messageIdsSet = threadBundle.messages.map(_.id).toSet
+        (threadBundle.thread.id, messageIds.filterNot(messageIdsSet))
+      }
     }.toMap
 
-  private def buildThreadValues(email: Email, containerPath: String, threadBundle: ThreadBundle, residentLabels: Map[Resident, GmailLabel], deletedMessageIds: List[MessageId], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
-    val inboxValues = buildInboxValues(email, s"$containerPath/inbox", threadBundle, residentLabels, messagesLabels)
-    val threadsValues = buildThreadsValues(s"$containerPath/threads", threadBundle, residentLabels, deletedMessageIds, messagesLabels)
+  private def buildThreadValues(email: Email, containerPath: String, threadBundle: ThreadBundle, residentIndex: ResidentIndex, deletedMessageIds: List[MessageId], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
+    val inboxValues = buildInboxValues(email, s"$containerPath/inbox", threadBundle, residentIndex, messagesLabels)
+    val threadsValues = buildThreadsValues(s"$containerPath/threads", threadBundle, residentIndex, deletedMessageIds, messagesLabels)
     inboxValues ++ threadsValues
   }
 
-  private def buildInboxValues(email: Email, inboxPath: String, threadBundle: ThreadBundle, residentLabels: Map[Resident, GmailLabel], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
+  /**
+   * The index holds the ids of the messages and labels of every thread, it is the only node read to build the MessagesSnapshot.
+   * The historyIds are saved as strings since Gmail defines them as unsigned 64-bit integers.
+   */
+  private def buildIndexValues(email: Email, threadBundle: ThreadBundle, deletedMessageIds: List[MessageId], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
+    val threadIndexPath = s"${indexPath(email)}/${threadBundle.thread.id}"
+    val messagesValues = threadBundle.messages.flatMap { message =>
+      val messageIndexPath = s"$threadIndexPath/$IndexMessagesPath/${message.id}"
+      Map(s"$messageIndexPath/$ThreadHistoryIdProperty" -> message.historyId.toString) ++
+        buildLabelsValues(s"$messageIndexPath/$IndexLabelsPath", message, messagesLabels)
+    }.toMap
+    val messagesDeletionValues = deletedMessageIds.map { messageId => s"$threadIndexPath/$IndexMessagesPath/$messageId" -> null }.toMap[String, AnyRef]
+    Map(s"$threadIndexPath/$ThreadHistoryIdProperty" -> threadBundle.thread.historyId.toString) ++ messagesValues ++ messagesDeletionValues
+  }
+
+  private def buildInboxValues(email: Email, inboxPath: String, threadBundle: ThreadBundle, residentIndex: ResidentIndex, messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
     val threadSummaryPath = s"$inboxPath/${threadBundle.thread.id}"
     val threadSummaryInfoValues = Map[String, AnyRef](
       s"$threadSummaryPath/id" -> threadBundle.thread.id,
       s"$threadSummaryPath/snippet" -> threadBundle.thread.snippet)
     val lastMessagePath = s"$threadSummaryPath/lastMessage"
     val threadLastMessageValues = threadBundle.lastUntrashedMessage.fold[Map[String, AnyRef]](
-      Map(lastMessagePath -> null))(lastMessage => buildMessageValues(lastMessagePath, lastMessage, residentLabels, messagesLabels))
+      Map(lastMessagePath -> null))(lastMessage => buildMessageValues(lastMessagePath, lastMessage, residentIndex, messagesLabels))
     val contactEmailsPath = s"$threadSummaryPath/contactEmail"
     val contactEmailsValues = threadBundle.contactEmail(email).headOption.fold[Map[String, AnyRef]](
       Map(contactEmailsPath -> null))(contactEmail => Map(contactEmailsPath -> contactEmail))
     threadSummaryInfoValues ++ threadLastMessageValues ++ contactEmailsValues
   }
 
-  private def buildThreadsValues(threadsPath: String, threadBundle: ThreadBundle, residentLabels: Map[Resident, GmailLabel], deletedMessageIds: List[MessageId], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
-    val messagesValues = threadBundle.messages.flatMap { message => buildMessageValues(s"$threadsPath/${threadBundle.thread.id}/${message.id}", message, residentLabels, messagesLabels) }.toMap
+  private def buildThreadsValues(threadsPath: String, threadBundle: ThreadBundle, residentIndex: ResidentIndex, deletedMessageIds: List[MessageId], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
+    val messagesValues = threadBundle.messages.flatMap { message => buildMessageValues(s"$threadsPath/${threadBundle.thread.id}/${message.id}", message, residentIndex, messagesLabels) }.toMap
     val messagesDeletionValues = deletedMessageIds.map { messageIds => s"$threadsPath/${threadBundle.thread.id}/${messageIds}" -> null }.toMap[String, AnyRef]
     messagesValues ++ messagesDeletionValues
   }
 
-  private def buildMessageValues(messagePath: String, message: GmailMessage, residentLabels: Map[Resident, GmailLabel], messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
-    val labelsAsMap = message.labels.map { label => s"$messagePath/labels/${label.id}" -> label.name }.toMap
-    val labelsDeletionsAsMap = messagesLabels
-      .get(message.id)
-      .map(currentLabels => currentLabels.filter(currentLabel => !message.labels.exists(_.id == currentLabel.id)))
-      .map(_.map(label => s"$messagePath/labels/${label.id}" -> null).toMap)
-      .fold(Map[String, AnyRef]())(identity)
+  private def buildMessageValues(messagePath: String, message: GmailMessage, residentIndex: ResidentIndex, messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
+    val labelsAsMap = buildLabelsValues(s"$messagePath/labels", message, messagesLabels)
     val attachmentsAsMap = message.attachments.map { attachment => {
       Map[String, AnyRef](
         s"$messagePath/attachments/partId${attachment.partId}/mimeType" -> attachment.mimeType,
@@ -262,11 +453,8 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
         s"$messagePath/attachments/partId${attachment.partId}/bodySize" -> Int.box(attachment.bodySize))
     }
     }.flatten.toMap
-    val residentAsMap = residentLabels
-      .find { case (resident, label) =>
-        message.labels.find(gmailLabel => gmailLabel.name == label.name).isDefined
-      }
-      .map { case (resident, label) =>
+    val residentAsMap = residentIndex.fromLabelNames(message.labels)
+      .map { resident =>
         Map(
           s"$messagePath/resident/${ResidentIdProperty}" -> resident.id,
           s"$messagePath/resident/${ResidentNameProperty}" -> resident.name,
@@ -279,7 +467,18 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
       s"$messagePath/reverseDate" -> Long.box(Util.foldToZero[ZonedDateTime](message.date, Long.MaxValue - _.toInstant.toEpochMilli)),
       s"$messagePath/subject" -> Util.foldToBlank[String](message.subject, identity),
       s"$messagePath/content" -> Util.foldToBlank[String](message.content, identity))
-    labelsAsMap ++ labelsDeletionsAsMap ++ attachmentsAsMap ++ residentAsMap ++ messagesAsMap
+    labelsAsMap ++ attachmentsAsMap ++ residentAsMap ++ messagesAsMap
+  }
+
+  private def buildLabelsValues(labelsPath: String, message: GmailMessage, messagesLabels: Map[MessageId, List[GmailLabel]]): Map[String, AnyRef] = {
+    val labelsAsMap = message.labels.map { label => s"$labelsPath/${label.id}" -> label.name }.toMap
+    lazy val labelIds = message.labels.map(_.id).toSet
+    val labelsDeletionsAsMap = messagesLabels
+      .get(message.id)
+      .map(currentLabels => currentLabels.filterNot(currentLabel => labelIds(currentLabel.id)))
+      .map(_.map(label => s"$labelsPath/${label.id}" -> null).toMap)
+      .fold(Map[String, AnyRef]())(identity)
+    labelsAsMap ++ labelsDeletionsAsMap
   }
 
   def deleteOutboxMessage(email: Email, id: String) = {
@@ -287,23 +486,29 @@ class Repository @Inject()(implicit exec: ExecutionContext, firebaseFutureWrappe
     firebaseFutureWrappers.setValueFuture(url, null)
   }
 
-  def saveAttachmentResponse(email: Email, message: GmailMessage) = {
-    def buildValues(accessToken: String) = {
-      val clearRequest = Map(s"requests/${message.id}" -> null)
-      val attachmentsAsMap = message.attachments.flatMap { attachment =>
-        Map(
-          s"responses/partId${attachment.partId}/url" -> s"https://www.googleapis.com/gmail/v1/users/$email/messages/${message.id}/attachments/${attachment.bodyAttachmentId}",
-          s"responses/partId${attachment.partId}/accessToken" -> accessToken,
-          s"responses/partId${attachment.partId}/mimeType" -> attachment.mimeType)
-      }.toMap
-      clearRequest ++ attachmentsAsMap
+  /**
+   * Links the attachments straight to Gmail with the access token of the user, used when no attachment proxy is configured.
+   */
+  def saveAttachmentResponse(email: Email, message: GmailMessage): Future[Unit] =
+    getCredentials(email).flatMap { userCredential =>
+      val links = message.attachments.map { attachment =>
+        val url = s"https://www.googleapis.com/gmail/v1/users/$email/messages/${message.id}/attachments/${attachment.bodyAttachmentId}"
+        AttachmentLink(attachment.partId, url, userCredential.accessToken, attachment.mimeType)
+      }
+      saveAttachmentLinks(email, message.id, links)
     }
+
+  def saveAttachmentLinks(email: Email, messageId: MessageId, links: List[AttachmentLink]): Future[Unit] = {
+    val clearRequest = Map(s"requests/$messageId" -> null)
+    val attachmentsAsMap = links.flatMap { link =>
+      Map(
+        s"responses/partId${link.partId}/url" -> link.url,
+        s"responses/partId${link.partId}/accessToken" -> link.accessToken,
+        s"responses/partId${link.partId}/mimeType" -> link.mimeType) ++
+        link.thumbnailUrl.map(thumbnailUrl => s"responses/partId${link.partId}/thumbnailUrl" -> thumbnailUrl)
+    }.toMap
     val url = s"${appConf.getFirebaseUrl}/attachments/${Util.encode(email)}"
-    for {
-      userCredential <- getCredentials(email)
-      values = buildValues(userCredential.accessToken)
-      _ <- firebaseFutureWrappers.updateChildrenFuture(url, values)
-    } yield ()
+    firebaseFutureWrappers.updateChildrenFuture(url, clearRequest ++ attachmentsAsMap)
   }
 }
 
@@ -315,6 +520,10 @@ class RepositoryListeners @Inject()(firebaseFutureWrappers: FirebaseFutureWrappe
     firebaseFutureWrappers.listenChildEvent(s"${appConf.getFirebaseUrl}/${UsersPath}", snapshot => onUserAdded(toEmail(snapshot)), snapshot => onUserRemoved(toEmail(snapshot)))
   }
 
+  def listenForRefreshToken(email: Email, onRefreshTokenChanged: String => Unit): FirebaseCancellable =
+    firebaseFutureWrappers.listenValueEvent(s"${appConf.getFirebaseUrl}/$UsersPath/${Util.encode(email)}/$RefreshTokenPath",
+      snapshot => Option(snapshot.getValue.asInstanceOf[String]).foreach(onRefreshTokenChanged))
+
   def listenForAuthorizationCodes(onAuthorizationCodesAdded: AuthorizationCodes => Unit): FirebaseCancellable =
     firebaseFutureWrappers.listenChildEvent(s"${appConf.getFirebaseUrl}/${AuthorizationCodesPath}", snapshot => {
       val providedAndroidId = snapshot.child(AndroidIdPath).getValue.asInstanceOf[String]
@@ -3,38 +3,117 @@ package services
 import java.util
 import javax.inject.Inject
 
+import akka.actor.{ActorSystem, Scheduler}
+import akka.pattern.after
 import com.google.api.client.auth.oauth2.StoredCredential
 import com.google.api.client.util.store.DataStore
+import common._
+import play.api.Logger
+import services.Repository.UserCredential
 import services.support.{SCDataStore, SCRepositoryDataStoreFactory}
 
-import scala.concurrent.duration.Duration
-import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future, Promise}
 import scala.language.postfixOps
 
-class RepositoryDataStoreFactory @Inject()(repository: Repository, implicit val exec: ExecutionContext) extends SCRepositoryDataStoreFactory {
-  override def createStoredCredentialDataStore(id: String): DataStore[StoredCredential] = new SCDataStore(this, id) {
-    // this method needs to be implemented when tokens are refreshed by Credential.refreshToken()
-    override def set(key: String, value: StoredCredential): DataStore[StoredCredential] = {
-      val credential = value.asInstanceOf[StoredCredential]
-      val accessTokenOpt: Option[String] = Option(credential.getAccessToken)
-      val millisecondsOpt: Option[Long] = Option(credential.getExpirationTimeMilliseconds).map(Long2long(_))
-      val res = repository.updateAccessToken(key, accessTokenOpt, millisecondsOpt)
-      // it is safe to block here as we are already inside a blocking block
-      Await.result(res, Duration.Inf)
-      this
-    }
-    override def get(key: String): StoredCredential = {
-      val sc: Future[StoredCredential] = repository.getCredentials(key).map(credentials => //
-        new StoredCredential() //
-          .setAccessToken(credentials.accessToken) //
-          .setRefreshToken(credentials.refreshToken) //
-          .setExpirationTimeMilliseconds(credentials.expirationTimeInMilliSeconds))
-      Await.ready(sc, Duration.Inf)
-      sc.value.get.getOrElse(null)
-    }
-    override def values(): util.Collection[StoredCredential] = ???
-    override def keySet(): util.Set[String] = ???
-    override def clear(): DataStore[StoredCredential] = ???
-    override def delete(key: String): DataStore[StoredCredential] = ???
+object RepositoryDataStoreFactory {
+  val ReadTimeout = 30 seconds
+  val WriteAttempts = 3
+  val WriteRetryDelay = 2 seconds
+}
+
+class RepositoryDataStoreFactory @Inject()(repository: Repository, actorSystem: ActorSystem, implicit val exec: ExecutionContext) extends SCRepositoryDataStoreFactory {
+  override def createStoredCredentialDataStore(id: String): RepositoryDataStore = new RepositoryDataStore(this, id, repository, actorSystem.scheduler)
+}
+
+/**
+ * The credentials are read from memory once loaded, the writes reach the repository in the background and are retried a few
+ * times. The first read of a user, as well as keySet and values which load every user, wait at most
+ * RepositoryDataStoreFactory.ReadTimeout for the repository. A credential evicted from memory is read again from the repository
+ * once its pending writes are done, this is how a refresh token written straight to the repository is picked up. The retries are
+ * delayed on the scheduler of the actor system.
+ */
+class RepositoryDataStore(factory: RepositoryDataStoreFactory, id: String, repository: Repository, scheduler: Scheduler)(implicit exec: ExecutionContext) extends SCDataStore(factory, id) {
+
+  import RepositoryDataStoreFactory._
+
+  private val cache = TrieMap.empty[String, StoredCredential]
+  private val pendingWrites = TrieMap.empty[String, Future[Unit]]
+
+  override def get(key: String): StoredCredential =
+    cache.getOrElse(key, {
+      val loaded = pendingWrites.getOrElse(key, fs(())).flatMap(_ => repository.getCredentials(key)).map(toStoredCredential)
+      Await.ready(loaded, ReadTimeout).value.get.toOption.fold[StoredCredential](null) { credential =>
+        cache.putIfAbsent(key, credential).getOrElse(credential)
+      }
+    })
+
+  // this method needs to be implemented when tokens are refreshed by Credential.refreshToken()
+  override def set(key: String, value: StoredCredential): DataStore[StoredCredential] = {
+    cache.put(key, value)
+    val accessTokenOpt: Option[String] = Option(value.getAccessToken)
+    val millisecondsOpt: Option[Long] = Option(value.getExpirationTimeMilliseconds).map(Long2long(_))
+    writeBehind(key, repository.updateAccessToken(key, accessTokenOpt, millisecondsOpt))
+    this
   }
+
+  override def keySet(): util.Set[String] = loadAll.keySet.asJava
+
+  override def values(): util.Collection[StoredCredential] = loadAll.values.asJavaCollection
+
+  override def delete(key: String): DataStore[StoredCredential] = {
+    cache.remove(key)
+    writeBehind(key, repository.deleteCredentials(key))
+    this
+  }
+
+  override def clear(): DataStore[StoredCredential] = {
+    keySet().asScala.foreach(delete)
+    this
+  }
+
+  def evict(key: String): Unit = cache.remove(key)
+
+  /**
+   * Completes once the writes scheduled so far have reached the repository or exhausted their attempts.
+   */
+  def flush: Future[Unit] = Future.sequence(pendingWrites.values.toList).map(_ => ())
+
+  /**
+   * Loads the credentials of every user, this is also how the cache is warmed up for all users at once.
+   */
+  private def loadAll: Map[String, StoredCredential] = {
+    val credentials = Await.result(repository.getAllCredentials, ReadTimeout).map { case (key, credential) => (key, toStoredCredential(credential)) }
+    credentials.foreach { case (key, credential) => cache.putIfAbsent(key, credential) }
+    cache.readOnlySnapshot.toMap
+  }
+
+  /**
+   * The writes of a key are chained so that they reach the repository in order.
+   */
+  private def writeBehind(key: String, write: => Future[Unit]): Unit = synchronized {
+    val previous = pendingWrites.getOrElse(key, fs(()))
+    val next = Promise[Unit]
+    pendingWrites.put(key, next.future)
+    next.completeWith(previous.flatMap(_ => withRetry(key, write, WriteAttempts)))
+    next.future.onComplete(_ => pendingWrites.remove(key, next.future))
+  }
+
+  private def withRetry(key: String, write: => Future[Unit], attempts: Int): Future[Unit] =
+    write.recoverWith {
+      case e if attempts > 1 =>
+        Logger.warn(s"Writing the credential of $key failed, ${attempts - 1} attempts left", e)
+        after(WriteRetryDelay, scheduler)(withRetry(key, write, attempts - 1))
+      case e =>
+        Logger.error(s"Writing the credential of $key failed, giving up", e)
+        fs(())
+    }
+
+  private def toStoredCredential(credentials: UserCredential) =
+    new StoredCredential() //
+      .setAccessToken(credentials.accessToken) //
+      .setRefreshToken(credentials.refreshToken) //
+      .setExpirationTimeMilliseconds(credentials.expirationTimeInMilliSeconds)
 }
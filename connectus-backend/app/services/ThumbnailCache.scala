@@ -0,0 +1,228 @@
+package services
+
+import java.awt.image.BufferedImage
+import java.awt.{Color, RenderingHints}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{ArrayBlockingQueue, RejectedExecutionException, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+import javax.imageio.ImageIO
+import javax.inject.{Inject, Singleton}
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import common._
+import conf.AppConf
+import play.api.Logger
+import play.api.inject.ApplicationLifecycle
+
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.Try
+import scala.util.control.NonFatal
+
+/**
+ * Thumbnails of the image attachments, every size is generated on the first request of any of them and kept in a directory
+ * bounded in bytes, the least recently read thumbnails are deleted first. The attachments which got no thumbnail because they are
+ * not images that can be read are remembered in memory, they are not fetched from Gmail again.
+ */
+@Singleton
+class ThumbnailCache @Inject()(implicit exec: ExecutionContext, appConf: AppConf, attachmentProxy: AttachmentProxy, lifecycle: ApplicationLifecycle) {
+
+  private val directory = new File(appConf.getThumbnailsDirectory)
+  directory.mkdirs()
+
+  private val maxBytes = appConf.getThumbnailsMaxBytes
+  private val maxPixels = appConf.getThumbnailsMaxPixels
+
+  /**
+   * The images are decoded on a few threads of their own with a bounded queue, decoding is CPU and memory bound and must not
+   * starve the default pool. An image rejected by a full queue gets no thumbnail this time.
+   */
+  private val decoders = {
+    val threads = appConf.getThumbnailsDecoderThreads
+    val threadFactory = new ThreadFactory {
+      override def newThread(runnable: Runnable) = {
+        val thread = new Thread(runnable, "thumbnail-decoder")
+        thread.setDaemon(true)
+        thread
+      }
+    }
+    ExecutionContext.fromExecutorService(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue[Runnable](appConf.getThumbnailsDecoderQueueSize), threadFactory))
+  }
+  lifecycle.addStopHook(() => Future.successful(decoders.shutdown()))
+
+  private val failures: Cache[String, java.lang.Boolean] =
+    CacheBuilder.newBuilder()
+      .maximumSize(appConf.getThumbnailsFailuresCacheSize)
+      .build[String, java.lang.Boolean]()
+  private val totalBytes = new AtomicLong(files.map(_.length).sum)
+  private val generating = TrieMap[String, Future[Option[Map[String, Array[Byte]]]]]()
+
+  /**
+   * None when the size is unknown or the attachment is not an image that can be read.
+   */
+  def get(email: Email, messageId: MessageId, attachmentId: String, size: String): Future[Option[Array[Byte]]] =
+    if (!ThumbnailCache.Sizes.contains(size)) {
+      fs(None)
+    } else {
+      val key = ThumbnailCache.key(email, messageId, attachmentId)
+      if (failures.getIfPresent(key) != null) {
+        fs(None)
+      } else {
+        read(file(key, size)).fold(generate(email, messageId, attachmentId, key).map(_.flatMap(_.get(size))))(thumbnail => fs(Some(thumbnail)))
+      }
+    }
+
+  private def generate(email: Email, messageId: MessageId, attachmentId: String, key: String): Future[Option[Map[String, Array[Byte]]]] =
+    generating.get(key).getOrElse {
+      // concurrent requests of the same attachment share a single generation
+      val promise = Promise[Option[Map[String, Array[Byte]]]]
+      generating.putIfAbsent(key, promise.future).getOrElse {
+        promise.completeWith(scaleAndWrite(email, messageId, attachmentId, key))
+        promise.future.onComplete(_ => generating.remove(key, promise.future))
+        promise.future
+      }
+    }
+
+  private def scaleAndWrite(email: Email, messageId: MessageId, attachmentId: String, key: String): Future[Option[Map[String, Array[Byte]]]] =
+    attachmentProxy.getData(email, messageId, attachmentId)
+      .flatMap(_.fold(fs[Option[Map[String, Array[Byte]]]](None)) { data =>
+        Future(ThumbnailCache.scale(Base64.getUrlDecoder.decode(data), maxPixels))(decoders)
+      })
+      .map { thumbnailsOpt =>
+        thumbnailsOpt.fold(failures.put(key, true))(_.foreach { case (size, thumbnail) => write(file(key, size), thumbnail) })
+        thumbnailsOpt
+      }
+      // a rejected image may be decoded on a later request, it is not remembered as a failure
+      .recover { case e: RejectedExecutionException =>
+        Logger.warn(s"Too many images waiting to be decoded, no thumbnail for $messageId/$attachmentId of $email")
+        None
+      }
+
+  private def file(key: String, size: String) = new File(directory, s"$key-$size.jpg")
+
+  private def files: List[File] = Option(directory.listFiles).fold[List[File]](List())(_.toList)
+
+  private def read(file: File): Option[Array[Byte]] =
+    try {
+      val thumbnail = Files.readAllBytes(file.toPath)
+      file.setLastModified(System.currentTimeMillis)
+      Some(thumbnail)
+    } catch {
+      case NonFatal(e) => None
+    }
+
+  private def write(file: File, thumbnail: Array[Byte]): Unit =
+    try {
+      val temporary = File.createTempFile("thumbnail", ".tmp", directory)
+      Files.write(temporary.toPath, thumbnail)
+      Files.move(temporary.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      if (totalBytes.addAndGet(thumbnail.length) > maxBytes) evict()
+    } catch {
+      case NonFatal(e) => Logger.warn(s"Could not write the thumbnail $file", e)
+    }
+
+  private def evict(): Unit = synchronized {
+    // thumbnails are deleted down to 90% of the bound so that eviction does not run on every write
+    val target = maxBytes * 9 / 10
+    val byLastRead = files.filter(_.getName.endsWith(".jpg")).sortBy(_.lastModified)
+    val total = byLastRead.map(_.length).sum
+    val deleted = byLastRead.iterator
+      .scanLeft(total)((remaining, file) => remaining - file.length)
+      .zip(byLastRead.iterator)
+      .takeWhile { case (remaining, _) => remaining > target }
+      .map { case (_, file) => (file.length, file.delete()) }
+      .collect { case (length, true) => length }
+      .sum
+    totalBytes.set(total - deleted)
+    Logger.info(s"Evicted $deleted bytes of thumbnails, ${total - deleted} bytes left")
+  }
+}
+
+object ThumbnailCache {
+
+  /**
+   * Longest side in pixels of each size.
+   */
+  val Sizes = Map("small" -> 200, "large" -> 800)
+
+  /**
+   * Size linked for the attachments list of a message.
+   */
+  val ListSize = "small"
+
+  val MimeType = "image/jpeg"
+
+  def isImage(mimeType: String) = mimeType.toLowerCase.startsWith("image/")
+
+  def key(email: Email, messageId: MessageId, attachmentId: String): String =
+    MessageDigest.getInstance("SHA-1").digest(s"$email/$messageId/$attachmentId".getBytes(StandardCharsets.UTF_8)).map("%02x".format(_)).mkString
+
+  /**
+   * Every size encoded in JPEG, None when the bytes are not an image ImageIO can read or when it has more than maxPixels pixels.
+   */
+  def scale(image: Array[Byte], maxPixels: Long): Option[Map[String, Array[Byte]]] =
+    read(image, maxPixels).map { source =>
+      Sizes.map { case (size, maxSide) => size -> encode(resize(source, maxSide)) }
+    }
+
+  /**
+   * The dimensions are read from the header, a few bytes compressed into a huge image are never decoded.
+   */
+  private def read(image: Array[Byte], maxPixels: Long): Option[BufferedImage] =
+    Try(Option(ImageIO.createImageInputStream(new ByteArrayInputStream(image)))).toOption.flatten.flatMap { input =>
+      try {
+        val readers = ImageIO.getImageReaders(input)
+        if (!readers.hasNext) {
+          None
+        } else {
+          val reader = readers.next()
+          try {
+            reader.setInput(input, true, true)
+            val (width, height) = (reader.getWidth(0), reader.getHeight(0))
+            if (width.toLong * height > maxPixels) {
+              Logger.info(s"Skipping the thumbnails of an image of $width x $height pixels")
+              None
+            } else {
+              Option(reader.read(0))
+            }
+          } finally {
+            reader.dispose()
+          }
+        }
+      } catch {
+        case NonFatal(e) => None
+      } finally {
+        input.close()
+      }
+    }
+
+  private def resize(source: BufferedImage, maxSide: Int): BufferedImage = {
+    val ratio = (maxSide.toDouble / source.getWidth.max(source.getHeight)).min(1)
+    val width = (source.getWidth * ratio).round.toInt.max(1)
+    val height = (source.getHeight * ratio).round.toInt.max(1)
+    val target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+    val graphics = target.createGraphics()
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY)
+      // JPEG has no transparency
+      graphics.setColor(Color.WHITE)
+      graphics.fillRect(0, 0, width, height)
+      graphics.drawImage(source, 0, 0, width, height, null)
+    } finally {
+      graphics.dispose()
+    }
+    target
+  }
+
+  private def encode(image: BufferedImage): Array[Byte] = {
+    val out = new ByteArrayOutputStream
+    ImageIO.write(image, "jpg", out)
+    out.toByteArray
+  }
+}
@@ -0,0 +1,77 @@
+package services
+
+import akka.actor.{Actor, ActorLogging, ActorRef}
+import akka.cluster.sharding.ShardRegion
+import common._
+import play.api.libs.concurrent.InjectedActorSupport
+
+/**
+ * A message addressed to the actors of a user, routed by its email.
+ */
+trait UserMessage {
+  def email: Email
+}
+
+/**
+ * In cluster mode the users are spread over the nodes by Akka Cluster Sharding. The email of a user is hashed to one of a fixed
+ * number of shards and the shards are balanced over the nodes, they move when a node joins or leaves the cluster.
+ */
+object UserSharding {
+  final val typeName = "user"
+
+  val extractEntityId: ShardRegion.ExtractEntityId = {
+    case msg: UserMessage => (msg.email, msg)
+  }
+
+  def extractShardId(shards: Int): ShardRegion.ExtractShardId = {
+    case msg: UserMessage => shardId(msg.email, shards)
+  }
+
+  /**
+   * Hashes the email as is, like the entity id. A user is identified by the exact email it was added with, as the children of the
+   * SuperSupervisorActor and the Firebase paths are when standalone.
+   */
+  def shardId(email: Email, shards: Int): String = (math.abs(email.hashCode % shards)).toString
+
+  /**
+   * Tells the SuperSupervisorActor of the node that the user runs there, the Gmail requests made for the user on that node then
+   * go through the throttler of the user.
+   */
+  case class LocalUser(email: Email, userSupervisorActor: ActorRef)
+}
+
+/**
+ * The entity of a user on the node owning its shard. The UserSupervisorActor, and with it the Firebase listeners of the user, is
+ * created on the first message and warmed up by the WarmUpActor of the node. It is stopped when the shard moves to another node,
+ * where the next message starts it again.
+ */
+class UserEntityActor(superSupervisorActor: ActorRef, warmUpActor: ActorRef, userSupervisorActorFactory: UserSupervisorActor.Factory)
+  extends Actor with ActorLogging with InjectedActorSupport {
+
+  var userSupervisorActor: Option[(Email, ActorRef)] = None
+
+  override def receive: Receive = {
+    case SuperSupervisorActor.UserRemoved(_) =>
+      context.stop(self)
+    case UserSupervisorActor.Restarted(email) =>
+      warmUpActor ! WarmUpActor.WarmUp(email, sender)
+    case msg: UserMessage =>
+      val (_, userSupervisorActorRef) = userSupervisorActor.getOrElse(start(msg.email))
+      msg match {
+        case SuperSupervisorActor.UserAdded(_) =>
+        case _ => userSupervisorActorRef forward msg
+      }
+  }
+
+  private def start(email: Email): (Email, ActorRef) = {
+    log.info(s"Starting $email on this node")
+    val userSupervisorActorRef = injectedChild(userSupervisorActorFactory.apply(email), email)
+    warmUpActor ! WarmUpActor.WarmUp(email, userSupervisorActorRef)
+    superSupervisorActor ! UserSharding.LocalUser(email, userSupervisorActorRef)
+    userSupervisorActor = Some((email, userSupervisorActorRef))
+    (email, userSupervisorActorRef)
+  }
+
+  override def postStop(): Unit =
+    userSupervisorActor.foreach { case (email, _) => warmUpActor ! WarmUpActor.Cancel(email) }
+}
@@ -0,0 +1,78 @@
+package services
+
+import javax.inject.Inject
+
+import akka.actor.{Actor, ActorLogging, ActorRef}
+import akka.pattern.pipe
+import common._
+import conf.AppConf
+import services.WarmUpActor._
+
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+import scala.util.Random
+
+object WarmUpActor {
+  final val actorName = "warmUpActor"
+  case class WarmUp(email: Email, userSupervisorActor: ActorRef)
+  case class WarmedUp(email: Email)
+  case class Cancel(email: Email)
+  case object GetProgress
+  case class Progress(pending: Int, running: Int, done: Int)
+  private case class Prioritized(email: Email, userSupervisorActor: ActorRef, lastSyncTimeInMilliSeconds: Long)
+}
+
+/**
+ * Starts the users a few at a time so that the boot of the backend does not spend the Gmail quota, the Firebase connection and
+ * the threads on every user at once. The new users are started first, then the users synced the most recently, with a random delay
+ * to spread the Gmail watch and sync calls. A user restarted by its supervisor asks for a slot again.
+ */
+class WarmUpActor @Inject()(implicit exec: ExecutionContext, appConf: AppConf, repository: Repository) extends Actor with ActorLogging {
+
+  val concurrency = appConf.getWarmUpConcurrency
+  val jitterInMilliSeconds = appConf.getWarmUpJitterMilliSeconds
+
+  var pending = List.empty[Prioritized]
+  var running = Set.empty[Email]
+  var done = 0
+
+  override def receive: Receive = {
+    case WarmUp(email, userSupervisorActor) =>
+      repository.getSyncCursor(email)
+        .map(_.fold(0L)(_.lastSyncTimeInMilliSeconds))
+        .recover { case e => 0L }
+        .map(Prioritized(email, userSupervisorActor, _)) pipeTo self
+    case prioritized: Prioritized =>
+      pending = (pending.filterNot(_.email == prioritized.email) :+ prioritized).sortBy(priority)
+      dispatch
+    case WarmedUp(email) if running.contains(email) =>
+      running -= email
+      done += 1
+      log.info(s"Warmed up $email, ${progress}")
+      dispatch
+    case Cancel(email) =>
+      pending = pending.filterNot(_.email == email)
+      running -= email
+      dispatch
+    case GetProgress =>
+      sender ! progress
+  }
+
+  /**
+   * The users never synced come first in arrival order, they wait for their first inbox. Then the most recently synced ones.
+   */
+  private def priority(prioritized: Prioritized) =
+    (prioritized.lastSyncTimeInMilliSeconds != 0L, -prioritized.lastSyncTimeInMilliSeconds)
+
+  private def progress = Progress(pending.size, running.size, done)
+
+  private def dispatch = {
+    val (started, remaining) = pending.splitAt(concurrency - running.size)
+    started.foreach { prioritized =>
+      val delay = if (jitterInMilliSeconds > 0) Random.nextInt(jitterInMilliSeconds).millis else Duration.Zero
+      context.system.scheduler.scheduleOnce(delay, prioritized.userSupervisorActor, UserSupervisorActor.Start)
+      running += prioritized.email
+    }
+    pending = remaining
+  }
+}
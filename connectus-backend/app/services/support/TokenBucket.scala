@@ -0,0 +1,38 @@
+package services.support
+
+import scala.concurrent.duration._
+
+/**
+ * Not thread safe, meant to be owned by a single actor.
+ */
+class TokenBucket(unitsPerSecond: Int, burstUnits: Int, nanoTime: () => Long = () => System.nanoTime) {
+  private var available: Double = burstUnits
+  private var lastRefill = nanoTime()
+
+  def tryAcquire(units: Int): Boolean = {
+    refill()
+    val cost = capped(units)
+    if (available >= cost) {
+      available -= cost
+      true
+    } else {
+      false
+    }
+  }
+
+  def timeUntilAvailable(units: Int): FiniteDuration = {
+    refill()
+    val missing = capped(units) - available
+    if (missing <= 0) Duration.Zero else math.ceil(missing * 1000000000 / unitsPerSecond).toLong.nanos
+  }
+
+  // a request costlier than the burst would never be served otherwise
+  private def capped(units: Int) = math.min(units, burstUnits)
+
+  private def refill() = {
+    val now = nanoTime()
+    // in Double before multiplying, the product overflows a Long after a few seconds at high rates
+    available = math.min(burstUnits, available + (now - lastRefill).toDouble * unitsPerSecond / 1000000000d)
+    lastRefill = now
+  }
+}
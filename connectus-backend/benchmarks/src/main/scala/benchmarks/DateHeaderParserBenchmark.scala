@@ -0,0 +1,70 @@
+package benchmarks
+
+import java.time.ZonedDateTime
+import java.time.format.{DateTimeFormatter, DateTimeParseException}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import services.DateHeaderParser
+
+/**
+ * Time taken to parse the Date headers of a corpus taken from real mailboxes, by the pattern based parser previously used
+ * in MessageMapper and by DateHeaderParser.
+ *
+ * sbt "benchmarks/jmh:run -f 1 -i 5 -wi 3 DateHeaderParserBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class DateHeaderParserBenchmark {
+
+  val corpus = Array(
+    "Mon, 7 Mar 2016 14:02:05 +0100",
+    "Tue, 08 Mar 2016 09:15:31 +0000",
+    "Tue,  8 Mar 2016 10:41:12 -0800",
+    "Wed, 9 Mar 2016 17:20:44 +0000 (UTC)",
+    "Wed, 09 Mar 2016 08:01:59 -0800 (PST)",
+    "Thu, 10 Mar 2016 11:03:27 +0100 (CET)",
+    "10 Mar 2016 21:45:10 +0000",
+    "Fri, 11 Mar 2016 06:30:00 GMT",
+    "Fri, 11 Mar 2016 13:12:45 -0500 (EST)",
+    "Sat, 12 Mar 2016 02:14:03 +0900 (JST)",
+    "Sun, 13 Mar 2016 18:59:00 +0530",
+    "Mon, 14 Mar 2016 07:07:07 -0700 (GMT-07:00)",
+    "Mon, 14 Mar 16 12:00:00 EST",
+    "Tue, 15 Mar 2016 15:35 +0100",
+    "Wed, 16 Mar 2016 23:59:59.000 +0000")
+
+  @Benchmark
+  def legacy(): Int = corpus.count(date => LegacyDateParser.parse(date).isDefined)
+
+  @Benchmark
+  def dateHeaderParser(): Int = corpus.count(date => DateHeaderParser.parse(date).isDefined)
+}
+
+/**
+ * Parser used by MessageMapper before DateHeaderParser.
+ */
+object LegacyDateParser {
+  def parse(date: String): Option[ZonedDateTime] = {
+    def fixErrors(date: String) = date.replace(",  ", ", ")
+    def parseWith(date: String, patterns: List[String]): Option[ZonedDateTime] = {
+      patterns match {
+        case head :: tail =>
+          try {
+            val formatter = DateTimeFormatter.ofPattern(head)
+            Some(ZonedDateTime.parse(date, formatter))
+          } catch {
+            case e: DateTimeParseException => parseWith(date, tail)
+          }
+        case _ => None
+      }
+    }
+    parseWith(fixErrors(date),
+      List(//
+        "d MMM yyyy HH:mm:ss Z",
+        "d MMM yyyy HH:mm:ss Z '('zzz')'",
+        "EEE, d MMM yyyy HH:mm:ss Z",
+        "EEE, d MMM yyyy HH:mm:ss Z '('zzz')'"))
+  }
+}
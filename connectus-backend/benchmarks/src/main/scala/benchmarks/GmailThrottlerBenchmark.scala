@@ -0,0 +1,120 @@
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import akka.actor._
+import akka.contrib.throttle.Throttler._
+import akka.contrib.throttle.TimerBasedThrottler
+import akka.pattern.{ask, pipe}
+import common._
+import conf.AppConf
+import org.openjdk.jmh.annotations._
+import play.api.Configuration
+import services.GmailRequests._
+import services.{GmailThrottlerActor, Timeouts}
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+import scala.language.postfixOps
+
+/**
+ * Time taken by the throttler of a single user to serve the Gmail requests of a tagInbox over an inbox of 50 threads
+ * holding 3 messages each (204 requests).
+ *
+ * sbt "benchmarks/jmh:run -f 1 -i 3 -wi 0 GmailThrottlerBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.SECONDS)
+class GmailThrottlerBenchmark {
+  implicit val timeout = Timeouts.oneMinute
+
+  @Param(Array("tree", "bucket"))
+  var throttler: String = _
+
+  var actorSystem: ActorSystem = _
+  var throttlerActor: ActorRef = _
+
+  @Setup(Level.Iteration)
+  def setup(): Unit = {
+    actorSystem = ActorSystem("benchmark")
+    val appConf = new AppConf(Configuration.empty)
+    throttlerActor = throttler match {
+      case "tree" => actorSystem.actorOf(Props(new LegacyGmailThrottlerActor))
+      case "bucket" => actorSystem.actorOf(Props(new GmailThrottlerActor(appConf)))
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  def tearDown(): Unit = {
+    Await.result(actorSystem.terminate(), 1 minute)
+  }
+
+  @Benchmark
+  def tagInbox(): Unit = {
+    implicit val executor = actorSystem.dispatcher
+    def noop = () => fs(())
+    val requests: List[Any] =
+      List(ListLabelsRequestMsg(noop), ListThreadsRequestMsg(noop)) ++
+        List.fill(50)(GetThreadRequestMsg(noop)) ++
+        List.fill(150)(GetMessageRequestMsg(noop)) ++
+        List.fill(2)(BatchModifyMessagesRequestMsg(noop))
+    Await.result(Future.sequence(requests.map(throttlerActor ? _)), 10 minutes)
+  }
+}
+
+/**
+ * The per-method TimerBasedThrottler tree the token bucket replaced, kept as the baseline.
+ */
+class LegacyGmailThrottlerActor extends Actor {
+  def createThrottler(rate: Rate): ActorRef = {
+    val actor = context.actorOf(Props(new TimerBasedThrottler(rate)))
+    actor ! SetTarget(Some(context.actorOf(Props(new LegacySchedulerActor))))
+    actor
+  }
+
+  val throttlers: Map[Class[_], ActorRef] = Map(
+    classOf[ListHistoryRequestMsg] -> createThrottler(2 msgsPerSecond),
+    classOf[CreateLabelRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[DeleteLabelRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[GetLabelRequestMsg] -> createThrottler(1 msgsPerSecond),
+    classOf[ListLabelsRequestMsg] -> createThrottler(1 msgsPerSecond),
+    classOf[GetMessageAttachmentRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[GetMessageRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[ListMessagesRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[SendMessageRequestMsg] -> createThrottler(100 msgsPerSecond),
+    classOf[ModifyMessageRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[BatchModifyMessagesRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[GetThreadRequestMsg] -> createThrottler(10 msgsPerSecond),
+    classOf[ListThreadsRequestMsg] -> createThrottler(10 msgsPerSecond),
+    classOf[ModifyThreadRequestMsg] -> createThrottler(5 msgsPerSecond),
+    classOf[WatchRequestMsg] -> createThrottler(100 msgsPerSecond))
+  val dispatcher = context.actorOf(Props(new Actor {
+    override def receive: Receive = {
+      case (request, client: ActorRef) => throttlers(request.getClass) ! (request, client)
+    }
+  }))
+  val globalThrottler = context.actorOf(Props(new TimerBasedThrottler(250 msgsPerSecond)))
+  globalThrottler ! SetTarget(Some(dispatcher))
+
+  override def receive: Receive = {
+    case request => globalThrottler ! (request, sender)
+  }
+}
+
+class LegacySchedulerActor extends Actor {
+  implicit val executor = context.dispatcher
+
+  override def receive: Receive = {
+    case (request: Product, client: ActorRef) =>
+      val payload = request.productElement(0).asInstanceOf[() => Future[_]]
+      context.actorOf(Props(new Actor {
+        pipe(payload().map(Option(_))) to self
+        override def receive: Receive = {
+          case response =>
+            client ! response
+            context.stop(self)
+        }
+      }))
+  }
+}
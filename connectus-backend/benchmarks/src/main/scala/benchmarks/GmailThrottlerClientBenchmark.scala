@@ -0,0 +1,85 @@
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import akka.actor._
+import akka.pattern.pipe
+import com.google.inject.Provider
+import common._
+import conf.AppConf
+import org.openjdk.jmh.annotations._
+import play.api.Configuration
+import services.GmailRequests._
+import services.{ActorsClient, GmailThrottlerActor, GmailThrottlerClient, Metrics}
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.language.postfixOps
+
+/**
+ * Latency of GmailThrottlerClient.scheduleExecution when the quota is not the bottleneck, run it with "-prof gc" to get the
+ * allocations per call (gc.alloc.rate.norm).
+ *
+ * "actor" replays the former completion path which created an actor per request, "direct" is the current one.
+ *
+ * sbt "benchmarks/jmh:run -f 1 -prof gc GmailThrottlerClientBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class GmailThrottlerClientBenchmark {
+
+  @Param(Array("actor", "direct"))
+  var completion: String = _
+
+  var actorSystem: ActorSystem = _
+  var gmailThrottlerClient: GmailThrottlerClient = _
+
+  @Setup
+  def setup(): Unit = {
+    actorSystem = ActorSystem("benchmark")
+    implicit val executor: ExecutionContext = actorSystem.dispatcher
+    implicit val appConf = new AppConf(Configuration.from(Map(
+      "application.maintenance.mode" -> true,
+      "application.gmail.quota.units.per.second" -> Int.MaxValue,
+      "application.gmail.quota.burst.units" -> Int.MaxValue)))
+    val throttlerActor = completion match {
+      case "actor" => actorSystem.actorOf(Props(new ActorPerRequestThrottlerActor))
+      case "direct" => actorSystem.actorOf(Props(new GmailThrottlerActor(appConf)))
+    }
+    implicit val superSupervisorProvider = new Provider[ActorRef] {
+      override def get = throw new IllegalStateException("Not used in maintenance mode")
+    }
+    val actorsClient = new ActorsClient() {
+      override def getGmailThrottlerActor(email: Email) = fs(throttlerActor)
+    }
+    gmailThrottlerClient = new GmailThrottlerClient()(executor, actorsClient, new Metrics)
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    Await.result(actorSystem.terminate(), 1 minute)
+  }
+
+  @Benchmark
+  def schedule(): Option[String] = {
+    val response = gmailThrottlerClient.scheduleExecution("me@gmail.com", () => fs("response"), GetLabelRequestMsg.apply)
+    Await.result(response, 1 minute)
+  }
+}
+
+class ActorPerRequestThrottlerActor extends Actor {
+  override def receive: Receive = {
+    case GetLabelRequestMsg(request, _) =>
+      val client = sender
+      context.actorOf(Props(new Actor {
+        implicit val executor = context.dispatcher
+        pipe(request().map(Option(_))) to self
+        override def receive: Receive = {
+          case response =>
+            client ! response
+            context.stop(self)
+        }
+      }))
+  }
+}
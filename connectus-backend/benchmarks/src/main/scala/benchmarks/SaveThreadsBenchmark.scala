@@ -0,0 +1,103 @@
+package benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import common._
+import conf.AppConf
+import model.{GmailLabel, GmailMessage, GmailThread, Resident, ThreadBundle}
+import org.openjdk.jmh.annotations._
+import play.api.Configuration
+import services.Repository.{MessagesSnapshot, ResidentIndex}
+import services.{EnvironmentHelper, FirebaseFutureWrappers, LabelService, Repository}
+
+import scala.concurrent.ExecutionContext.Implicits.global
+
+/**
+ * Time taken by saveThreads to diff a synthetic mailbox against its snapshot and to build the values written to Firebase. Every
+ * thread holds 3 messages and changed since the snapshot, which also holds a message deleted from every thread and 1% of
+ * threads deleted from the mailbox. 5 residents share the threads.
+ *
+ * "legacyDiff" replays the diffs used before they were indexed, "indexedDiff" is the current one.
+ *
+ * sbt "benchmarks/jmh:run -f 1 -i 5 -wi 1 SaveThreadsBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+class SaveThreadsBenchmark {
+
+  @Param(Array("100", "1000", "10000", "50000"))
+  var threads: Int = _
+
+  val email = "me@gmail.com"
+  val repository = new Repository()(global, new FirebaseFutureWrappers(new EnvironmentHelper), new AppConf(Configuration.empty))
+
+  var threadBundles: List[ThreadBundle] = _
+  var messagesSnapshot: MessagesSnapshot = _
+  var residentLabels: Map[Resident, GmailLabel] = _
+
+  @Setup
+  def setup(): Unit = {
+    residentLabels = (1 to 5).map { i =>
+      Resident(s"$i", s"resident$i", s"Resident $i", Some(s"Label_$i")) -> GmailLabel(s"Label_$i", s"resident$i")
+    }.toMap
+    val labels = residentLabels.values.toArray
+    val inbox = GmailLabel(LabelService.InboxLabelName, LabelService.InboxLabelName)
+    threadBundles = (1 to threads).toList.map { t =>
+      val messages = (1 to 3).toList.map { m =>
+        GmailMessage(s"t${t}m$m", None, None, None, Some("subject"), Some("content"), t * 10 + m, List(inbox, labels(t % labels.length)), List(), true)
+      }
+      ThreadBundle(GmailThread(s"t$t", "snippet", t * 10 + 3), messages)
+    }
+    val deletedThreads = (1 to threads / 100).map(t => s"d$t" -> List(s"d${t}m1"))
+    val allThreadIds = threadBundles.map(threadBundle => threadBundle.thread.id -> (s"${threadBundle.thread.id}m0" :: threadBundle.messages.map(_.id))).toMap ++ deletedThreads
+    val messagesLabels = threadBundles.flatMap(_.messages.map(message => message.id -> List(inbox))).toMap
+    val threadsHistoryIds = threadBundles.map(threadBundle => threadBundle.thread.id -> BigInt(0)).toMap
+    messagesSnapshot = MessagesSnapshot(allThreadIds, messagesLabels, threadsHistoryIds)
+  }
+
+  @Benchmark
+  def legacyDiff(): Int = {
+    val deletedThreadIds = LegacyDiff.findDeletedThreadIds(messagesSnapshot.allThreadIds, threadBundles)
+    val deletedMessageIds = LegacyDiff.findDeletedMessageIds(messagesSnapshot.allThreadIds, threadBundles)
+    val residents = threadBundles.flatMap(threadBundle => LegacyDiff.findResidentFromLabels(threadBundle.lastUntrashedMessage.get.labels, residentLabels))
+    deletedThreadIds.size + deletedMessageIds.size + residents.size
+  }
+
+  @Benchmark
+  def indexedDiff(): Int = {
+    val deletedThreadIds = repository.findDeletedThreadIds(messagesSnapshot.allThreadIds, threadBundles)
+    val deletedMessageIds = repository.findDeletedMessageIds(messagesSnapshot.allThreadIds, threadBundles)
+    val residentIndex = ResidentIndex(residentLabels)
+    val residents = threadBundles.flatMap(threadBundle => residentIndex.fromLabelIds(threadBundle.lastUntrashedMessage.get.labels))
+    deletedThreadIds.size + deletedMessageIds.size + residents.size
+  }
+
+  @Benchmark
+  def buildThreadChangesValues(): Int = {
+    val deletedThreadIds = repository.findDeletedThreadIds(messagesSnapshot.allThreadIds, threadBundles)
+    repository.buildThreadChangesValues(email, threadBundles, deletedThreadIds, messagesSnapshot, residentLabels).size
+  }
+}
+
+/**
+ * Diffs used by Repository before they were indexed.
+ */
+object LegacyDiff {
+  def findResidentFromLabels(labels: List[GmailLabel], residentLabels: Map[Resident, GmailLabel]): Option[Resident] =
+    labels.flatMap { gmailLabel =>
+      residentLabels.find { case (resident, label) => resident.labelId.fold(false)(labelId => gmailLabel.id == labelId) }
+    }.headOption.map { case (resident, label) => resident }
+
+  def findDeletedThreadIds(adminThreadIds: Map[ThreadId, List[MessageId]], threadBundles: List[ThreadBundle]): List[ThreadId] =
+    adminThreadIds.filter { case (threadId, messageIds) => !threadBundles.map(_.thread.id).contains(threadId) }.keys.toList
+
+  def findDeletedMessageIds(adminThreadIds: Map[ThreadId, List[MessageId]], threadBundles: List[ThreadBundle]): Map[ThreadId, List[MessageId]] =
+    adminThreadIds.flatten { case (threadId, messageIds) =>
+      threadBundles.find(_.thread.id == threadId).find(_.thread.id == threadId).map(threadSummary => {
+        val messages = threadSummary.messages
+        val messageDeleted = messageIds.filter(!messages.map(_.id).contains(_))
+        (threadId, messageDeleted)
+      })
+    }.toMap
+}
@@ -0,0 +1,70 @@
+package services
+
+import java.util.Base64
+
+import akka.stream.Materializer
+import akka.stream.scaladsl.Sink
+import akka.util.ByteString
+import model.{GmailAttachment, GmailMessage}
+import play.api.inject._
+import services.AttachmentProxy.ByteRange
+import services.support.TestBase
+
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
+
+class AttachmentProxyTest extends TestBase {
+
+  val accountId = "me@gmail.com"
+  var attachmentProxy: AttachmentProxy = _
+  implicit var materializer: Materializer = _
+
+  before {
+    val injector = getTestGuiceApplicationBuilder
+      .configure("application.public.url" -> "https://backend/", "application.attachments.token.ttl.seconds" -> 60)
+      .overrides(bind[GmailClient].toInstance(mock[GmailClient]))
+      .build.injector
+
+    attachmentProxy = injector.instanceOf[AttachmentProxy]
+    materializer = injector.instanceOf[Materializer]
+  }
+
+  test("link the attachments with a signed token") {
+    val attachment = GmailAttachment("1", "image/png", "image.png", 10, "attachmentId", Map())
+    val message = GmailMessage("messageId", None, None, None, None, None, 0, List(), List(attachment), true)
+
+    val List(link) = attachmentProxy.links(accountId, message, now = 1000).get
+    assert(link.url == "https://backend/attachments/me%40gmail.com/messageId/attachmentId")
+    assert(link.mimeType == "image/png")
+    assert(link.thumbnailUrl == Some("https://backend/attachments/me%40gmail.com/messageId/attachmentId/thumbnails/small"))
+
+    assert(attachmentProxy.verify(accountId, "messageId", "attachmentId", "image/png", link.accessToken, now = 1000))
+    assert(!attachmentProxy.verify(accountId, "messageId", "otherAttachmentId", "image/png", link.accessToken, now = 1000))
+    assert(!attachmentProxy.verify(accountId, "messageId", "attachmentId", "text/html", link.accessToken, now = 1000))
+    assert(!attachmentProxy.verify(accountId, "messageId", "attachmentId", "image/png", link.accessToken, now = 61000))
+    assert(!attachmentProxy.verify(accountId, "messageId", "attachmentId", "image/png", "99999999999999-forged", now = 1000))
+  }
+
+  test("parse the Range header") {
+    assert(AttachmentProxy.parseRange(None, 100).isEmpty)
+    assert(AttachmentProxy.parseRange(Some("bytes=0-9"), 100) == Some(Some(ByteRange(0, 9))))
+    assert(AttachmentProxy.parseRange(Some("bytes=90-"), 100) == Some(Some(ByteRange(90, 99))))
+    assert(AttachmentProxy.parseRange(Some("bytes=-10"), 100) == Some(Some(ByteRange(90, 99))))
+    assert(AttachmentProxy.parseRange(Some("bytes=50-500"), 100) == Some(Some(ByteRange(50, 99))))
+    assert(AttachmentProxy.parseRange(Some("bytes=100-"), 100) == Some(None))
+    assert(AttachmentProxy.parseRange(Some("bytes=0-1,5-6"), 100).isEmpty)
+  }
+
+  test("decode a range of the data while streaming it") {
+    val bytes = Array.tabulate[Byte](3 * AttachmentProxy.ChunkChars)(_.toByte)
+    val data = Base64.getUrlEncoder.withoutPadding.encodeToString(bytes)
+    assert(AttachmentProxy.decodedLength(data) == bytes.length)
+
+    def decode(range: ByteRange) = Await.result(AttachmentProxy.decodedSource(data, range).runWith(Sink.fold(ByteString())(_ ++ _)), Duration.Inf)
+
+    assert(decode(ByteRange(0, bytes.length - 1)) == ByteString(bytes))
+    assert(decode(ByteRange(1, 1)) == ByteString(bytes.slice(1, 2)))
+    assert(decode(ByteRange(100000, 150000)) == ByteString(bytes.slice(100000, 150001)))
+    assert(decode(ByteRange(bytes.length - 2, bytes.length - 1)) == ByteString(bytes.takeRight(2)))
+  }
+}
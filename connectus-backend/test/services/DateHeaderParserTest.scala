@@ -0,0 +1,42 @@
+package services
+
+import java.time.{ZoneOffset, ZonedDateTime}
+
+import org.scalatest.FunSuiteLike
+
+class DateHeaderParserTest extends FunSuiteLike {
+
+  def at(offset: ZoneOffset, second: Int = 5) = Some(ZonedDateTime.of(2016, 3, 7, 14, 2, second, 0, offset))
+
+  val plusOne = ZoneOffset.ofHours(1)
+
+  test("parse the RFC 2822 variants") {
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 +0100") == at(plusOne))
+    assert(DateHeaderParser.parse("7 Mar 2016 14:02:05 +0100") == at(plusOne))
+    assert(DateHeaderParser.parse("Mon,  07 Mar 2016 14:02:05 +0100") == at(plusOne))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 +0100 (CET)") == at(plusOne))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 +0100 (GMT+01:00)") == at(plusOne))
+    assert(DateHeaderParser.parse("Monday, 7 March 2016 14:02:05 +0100") == at(plusOne))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02 +0100") == at(plusOne, 0))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05.123 +01:00") == at(plusOne))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 16 14:02:05 +0100") == at(plusOne))
+    assert(DateHeaderParser.parse("(comment) Mon, 7 (x (nested)) Mar 2016 14:02:05 +0100") == at(plusOne))
+  }
+
+  test("parse the obsolete zones") {
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 GMT") == at(ZoneOffset.UTC))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 PST") == at(ZoneOffset.ofHours(-8)))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 edt") == at(ZoneOffset.ofHours(-4)))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 A") == at(ZoneOffset.UTC))
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05") == at(ZoneOffset.UTC))
+  }
+
+  test("reject invalid dates") {
+    assert(DateHeaderParser.parse("").isEmpty)
+    assert(DateHeaderParser.parse("not a date").isEmpty)
+    assert(DateHeaderParser.parse("Mon, 30 Feb 2016 14:02:05 +0100").isEmpty)
+    assert(DateHeaderParser.parse("Mon, 7 Foo 2016 14:02:05 +0100").isEmpty)
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 25:02:05 +0100").isEmpty)
+    assert(DateHeaderParser.parse("Mon, 7 Mar 2016 14:02:05 +1").isEmpty)
+  }
+}
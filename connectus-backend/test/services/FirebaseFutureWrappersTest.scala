@@ -0,0 +1,106 @@
+package services
+
+import java.util.concurrent.Executor
+
+import common._
+import services.support.TestBase
+
+import scala.concurrent.{ExecutionContext, Future, Promise}
+
+class FirebaseFutureWrappersTest extends TestBase {
+
+  test("pack groups into chunks bounded by path count") {
+    val groups = List(
+      Map[String, AnyRef]("t1/a" -> "1", "t1/b" -> "2"),
+      Map[String, AnyRef]("t2/a" -> "3", "t2/b" -> "4"),
+      Map[String, AnyRef]("t3/a" -> "5"))
+
+    val chunks = FirebaseFutureWrappers.chunk(groups.iterator, 3, Int.MaxValue).toList
+    assert(chunks == List(groups(0), groups(1) ++ groups(2)))
+  }
+
+  test("pack groups into chunks bounded by size") {
+    val groups = List(
+      Map[String, AnyRef]("t1/a" -> ("x" * 100)),
+      Map[String, AnyRef]("t2/a" -> ("y" * 100)),
+      Map[String, AnyRef]("t3/a" -> null))
+
+    val chunks = FirebaseFutureWrappers.chunk(groups.iterator, Int.MaxValue, 150).toList
+    assert(chunks == List(groups(0), groups(1) ++ groups(2)))
+  }
+
+  test("split a group exceeding the limits on its own") {
+    val group = (1 to 5).map(i => s"t1/$i" -> s"$i").toMap[String, AnyRef]
+
+    val chunks = FirebaseFutureWrappers.chunk(Iterator(group), 2, Int.MaxValue).toList
+    assert(chunks.map(_.size) == List(2, 2, 1))
+    assert(chunks.reduce(_ ++ _) == group)
+  }
+
+  /**
+   * Runs the callbacks on the thread completing the Future, so that the next chunk is started as soon as a chunk completes.
+   */
+  implicit val executor = ExecutionContext.fromExecutor(new Executor {
+    override def execute(command: Runnable) = command.run()
+  })
+
+  val index = (path: String) => path.startsWith("index/")
+
+  test("keep at most parallelism chunks in flight") {
+    val groups = (1 to 5).map(i => Map[String, AnyRef](s"t$i/a" -> s"$i")).iterator
+    var pending = List.empty[Promise[Unit]]
+    val result = FirebaseFutureWrappers.updateInChunks(groups, FirebaseWriteSettings(1, Int.MaxValue, 2), index) { _ =>
+      val promise = Promise[Unit]
+      pending = pending :+ promise
+      promise.future
+    }
+
+    assert(pending.size == 2)
+    while (pending.exists(!_.isCompleted)) {
+      assert(pending.count(!_.isCompleted) == math.min(2, 5 - pending.count(_.isCompleted)))
+      pending.find(!_.isCompleted).get.success(())
+    }
+    assert(pending.size == 5)
+    assert(result.value.contains(scala.util.Success(())))
+  }
+
+  test("start no other chunk once a chunk is rejected") {
+    val groups = (1 to 5).map(i => Map[String, AnyRef](s"t$i/a" -> s"$i")).iterator
+    var written = List.empty[Map[String, AnyRef]]
+    val result = FirebaseFutureWrappers.updateInChunks(groups, FirebaseWriteSettings(1, Int.MaxValue, 1), index) { chunk =>
+      written = written :+ chunk
+      if (chunk.contains("t2/a")) ff(new RuntimeException("rejected")) else fs(())
+    }
+
+    assert(written.map(_.keySet) == List(Set("t1/a"), Set("t2/a")))
+    assert(result.value.exists(_.isFailure))
+  }
+
+  test("write the index paths of a split group after its other paths") {
+    val group = (1 to 4).map(i => s"t1/$i" -> s"$i").toMap[String, AnyRef] + ("index/t1" -> "10")
+    val small = Map[String, AnyRef]("t2/a" -> "1", "index/t2" -> "20")
+    var written = List.empty[Map[String, AnyRef]]
+    val result = FirebaseFutureWrappers.updateInChunks(Iterator(group, small), FirebaseWriteSettings(2, Int.MaxValue, 2), index) { chunk =>
+      written = written :+ chunk
+      fs(())
+    }
+
+    assert(result.value.contains(scala.util.Success(())))
+    assert(written.last == Map("index/t1" -> "10"))
+    assert(written.init.forall(!_.contains("index/t1")))
+    assert(written.contains(small))
+    assert(written.reduce(_ ++ _) == group ++ small)
+  }
+
+  test("do not write the index paths of a split group when one of its chunks is rejected") {
+    val group = (1 to 4).map(i => s"t1/$i" -> s"$i").toMap[String, AnyRef] + ("index/t1" -> "10")
+    var written = List.empty[Map[String, AnyRef]]
+    val result = FirebaseFutureWrappers.updateInChunks(Iterator(group), FirebaseWriteSettings(2, Int.MaxValue, 2), index) { chunk =>
+      written = written :+ chunk
+      if (chunk.contains("t1/3")) ff(new RuntimeException("rejected")) else fs(())
+    }
+
+    assert(result.value.exists(_.isFailure))
+    assert(!written.exists(_.contains("index/t1")))
+  }
+}
@@ -1,9 +1,10 @@
 package services
 
 import com.google.api.services.gmail.Gmail
-import com.google.api.services.gmail.model.ListThreadsResponse
+import com.google.api.services.gmail.model.{BatchModifyMessagesRequest, ListThreadsResponse, Thread}
 import common._
 import conf.AppConf
+import org.mockito.ArgumentCaptor
 import org.mockito.Mockito._
 import play.api.inject._
 import services.support.TestBase
@@ -16,12 +17,13 @@ class GmailClientTest extends TestBase {
 
   val accountId = "me@gmail.com"
   var gmailThrottlerClient: GmailThrottlerClient = _
+  var googleAuthorization: GoogleAuthorization = _
   var gmailClient: GmailClient = _
   var request: Gmail#Users#Threads#List = _
 
   before {
     val appConf = mock[AppConf]
-    val googleAuthorization = mock[GoogleAuthorization]
+    googleAuthorization = mock[GoogleAuthorization]
     gmailThrottlerClient = mock[GmailThrottlerClient]
 
     val injector = getTestGuiceApplicationBuilder
@@ -62,4 +64,45 @@ class GmailClientTest extends TestBase {
     val result = Await.result(resultFuture, Duration.Inf)
     assert(result == List(r1t1, r1t2, r2t3, r2t4))
   }
+
+  test("modify the messages by batches of at most 1000 ids") {
+    when(googleAuthorization.getService(accountId)) thenReturn fs(gmail)
+    when(gmailThrottlerClient.scheduleBatchModifyMessages(any, any)) thenReturn fs(())
+    val messageIds = (1 to 2500).map(i => s"m$i").toList
+
+    Await.result(gmailClient.modifyMessages(accountId, messageIds, List("Label_1"), List()), Duration.Inf)
+
+    val captor = ArgumentCaptor.forClass(classOf[Gmail#Users#Messages#BatchModify])
+    verify(gmailThrottlerClient, times(3)).scheduleBatchModifyMessages(any, captor.capture())
+    val batches = captor.getAllValues.asScala.toList.map(_.getJsonContent.asInstanceOf[BatchModifyMessagesRequest])
+    assert(batches.map(_.getIds.size) == List(1000, 1000, 500))
+    assert(batches.flatMap(_.getIds.asScala) == messageIds)
+    assert(batches.forall(_.getAddLabelIds.asScala == List("Label_1")))
+  }
+
+  def gmail = new Gmail.Builder(GoogleAuthorization.transport, GoogleAuthorization.factory, null).setApplicationName(GoogleAuthorization.ApplicationName).build
+
+  test("list the threads with only the fields read") {
+    when(googleAuthorization.getService(accountId)) thenReturn fs(gmail)
+    when(gmailThrottlerClient.scheduleListThreads(any, any)) thenReturn fs(new ListThreadsResponse)
+
+    Await.result(gmailClient.listThreads(accountId, "label:INBOX"), Duration.Inf)
+
+    val captor = ArgumentCaptor.forClass(classOf[Gmail#Users#Threads#List])
+    verify(gmailThrottlerClient).scheduleListThreads(any, captor.capture())
+    assert(captor.getValue.getQ == "label:INBOX")
+    assert(captor.getValue.getFields == GmailClient.Fields.ListThreads)
+  }
+
+  test("get a thread in the minimal format with only the fields read") {
+    when(googleAuthorization.getService(accountId)) thenReturn fs(gmail)
+    when(gmailThrottlerClient.scheduleGetThread(any, any)) thenReturn fs(new Thread)
+
+    Await.result(gmailClient.getThread(accountId, "t1", GmailClient.Format.Minimal), Duration.Inf)
+
+    val captor = ArgumentCaptor.forClass(classOf[Gmail#Users#Threads#Get])
+    verify(gmailThrottlerClient).scheduleGetThread(any, captor.capture())
+    assert(captor.getValue.getFormat == GmailClient.Format.Minimal)
+    assert(captor.getValue.getFields == GmailClient.Fields.MinimalThread)
+  }
 }
@@ -0,0 +1,141 @@
+package services
+
+import akka.actor.{Actor, ActorRef, ActorSystem, PoisonPill, Props}
+import com.google.api.client.googleapis.json.GoogleJsonError
+import com.google.api.services.gmail.{Gmail, GmailRequest}
+import common._
+import org.mockito.Mockito._
+import org.scalatest.concurrent.Eventually
+import play.api.inject._
+import services.GmailRequests._
+import services.support.TestBase
+
+import scala.concurrent.{Await, ExecutionContext}
+import scala.concurrent.duration.Duration
+import scala.util.{Failure, Success, Try}
+
+class GmailThrottlerClientTest extends TestBase with Eventually {
+
+  val accountId = "me@gmail.com"
+  var actorsClient: ActorsClient = _
+  var metrics: Metrics = _
+  var gmailThrottlerClient: GmailThrottlerClient = _
+  var exec: ExecutionContext = _
+  var userActor: ActorRef = _
+
+  before {
+    actorsClient = mock[ActorsClient]
+    val injector = getTestGuiceApplicationBuilder
+      .overrides(bind[ActorsClient].toInstance(actorsClient))
+      .build.injector
+    userActor = injector.instanceOf[ActorSystem].actorOf(Props(new UserStub(Props(injector.instanceOf[GmailThrottlerActor]))), accountId)
+    when(actorsClient.getGmailThrottlerActor(accountId)) thenReturn fs(userActor)
+    gmailThrottlerClient = injector.instanceOf[GmailThrottlerClient]
+    metrics = injector.instanceOf[Metrics]
+    exec = injector.instanceOf[ExecutionContext]
+  }
+
+  /**
+   * Stands for the user supervisor, the throttler labels the series it removes with the name of its parent.
+   */
+  class UserStub(throttlerProps: Props) extends Actor {
+    val throttlerActor = context.actorOf(throttlerProps)
+
+    override def receive: Receive = {
+      case msg => throttlerActor forward msg
+    }
+  }
+
+  def sample(name: String, labels: (String, String)*) =
+    Option(metrics.registry.getSampleValue(name, labels.map(_._1).toArray, labels.map(_._2).toArray)).map(_.doubleValue)
+
+  /**
+   * Answers every request of a batch with its response, the sizes of the batches sent are recorded.
+   */
+  class BatchStub(responses: Map[GmailRequest[String], Try[String]]) extends GmailThrottlerClient()(exec, actorsClient, metrics) {
+    var batchSizes = List.empty[Int]
+
+    override protected def executeBatch[T](gmail: Gmail, batch: List[GmailRequest[T]]): List[Try[T]] = synchronized {
+      batchSizes = batchSizes :+ batch.size
+      batch.map(request => responses(request.asInstanceOf[GmailRequest[String]]).asInstanceOf[Try[T]])
+    }
+  }
+
+  def requests(count: Int) = List.fill(count)(mock[Gmail#Users#Messages#Get].asInstanceOf[GmailRequest[String]])
+
+  def batchError(code: Int) = {
+    val error = new GoogleJsonError
+    error.setCode(code)
+    error.setMessage(s"error $code")
+    new GmailBatchException(error)
+  }
+
+  test("record the Gmail requests") {
+    Await.result(gmailThrottlerClient.scheduleExecution(accountId, () => fs("thread"), "GetThread", GetThreadRequestMsg.apply), Duration.Inf)
+    Try(Await.result(gmailThrottlerClient.scheduleExecution(accountId, () => ff[String]("failure"), "GetThread", GetThreadRequestMsg.apply), Duration.Inf))
+
+    assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "GetThread") == Some(2))
+    assert(sample("gmail_request_errors_total", "user" -> accountId, "method" -> "GetThread") == Some(1))
+    assert(sample("gmail_throttler_wait_seconds_count", "user" -> accountId, "method" -> "GetThread") == Some(2))
+    assert(sample("gmail_throttler_queued_requests", "user" -> accountId) == Some(0))
+    assert(metrics.scrape.contains("gmail_request_duration_seconds_bucket"))
+  }
+
+  test("remove the Gmail series of a user once its throttler stops") {
+    Await.result(gmailThrottlerClient.scheduleExecution(accountId, () => fs("thread"), "GetThread", GetThreadRequestMsg.apply), Duration.Inf)
+    Await.result(gmailThrottlerClient.scheduleExecution(accountId, () => fs("labels"), "ListLabels", ListLabelsRequestMsg.apply), Duration.Inf)
+    metrics.gmailRequests.labels("other@gmail.com", "GetThread").inc()
+    assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "ListLabels") == Some(1))
+
+    userActor ! PoisonPill
+    eventually {
+      assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "GetThread").isEmpty)
+      assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "ListLabels").isEmpty)
+      assert(sample("gmail_throttler_wait_seconds_count", "user" -> accountId, "method" -> "GetThread").isEmpty)
+      assert(sample("gmail_throttler_queued_requests", "user" -> accountId).isEmpty)
+    }
+    assert(sample("gmail_requests_total", "user" -> "other@gmail.com", "method" -> "GetThread") == Some(1))
+  }
+
+  test("send the requests in HTTP batches with one permit per request") {
+    val batchRequests = requests(GmailBatch.MaxSize * 2 + 1)
+    val client = new BatchStub(batchRequests.zipWithIndex.map { case (request, index) => request -> Success(s"response$index") }.toMap)
+
+    val responses = Await.result(client.scheduleBatch(accountId, null, batchRequests, "GetMessage", GetMessageRequestMsg.apply), Duration.Inf)
+    assert(client.batchSizes.sorted == List(1, GmailBatch.MaxSize, GmailBatch.MaxSize))
+    assert(responses == batchRequests.indices.map(index => s"response$index").toList)
+    assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "GetMessage") == Some(GmailBatch.MaxSize * 2 + 1))
+    assert(sample("gmail_request_duration_seconds_count", "user" -> accountId, "method" -> "GetMessage") == Some(GmailBatch.MaxSize * 2 + 1))
+    assert(sample("gmail_throttler_wait_seconds_count", "user" -> accountId, "method" -> "GetMessage") == Some(GmailBatch.MaxSize * 2 + 1))
+    assert(sample("gmail_request_errors_total", "user" -> accountId, "method" -> "GetMessage").isEmpty)
+  }
+
+  test("skip the items of a batch no longer found") {
+    val batchRequests = requests(3)
+    val client = new BatchStub(Map(batchRequests(0) -> Success("response0"), batchRequests(1) -> Failure(batchError(404)), batchRequests(2) -> Success("response2")))
+
+    val responses = Await.result(client.scheduleBatch(accountId, null, batchRequests, "GetMessage", GetMessageRequestMsg.apply), Duration.Inf)
+    assert(responses == List("response0", "response2"))
+  }
+
+  test("fail the whole call when an item of a batch fails otherwise") {
+    val batchRequests = requests(3)
+    val client = new BatchStub(Map(batchRequests(0) -> Success("response0"), batchRequests(1) -> Failure(batchError(500)), batchRequests(2) -> Success("response2")))
+
+    val result = Try(Await.result(client.scheduleBatch(accountId, null, batchRequests, "GetMessage", GetMessageRequestMsg.apply), Duration.Inf))
+    assert(result.failed.toOption.exists(_.isInstanceOf[GmailBatchException]))
+    assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "GetMessage") == Some(3))
+    assert(sample("gmail_request_errors_total", "user" -> accountId, "method" -> "GetMessage") == Some(1))
+  }
+
+  test("record every item of a failed batch as an error") {
+    val batchRequests = requests(2)
+    val client = new BatchStub(Map())
+
+    val result = Try(Await.result(client.scheduleBatch(accountId, null, batchRequests, "GetMessage", GetMessageRequestMsg.apply), Duration.Inf))
+    assert(result.isFailure)
+    assert(sample("gmail_requests_total", "user" -> accountId, "method" -> "GetMessage") == Some(2))
+    assert(sample("gmail_request_errors_total", "user" -> accountId, "method" -> "GetMessage") == Some(2))
+    assert(sample("gmail_request_duration_seconds_count", "user" -> accountId, "method" -> "GetMessage") == Some(2))
+  }
+}
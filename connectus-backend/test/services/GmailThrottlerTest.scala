@@ -3,24 +3,26 @@ package services
 import java.time.LocalDateTime
 import java.time.temporal.ChronoUnit
 
-import akka.actor.{ActorSystem, Props}
+import akka.actor.{ActorIdentity, ActorSystem, Identify, Props}
 import akka.pattern.ask
 import services.GmailRequests._
 import services.support.TestBase
 
 import scala.concurrent.ExecutionContext.Implicits.global
-import scala.concurrent.duration.Duration
+import scala.concurrent.duration._
 import scala.concurrent.{Await, Future}
 
 class GmailThrottlerTest extends TestBase {
   test("Throttle Gmail API calls") {
     implicit val timeout = Timeouts.oneMinute
-    val injector = getTestGuiceApplicationBuilder.build.injector
+    val injector = getTestGuiceApplicationBuilder
+      .configure("application.gmail.quota.units.per.second" -> GmailQuota.GetMessage, "application.gmail.quota.burst.units" -> GmailQuota.GetMessage)
+      .build.injector
     val gmailClientThrottlerActor = injector.instanceOf[ActorSystem].actorOf(identity(Props(injector.instanceOf[GmailThrottlerActor])))
 
-    val f1 = gmailClientThrottlerActor ? ListLabelsRequestMsg(() => Future {LocalDateTime.now()})
-    val f2 = gmailClientThrottlerActor ? ListLabelsRequestMsg(() => Future {LocalDateTime.now()})
-    val f3 = gmailClientThrottlerActor ? ListLabelsRequestMsg(() => Future {LocalDateTime.now()})
+    val f1 = gmailClientThrottlerActor ? GetMessageRequestMsg(() => Future {LocalDateTime.now()})
+    val f2 = gmailClientThrottlerActor ? GetMessageRequestMsg(() => Future {LocalDateTime.now()})
+    val f3 = gmailClientThrottlerActor ? GetMessageRequestMsg(() => Future {LocalDateTime.now()})
 
     val sequence = Future.sequence(List(f1, f2, f3))
     Await.result(sequence, Duration.Inf) match {
@@ -32,4 +34,42 @@ class GmailThrottlerTest extends TestBase {
       case e => fail
     }
   }
+
+  test("Spend the idle budget on a burst") {
+    implicit val timeout = Timeouts.oneMinute
+    val injector = getTestGuiceApplicationBuilder
+      .configure("application.gmail.quota.units.per.second" -> 1, "application.gmail.quota.burst.units" -> 3 * GmailQuota.GetMessage)
+      .build.injector
+    val gmailClientThrottlerActor = injector.instanceOf[ActorSystem].actorOf(identity(Props(injector.instanceOf[GmailThrottlerActor])))
+
+    val requests = List.fill(3)(gmailClientThrottlerActor ? GetMessageRequestMsg(() => Future {LocalDateTime.now()}))
+    Await.result(Future.sequence(requests), Duration.Inf) match {
+      case List(Some(jr1: LocalDateTime), Some(jr2: LocalDateTime), Some(jr3: LocalDateTime)) =>
+        assert(jr1.until(jr3, ChronoUnit.SECONDS) == 0)
+      case e => fail
+    }
+  }
+
+  test("Charge the requests of a user owned by another node to the throttler of the user") {
+    implicit val timeout = Timeouts.oneMinute
+    val injector = getTestGuiceApplicationBuilder
+      .configure("application.gmail.quota.units.per.second" -> GmailQuota.GetMessage, "application.gmail.quota.burst.units" -> GmailQuota.GetMessage)
+      .build.injector
+    val system = injector.instanceOf[ActorSystem]
+    // the throttler of the user stands for the user region, which forwards the permits to it
+    val gmailClientThrottlerActor = system.actorOf(identity(Props(injector.instanceOf[GmailThrottlerActor])))
+    val remoteGmailThrottlerActor = system.actorOf(Props(new RemoteGmailThrottlerActor("me@gmail.com", gmailClientThrottlerActor, 500.millis)))
+
+    val local = gmailClientThrottlerActor ? GetMessageRequestMsg(() => Future {LocalDateTime.now()})
+    val remote = remoteGmailThrottlerActor ? GetMessageRequestMsg(() => Future {LocalDateTime.now()})
+    Await.result(Future.sequence(List(local, remote)), Duration.Inf) match {
+      case List(Some(jr1: LocalDateTime), Some(jr2: LocalDateTime)) =>
+        assert(jr1.until(jr2, ChronoUnit.SECONDS) == 1)
+      case e => fail
+    }
+
+    Thread.sleep(1500)
+    val actorIdentity = Await.result((system.actorSelection(remoteGmailThrottlerActor.path) ? Identify(None)).mapTo[ActorIdentity], Duration.Inf)
+    assert(actorIdentity.ref.isEmpty)
+  }
 }
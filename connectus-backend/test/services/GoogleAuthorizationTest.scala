@@ -0,0 +1,86 @@
+package services
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.google.api.client.auth.oauth2.{BearerToken, Credential}
+import com.google.api.client.util.store.MemoryDataStoreFactory
+import conf.AppConf
+import org.scalatest.FunSuiteLike
+import org.specs2.mock.Mockito
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.util.Try
+
+class GoogleAuthorizationTest extends FunSuiteLike with Mockito {
+
+  implicit val executor = ExecutionContext.global
+  val accountId = "me@gmail.com"
+
+  def credential(refreshToken: String = "fakeRefreshToken", expiresInSeconds: Long = 3600) = {
+    val credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+    credential.setRefreshToken(refreshToken)
+    credential.setExpiresInSeconds(expiresInSeconds)
+    credential
+  }
+
+  /**
+   * Loads the credentials given in turn instead of reading them from the flow, refreshes them by waiting for the latch.
+   */
+  class StubGoogleAuthorization(credentials: (() => Credential)*) extends GoogleAuthorization()(executor, mock[AppConf], new MemoryDataStoreFactory) {
+    val loads = new AtomicInteger
+    val refreshes = new AtomicInteger
+    val refreshLatch = new CountDownLatch(1)
+
+    override protected def loadCredential(accountId: String): Option[Credential] = {
+      val load = loads.getAndIncrement
+      Thread.sleep(100)
+      Some(credentials(load.min(credentials.size - 1))())
+    }
+
+    override protected def refresh(credential: Credential): Unit = {
+      refreshes.incrementAndGet
+      refreshLatch.await()
+    }
+  }
+
+  test("load the service of a user once under concurrent requests") {
+    val googleAuthorization = new StubGoogleAuthorization(() => credential())
+
+    val services = Await.result(Future.sequence(List.fill(10)(Future(googleAuthorization.getService(accountId)).flatMap(identity))), 1.minute)
+    assert(services.distinct.size == 1)
+    assert(googleAuthorization.loads.get == 1)
+  }
+
+  test("load the service again after a failed load") {
+    val googleAuthorization = new StubGoogleAuthorization(() => throw new IllegalStateException("no credential"), () => credential())
+
+    assert(Try(Await.result(googleAuthorization.getService(accountId), 1.minute)).isFailure)
+    assert(Try(Await.result(googleAuthorization.getService(accountId), 1.minute)).isSuccess)
+    assert(googleAuthorization.loads.get == 2)
+  }
+
+  test("refresh an access token about to expire once in the background") {
+    val googleAuthorization = new StubGoogleAuthorization(() => credential(expiresInSeconds = 10))
+
+    Await.result(Future.sequence(List.fill(10)(googleAuthorization.getService(accountId))), 1.minute)
+    while (googleAuthorization.refreshes.get == 0) Thread.sleep(10)
+    Await.result(googleAuthorization.getService(accountId), 1.minute)
+    Thread.sleep(100)
+    assert(googleAuthorization.refreshes.get == 1)
+    googleAuthorization.refreshLatch.countDown()
+  }
+
+  test("invalidate the service when the refresh token of the user changes") {
+    val googleAuthorization = new StubGoogleAuthorization(() => credential("oldRefreshToken"), () => credential("newRefreshToken"))
+    val service = Await.result(googleAuthorization.getService(accountId), 1.minute)
+
+    googleAuthorization.onRefreshTokenChanged(accountId, "oldRefreshToken")
+    assert(Await.result(googleAuthorization.getService(accountId), 1.minute) eq service)
+
+    googleAuthorization.onRefreshTokenChanged(accountId, "newRefreshToken")
+    assert(Await.result(googleAuthorization.getService(accountId), 1.minute) ne service)
+    assert(googleAuthorization.loads.get == 2)
+  }
+}
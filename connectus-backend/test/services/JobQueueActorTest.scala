@@ -1,19 +1,21 @@
 package services
 
 import java.time.LocalDateTime
+import java.util.concurrent.TimeoutException
 
 import akka.actor.{ActorSystem, Props}
 import akka.pattern.ask
 import common._
-import services.JobQueueActor.{Job, SkippedJob}
+import org.scalatest.concurrent.Eventually
+import services.JobQueueActor.{Job, Shared, SkippedJob, SyncJob, SyncRequest}
 import services.support.TestBase
 
 import scala.concurrent.ExecutionContext.Implicits.global
 import scala.concurrent.duration.{Duration, _}
-import scala.concurrent.{Await, Future}
-import scala.util.{Success, Try}
+import scala.concurrent.{Await, Future, Promise}
+import scala.util.{Failure, Success, Try}
 
-class JobQueueActorTest extends TestBase {
+class JobQueueActorTest extends TestBase with Eventually {
   test("execute futures serially") {
     implicit val timeout = Timeouts.oneMinute
 
@@ -60,6 +62,115 @@ class JobQueueActorTest extends TestBase {
     }
   }
 
+  test("coalesce pending sync jobs") {
+    implicit val timeout = Timeouts.oneMinute
+
+    val injector = getTestGuiceApplicationBuilder.build.injector
+    val actorSystem = injector.instanceOf(classOf[ActorSystem])
+    val jobQueueActor = actorSystem.actorOf(identity(Props(injector.instanceOf[JobQueueActor])))
+
+    def sync(request: SyncRequest): Future[SyncRequest] = completeSoon(actorSystem, request)
+    def enqueueNewSync(request: SyncRequest): Future[Any] =
+      jobQueueActor ? SyncJob(request, sync)
+
+    val f1 = enqueueNewSync(SyncRequest(Some(1)))
+    val f2 = enqueueNewSync(SyncRequest(Some(5)))
+    val f3 = enqueueNewSync(SyncRequest(Some(9)))
+    val f4 = enqueueNewSync(SyncRequest(None, full = true))
+    val f5 = enqueueNewSync(SyncRequest(Some(7)))
+
+    val sequence = Future.sequence(List(f1, f2, f3, f4, f5))
+    val merged = Success(SyncRequest(Some(9), full = true))
+    Await.result(sequence, Duration.Inf) match {
+      case List(Success(SyncRequest(Some(first), false)), `merged`, `merged`, `merged`, `merged`) if first == 1 =>
+      case e => fail
+    }
+  }
+
+  test("fail the callers of a job after its deadline and keep its lane until it completes") {
+    implicit val timeout = Timeouts.oneMinute
+
+    val injector = getTestGuiceApplicationBuilder.configure("application.jobs.timeout.seconds" -> 1).build.injector
+    val actorSystem = injector.instanceOf(classOf[ActorSystem])
+    val jobQueueActor = actorSystem.actorOf(identity(Props(injector.instanceOf[JobQueueActor])))
+    val metrics = injector.instanceOf[Metrics]
+
+    val sync = Promise[String]
+    val late = jobQueueActor ? Job(() => sync.future)
+    val next = jobQueueActor ? Job(() => completeSoon(actorSystem, "next"))
+
+    Await.result(late, Duration.Inf) match {
+      case Failure(_: TimeoutException) =>
+      case e => fail
+    }
+    assert(!next.isCompleted)
+    assert(metrics.registry.getSampleValue("jobs_timed_out_total", Array("user"), Array("user")) == 1)
+
+    sync.success("late")
+    assert(Await.result(next, Duration.Inf) == Success("next"))
+    assert(metrics.registry.getSampleValue("job_run_seconds_count", Array("kind"), Array("job")) == 2)
+  }
+
+  test("abandon a job that never completes") {
+    implicit val timeout = Timeouts.oneMinute
+
+    val injector = getTestGuiceApplicationBuilder.configure("application.jobs.timeout.seconds" -> 1, "application.jobs.abandon.seconds" -> 1).build.injector
+    val actorSystem = injector.instanceOf(classOf[ActorSystem])
+    val jobQueueActor = actorSystem.actorOf(identity(Props(injector.instanceOf[JobQueueActor])))
+
+    val stuck = jobQueueActor ? Job(() => Promise[Unit].future)
+    val next = jobQueueActor ? Job(() => completeSoon(actorSystem, "next"))
+
+    Await.result(Future.sequence(List(stuck, next)), Duration.Inf) match {
+      case List(Failure(_: TimeoutException), Success("next")) =>
+      case e => fail
+    }
+  }
+
+  test("run shared jobs alongside an exclusive one") {
+    implicit val timeout = Timeouts.oneMinute
+
+    val injector = getTestGuiceApplicationBuilder.build.injector
+    val actorSystem = injector.instanceOf(classOf[ActorSystem])
+    val jobQueueActor = actorSystem.actorOf(identity(Props(injector.instanceOf[JobQueueActor])))
+
+    val sync = Promise[String]
+    val exclusive = jobQueueActor ? Job(() => sync.future)
+    val nextExclusive = jobQueueActor ? Job(() => completeSoon(actorSystem, "next"))
+    val shared1 = jobQueueActor ? Job(() => completeSoon(actorSystem, "read1"), access = Shared)
+    val shared2 = jobQueueActor ? Job(() => completeSoon(actorSystem, "read2"), access = Shared)
+
+    assert(Await.result(Future.sequence(List(shared1, shared2)), Duration.Inf) == List(Success("read1"), Success("read2")))
+    assert(!exclusive.isCompleted && !nextExclusive.isCompleted)
+
+    sync.success("sync")
+    assert(Await.result(Future.sequence(List(exclusive, nextExclusive)), Duration.Inf) == List(Success("sync"), Success("next")))
+  }
+
+  test("remove the job series of the user once stopped") {
+    implicit val timeout = Timeouts.oneMinute
+
+    val injector = getTestGuiceApplicationBuilder.build.injector
+    val actorSystem = injector.instanceOf(classOf[ActorSystem])
+    val jobQueueActor = actorSystem.actorOf(identity(Props(injector.instanceOf[JobQueueActor])))
+    val metrics = injector.instanceOf[Metrics]
+    def sample(name: String) = Option(metrics.registry.getSampleValue(name, Array("user"), Array("user")))
+
+    val first = jobQueueActor ? Job(() => completeSoon(actorSystem, "first"), Some("key"))
+    val second = jobQueueActor ? Job(() => completeSoon(actorSystem, "second"), Some("key"))
+    val skipped = jobQueueActor ? Job(() => completeSoon(actorSystem, "skipped"), Some("key"))
+    Await.result(Future.sequence(List(first, second, skipped)), Duration.Inf)
+    metrics.jobsTimedOut.labels("user").inc()
+    assert(sample("jobs_skipped_total").contains(1))
+
+    actorSystem.stop(jobQueueActor)
+    eventually {
+      assert(sample("job_queue_depth").isEmpty)
+      assert(sample("jobs_skipped_total").isEmpty)
+      assert(sample("jobs_timed_out_total").isEmpty)
+    }
+  }
+
   private def completeSoon[T](actorSystem: ActorSystem, value: T): Future[T] = {
     val delay = 100.millis
     after(delay, actorSystem.scheduler)(fs(value))
@@ -96,4 +96,56 @@ class LabelServiceTest extends TestBase {
     Await.ready(result, Duration.Inf)
     verify(mailClient).deleteLabel(any, any)
   }
+
+  test("tag threads with a message from a contact") {
+    val roger = Resident("resident_1", "roger", "Roger", Some("label_1"))
+    val rogerLabel = new GmailLabel("label_1", LabelService.toLabelName(roger))
+    val connectusLabel = new GmailLabel("label_0", LabelService.ConnectusLabelName)
+    val contact = Contact("contact1@provider.com", roger.id)
+    def message(id: String, from: String, labels: List[GmailLabel]) = GmailMessage(id, None, Some(InternetAddress(from, None)), None, None, None, 0, labels, List(), true)
+    val fromContact = ThreadBundle(GmailThread("t1", "", 0), List(message("t1m1", "Contact1@provider.com", List())))
+    val alreadyTagged = ThreadBundle(GmailThread("t2", "", 0), List(message("t2m1", contact.email, List(connectusLabel, rogerLabel))))
+    val fromStranger = ThreadBundle(GmailThread("t3", "", 0), List(message("t3m1", "stranger@provider.com", List())))
+
+    when(mailClient.addLabelsToThreads(any, any, any)) thenReturn fs(())
+
+    val result = labelService.tagThreads(accountId, List(fromContact, alreadyTagged, fromStranger), Map(roger -> List(contact)), Map(roger -> rogerLabel), connectusLabel)
+    val threadBundles = Await.result(result, Duration.Inf)
+
+    assert(threadBundles.map(_.messages.head.labels) == List(List(connectusLabel, rogerLabel), List(connectusLabel, rogerLabel), List()))
+    verify(mailClient).addLabelsToThreads(accountId, List("t1"), List(connectusLabel, rogerLabel))
+    verify(mailClient).addLabelsToThreads(any, any, any)
+  }
+
+  test("retag threads from the senders of their messages") {
+    val roger = Resident("resident_1", "roger", "Roger", Some("label_1"))
+    val rogerLabel = new GmailLabel("label_1", LabelService.toLabelName(roger))
+    val robert = Resident("resident_2", "robert", "Robert", Some("label_2"))
+    val robertLabel = new GmailLabel("label_2", LabelService.toLabelName(robert))
+    val connectusLabel = new GmailLabel("label_0", LabelService.ConnectusLabelName)
+    val inboxLabel = new GmailLabel(LabelService.InboxLabelName, LabelService.InboxLabelName)
+    val rogerContact = Contact("contact1@provider.com", roger.id)
+    val robertContact = Contact("contact2@provider.com", robert.id)
+    def message(id: String, from: String, labels: List[GmailLabel]) = GmailMessage(id, None, Some(InternetAddress(from, None)), None, None, None, 0, labels, List(), true)
+    val fromRogerContact = ThreadBundle(GmailThread("t1", "", 0), List(message("t1m1", "Contact1@provider.com", List(inboxLabel)), message("t1m2", "me@gmail.com", List(inboxLabel))))
+    val movedToRobert = ThreadBundle(GmailThread("t2", "", 0), List(message("t2m1", robertContact.email, List(inboxLabel, connectusLabel, rogerLabel))))
+    val alreadyTagged = ThreadBundle(GmailThread("t3", "", 0), List(message("t3m1", robertContact.email, List(inboxLabel, connectusLabel, robertLabel))))
+    val fromStranger = ThreadBundle(GmailThread("t4", "", 0), List(message("t4m1", "stranger@provider.com", List(inboxLabel, connectusLabel, rogerLabel))))
+
+    when(mailClient.modifyMessages(any, any, any, any)) thenReturn fs(())
+
+    val residents = Map(roger -> List(rogerContact), robert -> List(robertContact))
+    val result = labelService.retagThreads(accountId, List(fromRogerContact, movedToRobert, alreadyTagged, fromStranger), residents, Map(roger -> rogerLabel, robert -> robertLabel), connectusLabel)
+    val threadBundles = Await.result(result, Duration.Inf)
+
+    assert(threadBundles.map(_.messages.map(_.labels)) == List(
+      List(List(inboxLabel, connectusLabel, rogerLabel), List(inboxLabel, connectusLabel, rogerLabel)),
+      List(List(inboxLabel, connectusLabel, robertLabel)),
+      List(List(inboxLabel, connectusLabel, robertLabel)),
+      List(List(inboxLabel, connectusLabel))))
+    verify(mailClient).modifyMessages(accountId, List("t1m1", "t1m2"), List(connectusLabel, rogerLabel), List())
+    verify(mailClient).modifyMessages(accountId, List("t2m1"), List(robertLabel), List(rogerLabel))
+    verify(mailClient).modifyMessages(accountId, List("t4m1"), List(), List(rogerLabel))
+    verify(mailClient, times(3)).modifyMessages(any, any, any, any)
+  }
 }
@@ -0,0 +1,119 @@
+package services
+
+import java.math.BigInteger
+
+import com.google.api.services.gmail.model.{Message, MessagePart, MessagePartBody, Thread}
+import common._
+import model.{GmailLabel, GmailThread}
+import org.mockito.Mockito._
+import play.api.inject._
+import services.support.TestBase
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
+
+class MailClientTest extends TestBase {
+
+  val accountId = "me@gmail.com"
+  val threadId = "threadId"
+  val inbox = GmailLabel(LabelService.InboxLabelName, LabelService.InboxLabelName)
+  val allLabels = List(inbox)
+  var gmailClient: GmailClient = _
+  var messageCache: MessageCache = _
+  var mailClient: MailClient = _
+
+  before {
+    gmailClient = mock[GmailClient]
+
+    val injector = getTestGuiceApplicationBuilder
+      .overrides(bind[GmailClient].toInstance(gmailClient))
+      .build.injector
+
+    messageCache = injector.instanceOf[MessageCache]
+    mailClient = injector.instanceOf[MailClient]
+  }
+
+  def partialMessage(id: String, historyId: Int, labelIds: List[String] = List()) =
+    new Message().setId(id).setHistoryId(BigInteger.valueOf(historyId)).setLabelIds(labelIds.asJava)
+
+  def fullMessage(id: String, historyId: Int) = {
+    val payload = new MessagePart().setMimeType("text/html").setHeaders(List().asJava).setBody(new MessagePartBody())
+    partialMessage(id, historyId).setPayload(payload)
+  }
+
+  def thread(historyId: Int, messages: Message*) =
+    new Thread().setId(threadId).setHistoryId(BigInteger.valueOf(historyId)).setSnippet("snippet").setMessages(messages.asJava)
+
+  test("fetch a thread with no cached message in a single request") {
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Full)) thenReturn fs(thread(2, fullMessage("m1", 1), fullMessage("m2", 2)))
+
+    val threadBundle = Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List("m1")), Duration.Inf).get
+    assert(threadBundle.messages.map(_.id) == List("m1", "m2"))
+    assert(messageCache.stats.size == 2)
+    verify(gmailClient, never).getThread(accountId, threadId, GmailClient.Format.Minimal)
+    verify(gmailClient, never).getMessages(any, any)
+  }
+
+  test("fetch only the messages missing from the cache") {
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Full)) thenReturn fs(thread(2, fullMessage("m1", 1), fullMessage("m2", 2)))
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Minimal)) thenReturn
+      fs(thread(4, partialMessage("m1", 1), partialMessage("m2", 3, List(inbox.id)), partialMessage("m3", 4)))
+    when(gmailClient.getMessages(accountId, List("m3"))) thenReturn fs(List(fullMessage("m3", 4)))
+
+    val first = Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List()), Duration.Inf).get
+    assert(first.messages.map(_.id) == List("m1", "m2"))
+
+    val second = Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List("m1", "m2")), Duration.Inf).get
+    assert(second.thread.historyId == 4)
+    assert(second.messages.map(message => (message.id, message.historyId)) == List(("m1", 1), ("m2", 3), ("m3", 4)))
+    assert(second.messages(1).labels == List(inbox))
+
+    verify(gmailClient, times(1)).getThread(accountId, threadId, GmailClient.Format.Full)
+    verify(gmailClient, times(1)).getMessages(accountId, List("m3"))
+    assert(messageCache.stats.size == 3)
+  }
+
+  test("skip the fetch when every message is cached") {
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Full)) thenReturn fs(thread(1, fullMessage("m1", 1)))
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Minimal)) thenReturn fs(thread(1, partialMessage("m1", 1)))
+
+    Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List()), Duration.Inf)
+    val threadBundle = Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List("m1")), Duration.Inf).get
+    assert(threadBundle.messages.map(_.id) == List("m1"))
+
+    verify(gmailClient, times(1)).getThread(accountId, threadId, GmailClient.Format.Full)
+    verify(gmailClient, never).getMessages(any, any)
+  }
+
+  test("take the labels of the listing for a cached message with the same historyId") {
+    when(gmailClient.getMessage(accountId, "m1")) thenReturn fs(fullMessage("m1", 1))
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Minimal)) thenReturn fs(thread(1, partialMessage("m1", 1, List(inbox.id))))
+    Await.result(mailClient.getMessage(accountId, "m1", List()), Duration.Inf)
+
+    val threadBundle = Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List("m1")), Duration.Inf).get
+    assert(threadBundle.messages.map(message => (message.id, message.labels)) == List(("m1", List(inbox))))
+    assert(threadBundle.isInInbox)
+    verify(gmailClient, never).getThread(accountId, threadId, GmailClient.Format.Full)
+  }
+
+  test("rebuild an unchanged thread from the cache with the labels of the snapshot") {
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Full)) thenReturn fs(thread(2, fullMessage("m1", 1), fullMessage("m2", 2)))
+    Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List()), Duration.Inf)
+
+    val cachedThread = GmailThread(threadId, "snippet", 2)
+    val threadBundle = mailClient.getCachedThreadBundle(accountId, cachedThread, List("m1", "m2"), Map("m2" -> List(inbox))).get
+    assert(threadBundle.thread == cachedThread)
+    assert(threadBundle.messages.map(message => (message.id, message.labels)) == List(("m1", List()), ("m2", List(inbox))))
+    verify(gmailClient, times(1)).getThread(accountId, threadId, GmailClient.Format.Full)
+  }
+
+  test("rebuild no thread with a message missing from the cache") {
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Full)) thenReturn fs(thread(1, fullMessage("m1", 1)))
+    Await.result(mailClient.getThreadBundle(accountId, threadId, allLabels, List()), Duration.Inf)
+
+    val cachedThread = GmailThread(threadId, "snippet", 2)
+    assert(mailClient.getCachedThreadBundle(accountId, cachedThread, List("m1", "m2"), Map()).isEmpty)
+    assert(mailClient.getCachedThreadBundle(accountId, cachedThread, List(), Map()).isEmpty)
+  }
+}
@@ -0,0 +1,79 @@
+package services
+
+import java.math.BigInteger
+
+import com.google.api.services.gmail.model.{History, Message, MessagePart, MessagePartBody, Thread}
+import common._
+import model.{AttachmentRequest, GmailLabel, GmailMessage, GmailThread, ThreadBundle}
+import org.mockito.ArgumentCaptor
+import org.mockito.Mockito._
+import play.api.inject._
+import services.Repository.MessagesSnapshot
+import services.support.TestBase
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
+
+class MessageServiceTest extends TestBase {
+
+  val accountId = "me@gmail.com"
+  val threadId = "threadId"
+  val inbox = GmailLabel(LabelService.InboxLabelName, LabelService.InboxLabelName)
+  val trash = GmailLabel(LabelService.TrashLabelName, LabelService.TrashLabelName)
+  val connectus = GmailLabel("connectusId", LabelService.ConnectusLabelName)
+  val allLabels = List(inbox, trash, connectus)
+
+  def message(id: String, labels: List[GmailLabel]) = GmailMessage(id, None, None, None, None, None, 0, labels, List(), true)
+
+  def partialMessage(id: String, historyId: Int, labelIds: List[String]) =
+    new Message().setId(id).setThreadId(threadId).setHistoryId(BigInteger.valueOf(historyId)).setLabelIds(labelIds.asJava)
+
+  test("remove the trashed messages of the threads") {
+    val threadBundle = ThreadBundle(GmailThread("t1", "", 0), List(message("m1", List(inbox)), message("m2", List(trash)), message("m3", List(inbox, trash))))
+
+    val filtered = MessageService.removeTrashedMessages(List(threadBundle))
+    assert(filtered.map(_.messages.map(_.id)) == List(List("m1")))
+  }
+
+  test("keep the labels of a message fetched for an attachment request when its thread is synced") {
+    val gmailClient = mock[GmailClient]
+    val labelService = mock[LabelService]
+    val repository = mock[Repository]
+    val historyIdService = mock[HistoryIdService]
+    val attachmentProxy = mock[AttachmentProxy]
+    val messageService = getTestGuiceApplicationBuilder
+      .overrides(bind[GmailClient].toInstance(gmailClient))
+      .overrides(bind[LabelService].toInstance(labelService))
+      .overrides(bind[Repository].toInstance(repository))
+      .overrides(bind[HistoryIdService].toInstance(historyIdService))
+      .overrides(bind[AttachmentProxy].toInstance(attachmentProxy))
+      .build.injector.instanceOf[MessageService]
+
+    val payload = new MessagePart().setMimeType("text/html").setHeaders(List().asJava).setBody(new MessagePartBody())
+    when(gmailClient.getMessage(accountId, "m1")) thenReturn fs(partialMessage("m1", 2, List(inbox.id)).setPayload(payload))
+    when(gmailClient.listHistory(accountId, BigInt(1))) thenReturn fs(List(new History().setId(BigInteger.valueOf(2)).setMessages(List(partialMessage("m1", 2, List(inbox.id))).asJava)))
+    when(gmailClient.getThread(accountId, threadId, GmailClient.Format.Minimal)) thenReturn
+      fs(new Thread().setId(threadId).setHistoryId(BigInteger.valueOf(2)).setSnippet("snippet").setMessages(List(partialMessage("m1", 2, List(inbox.id))).asJava))
+    labelService.listAllLabels(accountId) returns fs(allLabels)
+    labelService.getOrCreateConnectusLabel(accountId, allLabels) returns fs(connectus)
+    labelService.syncResidentLabels(accountId, allLabels) returns fs(Map())
+    labelService.tagThreads(any, any, any, any, any) returns fs(List())
+    repository.getResidentsAndContacts(accountId) returns fs(Map())
+    repository.getMessagesSnapshot(accountId, Set(threadId)) returns fs(MessagesSnapshot(allThreadIds = Map(threadId -> List("m1"))))
+    repository.findDeletedThreadIds(any, any) returns List()
+    repository.saveThreadChanges(any, any, any, any, any) returns fs(())
+    repository.saveAttachmentResponse(any, any) returns fs(())
+    historyIdService.setLocalHistoryId(any, any) returns fs(Some(BigInt(2)))
+    attachmentProxy.links(any, any, any) returns None
+
+    Await.result(messageService.prepareRequest(accountId, AttachmentRequest("m1")), Duration.Inf)
+    Await.result(messageService.syncInbox(accountId, 1, 2), Duration.Inf)
+
+    val taggedThreadBundles = ArgumentCaptor.forClass(classOf[List[ThreadBundle]])
+    verify(labelService).tagThreads(any, taggedThreadBundles.capture(), any, any, any)
+    assert(taggedThreadBundles.getValue.map(_.messages.map(message => (message.id, message.labels))) == List(List(("m1", List(inbox)))))
+    verify(gmailClient, never).getThread(accountId, threadId, GmailClient.Format.Full)
+    verify(gmailClient, never).getMessages(any, any)
+  }
+}
@@ -0,0 +1,38 @@
+package services
+
+import com.google.api.services.gmail.model.{MessagePart, MessagePartBody, MessagePartHeader}
+import org.scalatest.FunSuiteLike
+
+import scala.collection.JavaConverters._
+
+class MimePartWalkerTest extends FunSuiteLike {
+
+  def part(mimeType: String, text: String = "", charset: String = "UTF-8", parts: List[MessagePart] = List()) =
+    new MessagePart()
+      .setMimeType(mimeType)
+      .setHeaders(List(new MessagePartHeader().setName("Content-Type").setValue(s"""$mimeType; charset="$charset"""")).asJava)
+      .setBody(new MessagePartBody().encodeData(text.getBytes(charset)))
+      .setParts(if (parts.isEmpty) null else parts.asJava)
+
+  test("find the first text part breadth first") {
+    val payload = part("multipart/mixed", parts = List(
+      part("multipart/alternative", parts = List(part("text/plain", "nested"), part("text/html", "<p>nested</p>"))),
+      part("text/plain", "first level")))
+
+    assert(MimePartWalker.content(payload) == Some("first level"))
+  }
+
+  test("decode the text with the charset of the part") {
+    assert(MimePartWalker.content(part("text/plain", "déjà vu", "ISO-8859-1")) == Some("déjà vu"))
+    assert(MimePartWalker.content(part("text/plain", "déjà vu ✓")) == Some("déjà vu ✓"))
+  }
+
+  test("cap the decoded text") {
+    val text = "é" * 1000
+    assert(MimePartWalker.content(part("text/plain", text), 10) == Some("é" * 10))
+  }
+
+  test("ignore messages without a text part") {
+    assert(MimePartWalker.content(part("multipart/alternative", parts = List(part("text/html", "<p>html</p>")))).isEmpty)
+  }
+}
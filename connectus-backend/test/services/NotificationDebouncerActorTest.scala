@@ -0,0 +1,59 @@
+package services
+
+import akka.actor.{ActorSystem, Props}
+import akka.pattern.ask
+import common._
+import org.mockito.Mockito
+import org.mockito.Mockito._
+import play.api.inject._
+import services.JobQueueActor.SyncRequest
+import services.NotificationDebouncerActor.Notify
+import services.support.TestBase
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+import scala.util.{Success, Try}
+
+class NotificationDebouncerActorTest extends TestBase {
+
+  val accountId = "me@gmail.com"
+
+  test("merge the notifications received within the window") {
+    implicit val timeout = Timeouts.oneMinute
+    val actorsClient = mock[ActorsClient]
+    val injector = getTestGuiceApplicationBuilder
+      .overrides(bind[ActorsClient].toInstance(actorsClient))
+      .configure("application.gmail.notification.debounce.window.milliseconds" -> 200)
+      .build.injector
+    val debouncerActor = injector.instanceOf[ActorSystem].actorOf(identity(Props(injector.instanceOf[NotificationDebouncerActor])))
+    when(actorsClient.scheduleSyncOnUserJobQueue(any, any, any)) thenReturn fs[Try[_]](Success(Some(BigInt(12))))
+
+    val results = List(10, 12, 11).map(historyId => debouncerActor ? Notify(accountId, BigInt(historyId)))
+
+    assert(Await.result(Future.sequence(results), 1.minute) == List.fill(3)(Success(Some(BigInt(12)))))
+    verify(actorsClient, times(1)).scheduleSyncOnUserJobQueue(org.mockito.Matchers.eq(accountId), org.mockito.Matchers.eq(SyncRequest(Some(BigInt(12)))), any)
+    val metrics = injector.instanceOf[Metrics]
+    assert(metrics.registry.getSampleValue("notifications_received_total", Array("user"), Array("user")) == 3)
+    assert(metrics.registry.getSampleValue("notifications_absorbed_total", Array("user"), Array("user")) == 2)
+  }
+
+  test("sync once the max delay is reached") {
+    implicit val timeout = Timeouts.oneMinute
+    val actorsClient = mock[ActorsClient]
+    val injector = getTestGuiceApplicationBuilder
+      .overrides(bind[ActorsClient].toInstance(actorsClient))
+      .configure("application.gmail.notification.debounce.window.milliseconds" -> 200, "application.gmail.notification.debounce.max.delay.milliseconds" -> 300)
+      .build.injector
+    val debouncerActor = injector.instanceOf[ActorSystem].actorOf(identity(Props(injector.instanceOf[NotificationDebouncerActor])))
+    when(actorsClient.scheduleSyncOnUserJobQueue(any, any, any)) thenReturn fs[Try[_]](Success(None))
+
+    val first = debouncerActor ? Notify(accountId, BigInt(1))
+    (2 to 6).foreach { historyId =>
+      Thread.sleep(100)
+      debouncerActor ! Notify(accountId, BigInt(historyId))
+    }
+
+    Await.result(first, 1.minute)
+    verify(actorsClient, Mockito.timeout(1000).times(2)).scheduleSyncOnUserJobQueue(any, any, any)
+  }
+}
@@ -1,16 +1,24 @@
 package services
 
+import akka.actor.ActorSystem
 import com.google.api.client.auth.oauth2.StoredCredential
 import common._
-import org.scalatest.FunSuiteLike
+import conf.AppConf
+import org.scalatest.{BeforeAndAfterAll, FunSuiteLike}
 import org.specs2.mock.Mockito
 
-import scala.concurrent.ExecutionContext
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext}
+
+class RepositoryDataStoreFactoryTest extends FunSuiteLike with Mockito with BeforeAndAfterAll {
+
+  val actorSystem = ActorSystem("RepositoryDataStoreFactoryTest")
+
+  override def afterAll(): Unit = actorSystem.terminate()
 
-class RepositoryDataStoreFactoryTest extends FunSuiteLike with Mockito {
   test("store credentials while refreshing access token") {
     val repository = mock[Repository]
-    val credentialDataStore = new RepositoryDataStoreFactory(repository, ExecutionContext.global).createStoredCredentialDataStore("id")
+    val credentialDataStore = new RepositoryDataStoreFactory(repository, actorSystem, ExecutionContext.global).createStoredCredentialDataStore("id")
     val accountId = "me@gmail.com"
 
     val credential = new StoredCredential
@@ -20,6 +28,65 @@ class RepositoryDataStoreFactoryTest extends FunSuiteLike with Mockito {
 
     repository.updateAccessToken(any, any, any) returns fs(())
     credentialDataStore.set(accountId, credential)
+    Await.result(credentialDataStore.flush, Duration.Inf)
     there was one(repository).updateAccessToken(accountId, null, null)
   }
+
+  test("read credentials from memory once loaded") {
+    val repository = mock[Repository]
+    val credentialDataStore = new RepositoryDataStoreFactory(repository, actorSystem, ExecutionContext.global).createStoredCredentialDataStore("id")
+    val accountId = "me@gmail.com"
+
+    repository.getCredentials(accountId) returns fs(Repository.UserCredential("fakeRefreshToken", "fakeAccessToken", 1000))
+    assert(credentialDataStore.get(accountId).getAccessToken == "fakeAccessToken")
+    assert(credentialDataStore.get(accountId).getRefreshToken == "fakeRefreshToken")
+    there was one(repository).getCredentials(accountId)
+  }
+
+  test("retry a rejected write") {
+    val repository = mock[Repository]
+    val credentialDataStore = new RepositoryDataStoreFactory(repository, actorSystem, ExecutionContext.global).createStoredCredentialDataStore("id")
+    val accountId = "me@gmail.com"
+
+    val credential = new StoredCredential
+    credential.setAccessToken("fakeAccessToken")
+    credential.setRefreshToken("fakeRefreshToken")
+    credential.setExpirationTimeMilliseconds(1000L)
+
+    repository.updateAccessToken(any, any, any) returns ff[Unit]("rejected") thenReturns fs(())
+    credentialDataStore.set(accountId, credential)
+    Await.result(credentialDataStore.flush, Duration.Inf)
+    there was two(repository).updateAccessToken(accountId, Some("fakeAccessToken"), Some(1000L))
+  }
+
+  test("read a credential again once evicted") {
+    val repository = mock[Repository]
+    val credentialDataStore = new RepositoryDataStoreFactory(repository, actorSystem, ExecutionContext.global).createStoredCredentialDataStore("id")
+    val accountId = "me@gmail.com"
+
+    repository.getCredentials(accountId) returns fs(Repository.UserCredential("oldRefreshToken", "fakeAccessToken", 1000)) thenReturns
+      fs(Repository.UserCredential("newRefreshToken", "fakeAccessToken", 1000))
+    assert(credentialDataStore.get(accountId).getRefreshToken == "oldRefreshToken")
+    assert(credentialDataStore.get(accountId).getRefreshToken == "oldRefreshToken")
+
+    credentialDataStore.evict(accountId)
+    assert(credentialDataStore.get(accountId).getRefreshToken == "newRefreshToken")
+    there was two(repository).getCredentials(accountId)
+  }
+
+  test("invalidating the service of a user loads its new refresh token") {
+    val repository = mock[Repository]
+    val dataStoreFactory = new RepositoryDataStoreFactory(repository, actorSystem, ExecutionContext.global)
+    val appConf = mock[AppConf]
+    val googleAuthorization = new GoogleAuthorization()(ExecutionContext.global, appConf, dataStoreFactory)
+    val dataStore = StoredCredential.getDefaultDataStore(dataStoreFactory)
+    val accountId = "me@gmail.com"
+
+    repository.getCredentials(accountId) returns fs(Repository.UserCredential("oldRefreshToken", "fakeAccessToken", 1000)) thenReturns
+      fs(Repository.UserCredential("newRefreshToken", "fakeAccessToken", 1000))
+    assert(dataStore.get(accountId).getRefreshToken == "oldRefreshToken")
+
+    googleAuthorization.invalidate(accountId)
+    assert(dataStore.get(accountId).getRefreshToken == "newRefreshToken")
+  }
 }
@@ -3,11 +3,13 @@ package services
 import _root_.conf.AppConf
 import common._
 import model._
+import org.mockito.ArgumentCaptor
 import org.mockito.Mockito._
 import play.api.inject._
-import services.Repository.MessagesSnapshot
+import services.Repository.{MessagesSnapshot, ResidentIndex, SyncCursor}
 import support.TestBase
 
+import scala.collection.JavaConverters._
 import scala.concurrent.Await
 import scala.concurrent.duration.Duration
 
@@ -38,16 +40,11 @@ class RepositoryTest extends TestBase {
       .build.injector.instanceOf[Repository]
 
     when(appConf.getFirebaseUrl) thenReturn firebaseUrl
+    when(appConf.getFirebaseWriteChunkPaths) thenReturn 1000
+    when(appConf.getFirebaseWriteChunkBytes) thenReturn 256 * 1024
+    when(appConf.getFirebaseWriteParallelism) thenReturn 4
     when(firebaseFutureWrappers.updateChildrenFuture(any, any)) thenReturn fs(())
-  }
-
-  test("buildContactQuery") {
-    val contacts = List(Contact("contact1@provider.com", "roger"), Contact("contact2@provider.com", "robert"))
-    assert(LabelService.residentUntaggedMessages(contacts) == "label:INBOX (from:contact1@provider.com OR from:contact2@provider.com)")
-  }
-
-  test("buildContactQuery with empty contact list") {
-    assert(LabelService.residentUntaggedMessages(List()) == s"label:INBOX label:${LabelService.AbsentLabelName}")
+    when(firebaseFutureWrappers.updateChildrenInChunksFuture(any, any, any, any)(any)).thenCallRealMethod()
   }
 
   test("find deleted messages") {
@@ -68,6 +65,22 @@ class RepositoryTest extends TestBase {
     assert(result == List(Thread1Id))
   }
 
+  test("find deleted messages of the bundled threads only") {
+    val messages = List(GmailMessage(threadId1Message1Id, None, None, None, None, None, 0, List(), List(), true))
+    val adminThreadIds = Map(Thread1Id -> List(threadId1Message1Id, threadId1Message2Id), Thread2Id -> List(threadId2Message1Id))
+    val threadBundles = List(ThreadBundle(thread1, messages))
+
+    val result = repository.findDeletedMessageIds(adminThreadIds, threadBundles)
+    assert(result == Map(Thread1Id -> List(threadId1Message2Id)))
+  }
+
+  test("find the resident of labels") {
+    val residentIndex = ResidentIndex(residentLabels)
+    assert(residentIndex.fromLabelIds(List(GmailLabel("INBOX", "INBOX"), GmailLabel("Label_51", "robert"))) == Some(robert))
+    assert(residentIndex.fromLabelNames(List(GmailLabel("Label_50", "roger"))) == Some(roger))
+    assert(residentIndex.fromLabelIds(List(GmailLabel("INBOX", "INBOX"))) == None)
+  }
+
   test("save threads to empty database") {
     val message = GmailMessage(threadId2Message1Id, None, None, None, None, None, 0, List(), List(), true)
     val threadBundles = List(ThreadBundle(thread2, List(message)))
@@ -91,7 +104,9 @@ class RepositoryTest extends TestBase {
       "messages/me@gmail,com/admin/threads/t2/t2m1/from" -> "",
       "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "",
       "messages/me@gmail,com/admin/threads/t2/t2m1/content" -> "",
-      "messages/me@gmail,com/admin/threads/t2/t2m1/resident" -> null)
+      "messages/me@gmail,com/admin/threads/t2/t2m1/resident" -> null,
+      "messages/me@gmail,com/admin/index/t2/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/historyId" -> "0")
     verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
   }
 
@@ -188,7 +203,13 @@ class RepositoryTest extends TestBase {
       "messages/me@gmail,com/admin/threads/t2/t2m1/resident/id" -> "2",
       "messages/me@gmail,com/admin/threads/t2/t2m1/resident/labelName" -> "Robert",
       "messages/me@gmail,com/admin/threads/t2/t2m1/resident/name" -> "robert",
-      "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "")
+      "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "",
+      "messages/me@gmail,com/admin/index/t1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t2/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m1/labels/Label_50" -> "roger",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/labels/Label_51" -> "robert")
     verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
   }
 
@@ -249,7 +270,11 @@ class RepositoryTest extends TestBase {
       "messages/me@gmail,com/admin/threads/t2/t2m1/resident/id" -> "2",
       "messages/me@gmail,com/admin/threads/t2/t2m1/resident/labelName" -> "Robert",
       "messages/me@gmail,com/admin/threads/t2/t2m1/resident/name" -> "robert",
-      "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "")
+      "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "",
+      "messages/me@gmail,com/admin/index/t1" -> null,
+      "messages/me@gmail,com/admin/index/t2/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/labels/Label_51" -> "robert")
     verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
   }
 
@@ -305,7 +330,11 @@ class RepositoryTest extends TestBase {
       "messages/me@gmail,com/admin/threads/t1/t1m2/resident/id" -> "1",
       "messages/me@gmail,com/admin/threads/t1/t1m2/resident/labelName" -> "Roger",
       "messages/me@gmail,com/admin/threads/t1/t1m2/resident/name" -> "roger",
-      "messages/me@gmail,com/admin/threads/t1/t1m2/subject" -> "")
+      "messages/me@gmail,com/admin/threads/t1/t1m2/subject" -> "",
+      "messages/me@gmail,com/admin/index/t1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m2/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m2/labels/Label_50" -> "roger",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m1" -> null)
     verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
   }
 
@@ -363,7 +392,11 @@ class RepositoryTest extends TestBase {
       "messages/me@gmail,com/admin/threads/t1/t1m2/resident/id" -> "2",
       "messages/me@gmail,com/admin/threads/t1/t1m2/resident/labelName" -> "Robert",
       "messages/me@gmail,com/admin/threads/t1/t1m2/resident/name" -> "robert",
-      "messages/me@gmail,com/admin/threads/t1/t1m2/subject" -> "")
+      "messages/me@gmail,com/admin/threads/t1/t1m2/subject" -> "",
+      "messages/me@gmail,com/admin/index/t1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m2/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m2/labels/Label_51" -> "robert",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m2/labels/Label_50" -> null)
     verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
   }
 
@@ -418,7 +451,119 @@ class RepositoryTest extends TestBase {
       "messages/me@gmail,com/admin/threads/t1/t1m1/resident/id" -> "1",
       "messages/me@gmail,com/admin/threads/t1/t1m1/resident/labelName" -> "Roger",
       "messages/me@gmail,com/admin/threads/t1/t1m1/resident/name" -> "roger",
-      "messages/me@gmail,com/admin/threads/t1/t1m1/subject" -> "")
+      "messages/me@gmail,com/admin/threads/t1/t1m1/subject" -> "",
+      "messages/me@gmail,com/admin/index/t1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m1/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t1/messages/t1m1/labels/Label_50" -> "roger")
+    verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
+  }
+
+  test("save thread changes leaves other threads untouched") {
+    val message = GmailMessage(threadId2Message1Id, None, None, None, None, None, 0, List(), List(), true)
+    val threadBundles = List(ThreadBundle(thread2, List(message)))
+    val messageSnapshot = MessagesSnapshot(allThreadIds = Map(Thread1Id -> List(threadId1Message1Id), Thread2Id -> List(threadId2Message1Id)))
+
+    val result = repository.saveThreadChanges(accountId, threadBundles, List(), messageSnapshot, Map())
+    Await.ready(result, Duration.Inf)
+
+    val values = Map(
+      "messages/me@gmail,com/admin/inbox/t2/contactEmail" -> null,
+      "messages/me@gmail,com/admin/inbox/t2/id" -> "t2",
+      "messages/me@gmail,com/admin/inbox/t2/snippet" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/date" -> Long.box(0),
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/reverseDate" -> Long.box(0),
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/from" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/subject" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/content" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/resident" -> null,
+      "messages/me@gmail,com/admin/threads/t2/t2m1/date" -> Long.box(0),
+      "messages/me@gmail,com/admin/threads/t2/t2m1/reverseDate" -> Long.box(0),
+      "messages/me@gmail,com/admin/threads/t2/t2m1/from" -> "",
+      "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "",
+      "messages/me@gmail,com/admin/threads/t2/t2m1/content" -> "",
+      "messages/me@gmail,com/admin/threads/t2/t2m1/resident" -> null,
+      "messages/me@gmail,com/admin/index/t2/historyId" -> "0",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/historyId" -> "0")
+    verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
+  }
+
+  test("save sync cursor") {
+    val result = repository.saveSyncCursor(accountId, SyncCursor(BigInt("18446744073709551615"), 1000))
+    Await.ready(result, Duration.Inf)
+
+    val values = Map(
+      "sync_cursors/me@gmail,com/history_id" -> "18446744073709551615",
+      "sync_cursors/me@gmail,com/last_sync_time_milli_seconds" -> Long.box(1000))
+    verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
+  }
+
+  test("revoking the credentials empties the node of the user") {
+    Await.ready(repository.updateAccessToken(accountId, Some("fakeAccessToken"), Some(1000)), Duration.Inf)
+    Await.ready(repository.saveSyncCursor(accountId, SyncCursor(1, 1000)), Duration.Inf)
+    Await.ready(repository.deleteCredentials(accountId), Duration.Inf)
+
+    val updates = ArgumentCaptor.forClass(classOf[Map[String, AnyRef]])
+    verify(firebaseFutureWrappers, times(3)).updateChildrenFuture(any, updates.capture())
+    val userPaths = updates.getAllValues.asScala.init.flatMap(_.keys).filter(_.startsWith("users/me@gmail,com/")).toSet
+    val deletedPaths = updates.getAllValues.asScala.last.collect { case (path, null) => path }.toSet
+    assert(userPaths.nonEmpty)
+    assert(userPaths.subsetOf(deletedPaths))
+    assert(deletedPaths.contains("users/me@gmail,com/refresh_token"))
+    assert(deletedPaths.contains("users/me@gmail,com/sync_cursor"))
+  }
+
+  test("skip threads unchanged since the last save") {
+    val message1 = GmailMessage(threadId1Message1Id, None, None, None, None, None, 0, List(), List(), true)
+    val message2 = GmailMessage(threadId2Message1Id, None, None, None, None, None, 0, List(), List(), true)
+    val threadBundles = List(ThreadBundle(thread1, List(message1)), ThreadBundle(thread2.copy(historyId = 2), List(message2)))
+    val messageSnapshot = MessagesSnapshot(
+      allThreadIds = Map(Thread1Id -> List(threadId1Message1Id), Thread2Id -> List(threadId2Message1Id)),
+      threadsHistoryIds = Map(Thread1Id -> 0, Thread2Id -> 1))
+
+    val result = repository.saveThreads(accountId, threadBundles, messageSnapshot, Map())
+    Await.ready(result, Duration.Inf)
+
+    val values = Map(
+      "messages/me@gmail,com/admin/inbox/t2/contactEmail" -> null,
+      "messages/me@gmail,com/admin/inbox/t2/id" -> "t2",
+      "messages/me@gmail,com/admin/inbox/t2/snippet" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/date" -> Long.box(0),
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/reverseDate" -> Long.box(0),
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/from" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/subject" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/content" -> "",
+      "messages/me@gmail,com/admin/inbox/t2/lastMessage/resident" -> null,
+      "messages/me@gmail,com/admin/threads/t2/t2m1/date" -> Long.box(0),
+      "messages/me@gmail,com/admin/threads/t2/t2m1/reverseDate" -> Long.box(0),
+      "messages/me@gmail,com/admin/threads/t2/t2m1/from" -> "",
+      "messages/me@gmail,com/admin/threads/t2/t2m1/subject" -> "",
+      "messages/me@gmail,com/admin/threads/t2/t2m1/content" -> "",
+      "messages/me@gmail,com/admin/threads/t2/t2m1/resident" -> null,
+      "messages/me@gmail,com/admin/index/t2/historyId" -> "2",
+      "messages/me@gmail,com/admin/index/t2/messages/t2m1/historyId" -> "0")
     verify(firebaseFutureWrappers).updateChildrenFuture(firebaseUrl, values)
   }
+
+  test("skip the write when no thread changed") {
+    val message = GmailMessage(threadId1Message1Id, None, None, None, None, None, 0, List(), List(), true)
+    val threadBundles = List(ThreadBundle(thread1, List(message)))
+    val messageSnapshot = MessagesSnapshot(allThreadIds = Map(Thread1Id -> List(threadId1Message1Id)), threadsHistoryIds = Map(Thread1Id -> 0))
+
+    val result = repository.saveThreads(accountId, threadBundles, messageSnapshot, residentLabels)
+    Await.ready(result, Duration.Inf)
+
+    verify(firebaseFutureWrappers, never).updateChildrenFuture(any, any)
+  }
+
+  test("mark the index as built after saving a snapshot read from the threads") {
+    when(firebaseFutureWrappers.setValueFuture(any, any)) thenReturn fs(())
+    val message = GmailMessage(threadId1Message1Id, None, None, None, None, None, 0, List(), List(), true)
+    val threadBundles = List(ThreadBundle(thread1, List(message)))
+    val messageSnapshot = MessagesSnapshot(allThreadIds = Map(Thread1Id -> List(threadId1Message1Id)), indexed = false)
+
+    val result = repository.saveThreads(accountId, threadBundles, messageSnapshot, Map())
+    Await.ready(result, Duration.Inf)
+
+    verify(firebaseFutureWrappers).setValueFuture(s"$firebaseUrl/messages/me@gmail,com/admin/indexVersion", Int.box(1))
+  }
 }
@@ -0,0 +1,101 @@
+package services
+
+import java.awt.image.BufferedImage
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.nio.file.Files
+import java.util.Base64
+import javax.imageio.ImageIO
+
+import common._
+import org.mockito.Mockito._
+import play.api.inject._
+import services.support.TestBase
+
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
+
+class ThumbnailCacheTest extends TestBase {
+
+  val accountId = "me@gmail.com"
+  var attachmentProxy: AttachmentProxy = _
+
+  def thumbnailCache(maxBytes: Long = 1024 * 1024) = {
+    val injector = getTestGuiceApplicationBuilder
+      .configure("application.thumbnails.directory" -> Files.createTempDirectory("thumbnails").toString, "application.thumbnails.max.bytes" -> maxBytes)
+      .overrides(bind[AttachmentProxy].toInstance(attachmentProxy))
+      .build.injector
+    injector.instanceOf[ThumbnailCache]
+  }
+
+  def image(width: Int, height: Int) = {
+    val out = new ByteArrayOutputStream
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", out)
+    Base64.getUrlEncoder.encodeToString(out.toByteArray)
+  }
+
+  def dimensions(thumbnail: Array[Byte]) = {
+    val read = ImageIO.read(new ByteArrayInputStream(thumbnail))
+    (read.getWidth, read.getHeight)
+  }
+
+  before {
+    attachmentProxy = mock[AttachmentProxy]
+  }
+
+  test("generate every size on the first request") {
+    when(attachmentProxy.getData(accountId, "messageId", "attachmentId")) thenReturn fs(Some(image(1000, 500)))
+    val cache = thumbnailCache()
+
+    val small = Await.result(cache.get(accountId, "messageId", "attachmentId", "small"), Duration.Inf).get
+    val large = Await.result(cache.get(accountId, "messageId", "attachmentId", "large"), Duration.Inf).get
+    assert(dimensions(small) == (200, 100))
+    assert(dimensions(large) == (800, 400))
+    verify(attachmentProxy, times(1)).getData(accountId, "messageId", "attachmentId")
+  }
+
+  test("ignore unknown sizes and attachments which are not images") {
+    when(attachmentProxy.getData(accountId, "messageId", "attachmentId")) thenReturn fs(Some(Base64.getUrlEncoder.encodeToString("text".getBytes)))
+    val cache = thumbnailCache()
+
+    assert(Await.result(cache.get(accountId, "messageId", "attachmentId", "huge"), Duration.Inf).isEmpty)
+    assert(Await.result(cache.get(accountId, "messageId", "attachmentId", "small"), Duration.Inf).isEmpty)
+    assert(Await.result(cache.get(accountId, "messageId", "attachmentId", "large"), Duration.Inf).isEmpty)
+    verify(attachmentProxy, times(1)).getData(accountId, "messageId", "attachmentId")
+  }
+
+  test("evict the least recently read thumbnails") {
+    when(attachmentProxy.getData(any, any, any)) thenReturn fs(Some(image(1000, 500)))
+    val attachmentBytes = ThumbnailCache.scale(Base64.getUrlDecoder.decode(image(1000, 500)), Long.MaxValue).get.values.map(_.length).sum
+    // room for two attachments and a half, eviction goes down to 90% of it
+    val cache = thumbnailCache(maxBytes = attachmentBytes * 5 / 2)
+    def get(attachmentId: String, size: String = "small") = {
+      Await.result(cache.get(accountId, "messageId", attachmentId, size), Duration.Inf)
+      // the last read time of the files is kept in milliseconds
+      Thread.sleep(100)
+    }
+
+    get("attachmentId1")
+    get("attachmentId2")
+    get("attachmentId1")
+    get("attachmentId1", "large")
+    get("attachmentId3")
+
+    get("attachmentId1")
+    get("attachmentId1", "large")
+    verify(attachmentProxy, times(1)).getData(accountId, "messageId", "attachmentId1")
+    get("attachmentId2")
+    verify(attachmentProxy, times(2)).getData(accountId, "messageId", "attachmentId2")
+  }
+
+  test("skip the images with too many pixels") {
+    when(attachmentProxy.getData(accountId, "messageId", "attachmentId")) thenReturn fs(Some(image(1000, 500)))
+    val injector = getTestGuiceApplicationBuilder
+      .configure("application.thumbnails.directory" -> Files.createTempDirectory("thumbnails").toString, "application.thumbnails.max.pixels" -> (1000 * 500 - 1))
+      .overrides(bind[AttachmentProxy].toInstance(attachmentProxy))
+      .build.injector
+    val cache = injector.instanceOf[ThumbnailCache]
+
+    assert(Await.result(cache.get(accountId, "messageId", "attachmentId", "small"), Duration.Inf).isEmpty)
+    assert(ThumbnailCache.scale(Base64.getUrlDecoder.decode(image(1000, 500)), 1000 * 500).isDefined)
+  }
+}
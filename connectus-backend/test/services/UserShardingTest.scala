@@ -0,0 +1,72 @@
+package services
+
+import akka.actor.{Actor, ActorSystem, Address, Props}
+import akka.cluster.sharding.{ClusterSharding, ClusterShardingSettings, ShardRegion}
+import akka.cluster.{Cluster, MemberStatus}
+import akka.pattern.ask
+import com.typesafe.config.ConfigFactory
+import common._
+import org.scalatest.concurrent.Eventually
+import org.scalatest.time.{Millis, Seconds, Span}
+import org.scalatest.FunSuiteLike
+
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future}
+
+class UserShardingTest extends FunSuiteLike with Eventually {
+
+  implicit override val patienceConfig = PatienceConfig(timeout = Span(30, Seconds), interval = Span(200, Millis))
+  implicit val timeout = Timeouts.oneMinute
+
+  test("route a message to the entity and the shard of its exact email") {
+    val msg = HistoryIdHolderActor.GetHistoryId("Me@Gmail.com")
+    assert(UserSharding.extractEntityId(msg) == ("Me@Gmail.com", msg))
+    assert(UserSharding.extractShardId(100)(msg) == UserSharding.shardId("Me@Gmail.com", 100))
+    assert(UserSharding.extractEntityId(HistoryIdHolderActor.GetHistoryId("me@gmail.com"))._1 != "Me@Gmail.com")
+    assert((1 to 1000).map(i => UserSharding.shardId(s"user$i@gmail.com", 10)).toSet == (0 until 10).map(_.toString).toSet)
+  }
+
+  test("run every user on a single node of a two nodes cluster") {
+    val config = ConfigFactory.parseString(
+      """akka.actor.provider = "akka.cluster.ClusterActorRefProvider"
+        |akka.remote.netty.tcp.hostname = "127.0.0.1"
+        |akka.remote.netty.tcp.port = 0
+        |""".stripMargin)
+    val nodes = List.fill(2)(ActorSystem("cluster", config))
+    try {
+      val seed = Cluster(nodes.head).selfAddress
+      nodes.foreach(Cluster(_).join(seed))
+      eventually {
+        nodes.foreach(node => assert(Cluster(node).state.members.count(_.status == MemberStatus.Up) == 2))
+      }
+
+      class UserSupervisorStub(email: Email) extends Actor {
+        override def receive: Receive = {
+          case HistoryIdHolderActor.GetHistoryId(_) => sender ! Cluster(context.system).selfAddress
+        }
+      }
+      val factory = new UserSupervisorActor.Factory {
+        override def apply(email: Email): Actor = new UserSupervisorStub(email)
+      }
+      val regions = nodes.map { node =>
+        ClusterSharding(node).start(UserSharding.typeName, Props(new UserEntityActor(node.deadLetters, node.deadLetters, factory)),
+          ClusterShardingSettings(node), UserSharding.extractEntityId, UserSharding.extractShardId(10))
+      }
+      eventually {
+        regions.foreach { region =>
+          assert(Await.result((region ? ShardRegion.GetCurrentRegions).mapTo[ShardRegion.CurrentRegions], Duration.Inf).regions.size == 2)
+        }
+      }
+
+      implicit val executor = nodes.head.dispatcher
+      val emails = (1 to 20).map(i => s"user$i@gmail.com").toList
+      def owners(from: Int): List[Address] =
+        Await.result(Future.sequence(emails.map(email => (regions(from) ? HistoryIdHolderActor.GetHistoryId(email)).mapTo[Address])), Duration.Inf)
+
+      assert(owners(0) == owners(1))
+      assert(owners(0).toSet == nodes.map(Cluster(_).selfAddress).toSet)
+    } finally {
+      nodes.foreach(node => Await.result(node.terminate(), Duration.Inf))
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package services
+
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import akka.actor.{Actor, ActorSystem, Props}
+import common._
+import org.mockito.Mockito._
+import play.api.inject._
+import services.Repository.SyncCursor
+import services.WarmUpActor.{WarmUp, WarmedUp}
+import services.support.TestBase
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Promise}
+
+class WarmUpActorTest extends TestBase {
+
+  test("start the new users first, then the most recently synced ones") {
+    val repository = mock[Repository]
+    val injector = getTestGuiceApplicationBuilder
+      .overrides(bind[Repository].toInstance(repository))
+      .configure("application.warmup.concurrency" -> 1, "application.warmup.jitter.milliseconds" -> 0)
+      .build.injector
+    val actorSystem = injector.instanceOf[ActorSystem]
+    val warmUpActor = actorSystem.actorOf(identity(Props(injector.instanceOf[WarmUpActor])))
+
+    val started = new ConcurrentLinkedQueue[Email]
+    val allStarted = Promise[Unit]
+    class UserSupervisorStub(email: Email) extends Actor {
+      implicit val executor = context.dispatcher
+      override def receive: Receive = {
+        case UserSupervisorActor.Start =>
+          started.add(email)
+          if (started.size == 4) allStarted.success(())
+          context.system.scheduler.scheduleOnce(100.millis, sender, WarmedUp(email))
+      }
+    }
+    def warmUp(email: Email, lastSyncTimeInMilliSeconds: Option[Long]) = {
+      when(repository.getSyncCursor(email)) thenReturn fs(lastSyncTimeInMilliSeconds.map(SyncCursor(1, _)))
+      warmUpActor ! WarmUp(email, actorSystem.actorOf(Props(new UserSupervisorStub(email))))
+    }
+
+    warmUp("first@gmail.com", None)
+    awaitCond(started.size == 1)
+    warmUp("old@gmail.com", Some(1000))
+    warmUp("never@gmail.com", None)
+    warmUp("recent@gmail.com", Some(3000))
+
+    Await.result(allStarted.future, 1.minute)
+    assert(started.asScala.toList == List("first@gmail.com", "never@gmail.com", "recent@gmail.com", "old@gmail.com"))
+  }
+
+  private def awaitCond(condition: => Boolean) =
+    while (!condition) Thread.sleep(10)
+}
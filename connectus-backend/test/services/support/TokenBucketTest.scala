@@ -0,0 +1,51 @@
+package services.support
+
+import org.scalatest.FunSuiteLike
+
+import scala.concurrent.duration._
+
+class TokenBucketTest extends FunSuiteLike {
+
+  class FakeTime(var nanos: Long = 0) {
+    def advance(duration: FiniteDuration) = nanos += duration.toNanos
+  }
+
+  test("spend the burst then wait for the refill") {
+    val time = new FakeTime
+    val bucket = new TokenBucket(10, 20, () => time.nanos)
+
+    assert(bucket.tryAcquire(15))
+    assert(!bucket.tryAcquire(10))
+    assert(bucket.timeUntilAvailable(10) == 500.millis)
+
+    time.advance(500.millis)
+    assert(bucket.tryAcquire(10))
+  }
+
+  test("never accumulate more than the burst") {
+    val time = new FakeTime
+    val bucket = new TokenBucket(10, 20, () => time.nanos)
+
+    time.advance(1.hour)
+    assert(bucket.tryAcquire(20))
+    assert(!bucket.tryAcquire(1))
+  }
+
+  test("refill after a long idle gap at a high rate") {
+    val time = new FakeTime
+    val bucket = new TokenBucket(Int.MaxValue, Int.MaxValue, () => time.nanos)
+
+    assert(bucket.tryAcquire(Int.MaxValue))
+    time.advance(1.minute)
+    assert(bucket.tryAcquire(Int.MaxValue))
+    assert(bucket.timeUntilAvailable(1) == 1.nanos)
+  }
+
+  test("serve a request costlier than the burst") {
+    val time = new FakeTime
+    val bucket = new TokenBucket(10, 20, () => time.nanos)
+
+    assert(bucket.tryAcquire(100))
+    assert(bucket.timeUntilAvailable(100) == 2.seconds)
+  }
+}